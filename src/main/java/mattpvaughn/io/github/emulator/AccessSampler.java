@@ -0,0 +1,158 @@
+package mattpvaughn.io.github.emulator;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+// Samples memory reads and writes to show which parts of the address space a
+// game actually uses, for the ostrich GameBoy emulator
+//
+// Memory counts accesses down and hands one to the sampler every
+// sampleRate accesses on average (the gap is randomised so that loops which
+// happen to be a multiple of the rate don't get over or under counted). The
+// sampler counts them per 16 byte region. At the end of every window of
+// frames it writes the counts out and starts again:
+//      access-NNNNN.csv: one line per region which was accessed:
+//                        address,reads,writes
+//      access-NNNNN.png: a 64x64 grid of regions, 1 KB per row starting at
+//                        0x0000 in the top left, scaled up 8 times. Green is
+//                        reads, red is writes, on a log scale.
+// See Memory.attachAccessSampler().
+
+public class AccessSampler {
+
+    public static final int REGION_SHIFT = 4;
+    public static final int REGION_COUNT = Memory.MAX_MEMORY_SIZE >>> REGION_SHIFT;
+
+    private static final int GRID_WIDTH = 64;
+    private static final int PIXEL_SCALE = 8;
+
+    private final int[] reads = new int[REGION_COUNT];
+    private final int[] writes = new int[REGION_COUNT];
+
+    private final int sampleRate;
+    private final long windowCycles;
+    private final Path outputDirectory;
+
+    // xorshift state for the gaps between samples
+    private int random = 0x2545F491;
+
+    private long windowEndCycle;
+    private int window = 0;
+
+    // Sample one in every sampleRate accesses, writing the counts into
+    // outputDirectory every windowFrames frames
+    public AccessSampler(int sampleRate, int windowFrames, Path outputDirectory) {
+        if (sampleRate < 1) {
+            throw new IllegalArgumentException("Sample rate must be at least 1: " + sampleRate);
+        }
+        if (windowFrames < 1) {
+            throw new IllegalArgumentException("Window must be at least one frame: " + windowFrames);
+        }
+        this.sampleRate = sampleRate;
+        this.windowCycles = (long) windowFrames * Memory.FRAME_CYCLES;
+        this.windowEndCycle = windowCycles;
+        this.outputDirectory = outputDirectory;
+    }
+
+    // The number of accesses until the next sample, between 1 and
+    // 2 * sampleRate - 1 so that it averages out at sampleRate
+    int nextInterval() {
+        if (sampleRate == 1) {
+            return 1;
+        }
+        random ^= random << 13;
+        random ^= random >>> 17;
+        random ^= random << 5;
+        return 1 + (int) ((random & 0xFFFFFFFFL) % (2 * sampleRate - 1));
+    }
+
+    void record(int address, boolean isWrite) {
+        if (isWrite) {
+            writes[address >>> REGION_SHIFT]++;
+        } else {
+            reads[address >>> REGION_SHIFT]++;
+        }
+    }
+
+    public int getReads(int region) {
+        return reads[region];
+    }
+
+    public int getWrites(int region) {
+        return writes[region];
+    }
+
+    // Write out and clear the counts once the current window is over
+    void update(long cycleCount) {
+        if (cycleCount < windowEndCycle) {
+            return;
+        }
+        try {
+            writeWindow();
+        } catch (IOException io) {
+            Utils.log("Unable to write memory access samples to " + outputDirectory + ".\r\n" + io);
+        }
+        clear();
+        window++;
+        windowEndCycle = cycleCount + windowCycles;
+    }
+
+    private void writeWindow() throws IOException {
+        Files.createDirectories(outputDirectory);
+        String name = String.format("access-%05d", window);
+        try (Writer out = Files.newBufferedWriter(outputDirectory.resolve(name + ".csv"), StandardCharsets.US_ASCII)) {
+            writeCsv(out);
+        }
+        ImageIO.write(toImage(), "png", outputDirectory.resolve(name + ".png").toFile());
+    }
+
+    public void clear() {
+        Arrays.fill(reads, 0);
+        Arrays.fill(writes, 0);
+    }
+
+    // The counts as CSV, one line per region which was accessed
+    public void writeCsv(Writer writer) throws IOException {
+        BufferedWriter out = writer instanceof BufferedWriter ? (BufferedWriter) writer : new BufferedWriter(writer);
+        out.write("address,reads,writes");
+        out.newLine();
+        for (int region = 0; region < REGION_COUNT; region++) {
+            if (reads[region] != 0 || writes[region] != 0) {
+                out.write(String.format("%04X,%d,%d", region << REGION_SHIFT, reads[region], writes[region]));
+                out.newLine();
+            }
+        }
+        out.flush();
+    }
+
+    // The counts as a heatmap
+    public BufferedImage toImage() {
+        int max = 1;
+        for (int region = 0; region < REGION_COUNT; region++) {
+            max = Math.max(max, Math.max(reads[region], writes[region]));
+        }
+        double scale = 255 / Math.log1p(max);
+        int size = GRID_WIDTH * PIXEL_SCALE;
+        BufferedImage image = new BufferedImage(size, REGION_COUNT / GRID_WIDTH * PIXEL_SCALE, BufferedImage.TYPE_INT_RGB);
+        for (int region = 0; region < REGION_COUNT; region++) {
+            int red = (int) (Math.log1p(writes[region]) * scale);
+            int green = (int) (Math.log1p(reads[region]) * scale);
+            int rgb = red << 16 | green << 8;
+            int x = region % GRID_WIDTH * PIXEL_SCALE;
+            int y = region / GRID_WIDTH * PIXEL_SCALE;
+            for (int dy = 0; dy < PIXEL_SCALE; dy++) {
+                for (int dx = 0; dx < PIXEL_SCALE; dx++) {
+                    image.setRGB(x + dx, y + dy, rgb);
+                }
+            }
+        }
+        return image;
+    }
+}
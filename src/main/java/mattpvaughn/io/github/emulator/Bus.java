@@ -0,0 +1,29 @@
+package mattpvaughn.io.github.emulator;
+
+import mattpvaughn.io.github.emulator.cpu.CPU;
+
+// The CPU's view of the rest of the GameBoy: everything it reaches through
+// the address bus
+//
+// Memory is the only implementation, and is final, so the CPU's calls
+// through this interface stay monomorphic and inline. Differences between
+// cartridges live behind Memory's page tables (see cartridge.Cartridge)
+// rather than in different implementations of this interface.
+
+public interface Bus {
+
+    byte readByte(int address);
+
+    void writeByte(int address, byte value);
+
+    // The array holding the code in a page, see Memory.getCodePage()
+    byte[] getCodePage(int index);
+
+    // Changes whenever a page returned by getCodePage() may have been swapped
+    // for another array
+    int getCodeMapVersion();
+
+    void registerIOHandler(int address, IOReadHandler readHandler, IOWriteHandler writeHandler);
+
+    void attachCPU(CPU cpu);
+}
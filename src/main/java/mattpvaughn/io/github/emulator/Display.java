@@ -22,13 +22,34 @@ import mattpvaughn.io.github.emulator.cpu.Util;
 
 public class Display {
 
+    // How lines are drawn:
+    //      SCANLINE: each line is drawn in one go as its mode 3 ends, from
+    //                the registers at that moment. Mode 3 always lasts 172
+    //                cycles. Fast, and right for nearly every game.
+    //      PIXEL_FIFO: each line is drawn a dot at a time through a model of
+    //                  the pixel FIFO (see PixelFifo). Registers changed
+    //                  part way along a line take effect from that pixel, and
+    //                  mode 3 is longer with scrolling, the window and
+    //                  sprites. Several times slower.
+    //      AUTO: the scanline renderer, until a register which changes the
+    //            drawing (LCDC, SCX, SCY, BGP, OBP0, OBP1, WX, WY) is
+    //            written during mode 3. That line is then replayed through
+    //            the pixel FIFO up to the write and finished there, and
+    //            following lines use the pixel FIFO until a whole frame goes
+    //            by without such a write.
+    public enum Renderer {
+        SCANLINE,
+        PIXEL_FIFO,
+        AUTO
+    }
+
     // The memory component of the Gameboy. Addresses 0x8000-0x9FFF represent
     // the video RAM.
     private Memory memory;
 
     // Screen height and width
-    private int screenHeight = 144;
-    private int screenWidth = 160;
+    public static final int SCREEN_HEIGHT = 144;
+    public static final int SCREEN_WIDTH = 160;
 
     // Number of bytes in the BG/Window tileset
     private int BG_WINDOW_TILESET_LENGTH = 4096;
@@ -50,7 +71,7 @@ public class Display {
     //      bit 1: Sprites enabled (0 = disabled, 1 = enabled)
     //      bit 0: BG enabled (0 = disabled, 1 = enabled)
     //          \-> (a disabled background is white!)
-    private int LCDC = 0xFF40;
+    private static final int LCDC = 0xFF40;
 
     // Register used to check the status of the LCD and to configure the LCD
     // interrupt.
@@ -69,58 +90,303 @@ public class Display {
     // Mode 1: CPU can access VRAM and OAM
     // Mode 2: CPU can access VRAM (but not OAM)
     // Mode 3: CPU cannot access VRAM or OAM
-    private int STAT = 0xFF41;
+    private static final int STAT = 0xFF41;
 
     // Scroll Y. The number of pixels which the BG map has been scrolled by in
     // the y direction.
-    private int SCY = 0xFF42;
+    private static final int SCY = 0xFF42;
 
     // Scroll X. The number of pixels which the BG map has been scrolled by in
     // the x direction.
-    private int SCX = 0xFF43;
+    private static final int SCX = 0xFF43;
 
     // The current horizontal line being drawn. It can take any value from 0 to
     // 153. Values 144-153 indicate V-blank period.
-    private int LY = 0xFF44;
+    private static final int LY = 0xFF44;
 
     // Used to trigger an interrupt when LY has the same value as LYC.
-    private int LYC = 0xFF45;
+    private static final int LYC = 0xFF45;
 
     // DMA transfer and start address. Launches a DMA transfer from ROM or RAM
     // to OAM memory (sprite attribute table). The value written to this
     // location specifies the source address, i.e. where values will be taken
     // from and written to VRAM. e.g. writing XX to the value sets the source
     // to be XX00-XX9F.
-    private int DMA = 0xFF46;
+    private static final int DMA = 0xFF46;
 
     // Background palette data. Assigns gray shades to the color numbers of BG
-    // and Window tiles
+    // and Window tiles (shade 0 is the lightest, shade 3 the darkest)
     // Bit explanations:
-    //      bit 0-1: Shade for color number 3
-    //      bit 2-3: Shade for color number 2
-    //      bit 4-5: Shade for color number 1
-    //      bit 6-7: Shade for color number 0
-    private int BGP = 0xFF47;
+    //      bit 0-1: Shade for color number 0
+    //      bit 2-3: Shade for color number 1
+    //      bit 4-5: Shade for color number 2
+    //      bit 6-7: Shade for color number 3
+    private static final int BGP = 0xFF47;
 
     // Object palette 0 data. Assigns gray shades for sprite palette #0.
     // Bit explanations: same as BGP (0xFF47), but 0-1 are always transparent
-    private int OBP0 = 0xFF48;
+    private static final int OBP0 = 0xFF48;
 
     // Object palette 1 data. Same as OBP0 (0xFF48), but for sprite palette #1
-    private int OBP1 = 0xFF49;
-
-    // Window X position minus 7.
-    private int WY = 0xFF4A;
+    private static final int OBP1 = 0xFF49;
 
     // Window Y position.
-    private int WX = 0xFF4B;
+    private static final int WY = 0xFF4A;
+
+    // Window X position plus 7.
+    private static final int WX = 0xFF4B;
+
+    // Interrupt request register, and the interrupts the display requests
+    private static final int IF = 0xFF0F;
+    private static final int VBLANK_INTERRUPT = 0x01;
+    private static final int STAT_INTERRUPT = 0x02;
+
+    // Timing of a line, in CPU cycles. Each of the 144 visible lines spends
+    // 80 cycles searching OAM (mode 2), 172 drawing (mode 3) and the rest of
+    // its 456 cycles in H-blank (mode 0). Lines 144-153 are V-blank (mode 1).
+    private static final int OAM_SEARCH_CYCLES = 80;
+    private static final int TRANSFER_CYCLES = 172;
+    private static final int LINE_CYCLES = 456;
+    private static final int LINES = 154;
 
     // Colors in the palette, from darkest to lighest
     private int[] colors = new int[]{0x66, 0x99, 0xAA, 0xCC};
 
+    // Palettes as lookup tables from color number to an RGB color. Rebuilt
+    // whenever BGP, OBP0 or OBP1 are written to.
+    private final int[] bgPalette = new int[4];
+    private final int[] objPalette0 = new int[4];
+    private final int[] objPalette1 = new int[4];
+
+    // The screen, one ARGB pixel per int, row by row. Once something asks
+    // for the triple buffer (a window, see getTripleBuffer()), frames are
+    // drawn into its back buffer and published as V-blank starts. Until then
+    // (e.g. headless) there is just the one buffer, drawn over every frame.
+    // frameBuffer only moves on to the new back buffer when the next frame to
+    // be drawn starts, so until then it is the frame just finished (which
+    // nothing writes to while the presenter may be reading it).
+    private TripleBuffer frames;
+    private int[] frameBuffer = new int[SCREEN_WIDTH * SCREEN_HEIGHT];
+
+    // The BG/window color numbers of the line being drawn, which decide
+    // whether sprites behind the background show
+    private final int[] lineColorNumbers = new int[SCREEN_WIDTH];
+
+    // The pages of VRAM, fetched from memory at the start of each line
+    private final byte[][] vram = new byte[0x20][];
+
+    // Tiles decoded into color numbers, brought up to date before each line
+    private final TileCache tileCache;
+
+    // Which sprites are on which lines, and the OAM indexes of the sprites on
+    // the line being drawn, highest priority first
+    private final SpriteIndex spriteIndex;
+    private final int[] lineSprites = new int[SpriteIndex.SPRITES_PER_LINE];
+
+    // The renderer to use from the next line, and the one drawing the
+    // current line
+    private Renderer renderer = Renderer.SCANLINE;
+    private Renderer lineRenderer = Renderer.SCANLINE;
+    private final PixelFifo pixelFifo;
+
+    // Dots of mode 3 run through the pixel FIFO so far on this line
+    private int transferDots = 0;
+
+    // In AUTO mode, the last frame to draw with the pixel FIFO: the one after
+    // the last write during mode 3
+    private long accurateUntilFrame = -1;
+
+    // Number of lines drawn by the pixel FIFO
+    private long accurateLineCount = 0;
+
+    // Where the display is up to: the current mode and line, how far into
+    // the line it is, and the cycle count it has caught up to
+    private int mode = 0;
+    private int ly = 0;
+    private int lineCycles = 0;
+    private long lastCycleCount = 0;
+
+    // The line of the window to draw next. Only moves on when the window is
+    // drawn on a line.
+    private int windowLine = 0;
+
+    // Number of frames completed
+    private long frameCount = 0;
+
+    // Told about each frame as it is finished, if set
+    private FrameListener frameListener;
+
+    // Frame skip: only one frame in every frameSkip is drawn. The timing,
+    // registers and interrupts run the same for every frame, so games can't
+    // tell the difference, but skipped frames don't compose any pixels and
+    // the frame buffer keeps the last frame drawn.
+    private int frameSkip = 1;
+    private boolean drawingFrame = true;
+
 
     public Display(Memory memory) {
         this.memory = memory;
+        this.tileCache = new TileCache(memory);
+        this.spriteIndex = new SpriteIndex(memory);
+        this.pixelFifo = new PixelFifo(memory, bgPalette, objPalette0, objPalette1,
+                0xFF000000 | colors[3] << 16 | colors[3] << 8 | colors[3]);
+        registerIOHandlers();
+        memory.addRestoreListener(this::loadState);
+        loadState();
+    }
+
+    // Take over the LCD registers, so that writes to them have their side
+    // effects straight away. The display is caught up to the writing
+    // instruction first, so the write lands at the right dot of the line.
+    private void registerIOHandlers() {
+        // Turning the LCD off resets LY and puts the LCD into H-blank.
+        // Turning it back on starts a frame from the top.
+        memory.registerIOHandler(LCDC, null, (address, value) -> {
+            catchUpForDrawing();
+            boolean wasOn = isLCDOn();
+            memory.setIORegister(address, value);
+            if (!isLCDOn()) {
+                setLY(0);
+                setMode(0);
+            } else if (!wasOn) {
+                setLY(0);
+                lineCycles = 0;
+                startFrame();
+                setMode(2);
+            }
+        });
+        // Bits 0-2 of STAT are read only, and bit 7 always reads as 1
+        memory.registerIOHandler(STAT, null, (address, value) -> {
+            catchUp();
+            memory.setIORegister(address, (byte) ((value & 0x78)
+                    | (memory.getIORegister(address) & 0x07) | 0x80));
+        });
+        // Writing anything to LY resets it
+        memory.registerIOHandler(LY, null, (address, value) -> {
+            catchUp();
+            setLY(0);
+        });
+        memory.registerIOHandler(LYC, null, (address, value) -> {
+            catchUp();
+            memory.setIORegister(address, value);
+            updateCoincidence();
+        });
+        memory.registerIOHandler(BGP, null, (address, value) -> {
+            catchUpForDrawing();
+            memory.setIORegister(address, value);
+            loadPalette(bgPalette, value);
+        });
+        memory.registerIOHandler(OBP0, null, (address, value) -> {
+            catchUpForDrawing();
+            memory.setIORegister(address, value);
+            loadPalette(objPalette0, value);
+        });
+        memory.registerIOHandler(OBP1, null, (address, value) -> {
+            catchUpForDrawing();
+            memory.setIORegister(address, value);
+            loadPalette(objPalette1, value);
+        });
+        for (int register : new int[]{SCY, SCX, WY, WX}) {
+            memory.registerIOHandler(register, null, (address, value) -> {
+                catchUpForDrawing();
+                memory.setIORegister(address, value);
+            });
+        }
+    }
+
+    // Bring the display up to the instruction being run
+    private void catchUp() {
+        long cycles = memory.getCycles();
+        if (cycles > lastCycleCount) {
+            update(cycles);
+        }
+    }
+
+    // Catch up before a write to a register which changes the drawing. In
+    // AUTO mode a write during mode 3 escalates to the pixel FIFO: if the
+    // scanline renderer has the line, the FIFO takes it over, running from
+    // the start of mode 3 up to this dot with the registers as they were.
+    private void catchUpForDrawing() {
+        catchUp();
+        if (renderer != Renderer.AUTO || mode != 3 || !isLCDOn()) {
+            return;
+        }
+        accurateUntilFrame = frameCount + 1;
+        if (lineRenderer == Renderer.SCANLINE) {
+            lineRenderer = Renderer.PIXEL_FIFO;
+            startPixelFifo();
+            runPixelFifo();
+        }
+    }
+
+    // Pick up where the registers say the display is (after a snapshot has
+    // been restored, or the boot rom skipped)
+    private void loadState() {
+        loadPalettes();
+        ly = Util.unsignedByteToInt(memory.getIORegister(LY));
+        mode = memory.getIORegister(STAT) & 0b11;
+        lineCycles = 0;
+        // There is no pixel FIFO state to go back to part way through a line
+        lineRenderer = Renderer.SCANLINE;
+        // The frame buffer may already have been published, so the rest of
+        // this frame is drawn into a fresh back buffer
+        startFrame();
+    }
+
+    // Rebuild every palette from the palette registers
+    private void loadPalettes() {
+        loadPalette(bgPalette, memory.getIORegister(BGP));
+        loadPalette(objPalette0, memory.getIORegister(OBP0));
+        loadPalette(objPalette1, memory.getIORegister(OBP1));
+    }
+
+    // Fill in a palette lookup table from the value of a palette register
+    private void loadPalette(int[] palette, byte value) {
+        for (int colorNumber = 0; colorNumber < 4; colorNumber++) {
+            int shade = (value >> (colorNumber * 2)) & 0b11;
+            int gray = colors[3 - shade];
+            palette[colorNumber] = 0xFF000000 | gray << 16 | gray << 8 | gray;
+        }
+    }
+
+    // Set the screen mode in bits 0-1 of STAT
+    private void setMode(int mode) {
+        this.mode = mode;
+        memory.setIORegister(STAT, (byte) ((memory.getIORegister(STAT) & ~0b11) | mode));
+    }
+
+    // Move to a new mode as part of the normal timing, requesting a STAT
+    // interrupt if one is enabled for the mode (bits 3-5 of STAT)
+    private void enterMode(int mode) {
+        setMode(mode);
+        if (mode != 3 && Util.checkBit(memory.getIORegister(STAT), (byte) (3 + mode))) {
+            requestInterrupt(STAT_INTERRUPT);
+        }
+    }
+
+    private void setLY(int ly) {
+        this.ly = ly;
+        memory.setIORegister(LY, (byte) ly);
+        updateCoincidence();
+    }
+
+    private void requestInterrupt(int interrupt) {
+        memory.setIORegister(IF, (byte) (memory.getIORegister(IF) | interrupt));
+    }
+
+    private boolean isLCDOn() {
+        return Util.checkBit(memory.getIORegister(LCDC), (byte) 7);
+    }
+
+    // Set bit 2 of STAT if LY == LYC, and request a STAT interrupt when they
+    // start matching if bit 6 of STAT asks for one
+    private void updateCoincidence() {
+        byte stat = memory.getIORegister(STAT);
+        boolean coincidence = memory.getIORegister(LY) == memory.getIORegister(LYC);
+        memory.setIORegister(STAT, Util.setBitValue(stat, (byte) 2, coincidence));
+        if (coincidence && !Util.checkBit(stat, (byte) 2) && Util.checkBit(stat, (byte) 6)) {
+            requestInterrupt(STAT_INTERRUPT);
+        }
     }
 
     // Transfer data from the memory at address XX00-XXFF into OAM (FE00-FE9F)
@@ -128,13 +394,13 @@ public class Display {
     // A transfer will continue to run if the CPU enters HALT or STOP mode, but
     // cannot begin if the CPU is in such a mode.
     public void DMATransfer(byte unsignedAddress) {
-        int sourceAddress = Util.unsignedByteToInt(unsignedAddress) << 2;
-        memory.loadToOAM(sourceAddress);
+        int sourceAddress = Util.unsignedByteToInt(unsignedAddress) << 8;
+        memory.startDMA(sourceAddress);
     }
 
     // BG & window tileset starting address (0 = 8800h-97FFh, 1 = 8000h-8FFFh)
     public int getBGWindowTileSetLocation() {
-        byte LCDCValue = memory.readByte(LCDC);
+        byte LCDCValue = memory.getIORegister(LCDC);
         if (Util.checkBit(LCDCValue, (byte) 4)) {
             return 0x8000;
         }
@@ -143,7 +409,7 @@ public class Display {
 
     // Window tile map starting address (0 = 9800h-9BFFh, 1 = 9C00h-9FFFh)
     public int getWindowTileMapLocation() {
-        byte LCDCValue = memory.readByte(LCDC);
+        byte LCDCValue = memory.getIORegister(LCDC);
         if (Util.checkBit(LCDCValue, (byte) 6)) {
             return 0x9C00;
         }
@@ -152,7 +418,7 @@ public class Display {
 
     // BG tile map starting address (0 = 9800h-9BFFh, 1 = 9C00h-9FFFh)
     public int getBGTileMap() {
-        byte LCDCValue = memory.readByte(LCDC);
+        byte LCDCValue = memory.getIORegister(LCDC);
         if (Util.checkBit(LCDCValue, (byte) 3)) {
             return 0x9C00;
         }
@@ -161,41 +427,152 @@ public class Display {
 
     // BG enabled (0 = disabled, 1 = enabled)
     public boolean shouldDrawBG() {
-        byte LCDCValue = memory.readByte(LCDC);
+        byte LCDCValue = memory.getIORegister(LCDC);
         return Util.checkBit(LCDCValue, (byte) 0);
     }
 
     // Sprite size (0 = 8×8, 1 = 8×16)
     public int spriteHeight() {
-        byte LCDCValue = memory.readByte(LCDC);
-        if (Util.checkBit(LCDCValue, (byte) 3)) {
+        byte LCDCValue = memory.getIORegister(LCDC);
+        if (Util.checkBit(LCDCValue, (byte) 2)) {
             return 16;
         }
         return 8;
     }
 
-    public void drawBackground() {
-        // Pull color numbers from BGP. These color numbers combine with the
-        byte[] colorNumbers = new byte[4];
+    // The screen as ARGB pixels, 160 per row: the frame being drawn, or
+    // between frames the last one finished. Only for the emulation thread;
+    // other threads should take frames from getTripleBuffer().
+    public int[] getFrameBuffer() {
+        return frameBuffer;
+    }
 
-        // Pull pixel bytes/bits from memory two at a time. leastSignificantPixelBits
-        // contains data for the least significant bits of color number for the
-        // current 8 pixels, mostSignificantPixelBits contains the most
-        // significant bits;
-        int screenX = 0;
-        int screenY = 0;
+    // Finished frames, for a presentation thread to pick up. The triple
+    // buffer is made the first time this is called, and frames are published
+    // to it from the next frame drawn.
+    public TripleBuffer getTripleBuffer() {
+        if (frames == null) {
+            frames = new TripleBuffer(SCREEN_WIDTH * SCREEN_HEIGHT);
+        }
+        return frames;
+    }
 
-        // X and Y after adjusting by screen offset
-        int x = (screenX + memory.readByte(SCX)) % screenWidth;
-        int y = (screenY + memory.readByte(SCY)) % screenHeight;
+    public long getFrameCount() {
+        return frameCount;
+    }
 
-        // Background palette data
-        //int color = getBGColor();
+    // The frame listener is only told about frames which are drawn
+    public void setFrameListener(FrameListener frameListener) {
+        this.frameListener = frameListener;
+    }
+
+    // Draw one frame in every frameSkip (1 draws every frame). Takes effect
+    // from the next frame.
+    public void setFrameSkip(int frameSkip) {
+        if (frameSkip < 1) {
+            throw new IllegalArgumentException("Frame skip must be at least 1: " + frameSkip);
+        }
+        this.frameSkip = frameSkip;
+    }
+
+    public int getFrameSkip() {
+        return frameSkip;
+    }
+
+    // Takes effect from the next line
+    public void setRenderer(Renderer renderer) {
+        if (renderer == null) {
+            throw new IllegalArgumentException("Renderer can't be null");
+        }
+        this.renderer = renderer;
+    }
+
+    public Renderer getRenderer() {
+        return renderer;
+    }
+
+    // The number of lines drawn by the pixel FIFO so far (all of them with
+    // PIXEL_FIFO, the escalated ones with AUTO)
+    public long getAccurateLineCount() {
+        return accurateLineCount;
+    }
+
+    // Decide whether the frame which is starting gets drawn
+    private void startFrame() {
+        windowLine = 0;
+        drawingFrame = frameCount % frameSkip == 0;
+        if (drawingFrame && frames != null) {
+            frameBuffer = frames.getBackBuffer();
+        }
+    }
+
+    // Draw one line of the screen: background, window, then sprites
+    private void renderLine(int line) {
+        for (int i = 0; i < vram.length; i++) {
+            vram[i] = memory.getPage(0x80 + i);
+        }
+        tileCache.update();
+        byte lcdc = memory.getIORegister(LCDC);
+        int offset = line * SCREEN_WIDTH;
+        // On the original gameboy bit 0 turns off the window as well as the
+        // background, leaving white
+        if (shouldDrawBG()) {
+            drawBackground(line, offset);
+            if (Util.checkBit(lcdc, (byte) 5)) {
+                drawWindow(line, offset);
+            }
+        } else {
+            for (int x = 0; x < SCREEN_WIDTH; x++) {
+                lineColorNumbers[x] = 0;
+                frameBuffer[offset + x] = 0xFF000000 | colors[3] << 16 | colors[3] << 8 | colors[3];
+            }
+        }
+        if (Util.checkBit(lcdc, (byte) 1)) {
+            drawSprites(line, offset);
+        }
+    }
+
+    private byte readVRAM(int address) {
+        return vram[(address - 0x8000) >>> 8][address & 0xFF];
+    }
+
+    // Draw pixels from x to the end of the line from a tile map, starting at
+    // (mapX, mapY) in the 256x256 map
+    private void drawTileMap(int offset, int x, int map, int mapX, int mapY) {
+        boolean unsignedTileSet = getBGWindowTileSetLocation() == 0x8000;
+        byte[] tiles = tileCache.getPixels();
+        int mapRow = map + (mapY >>> 3) * 32;
+        int tileRow = (mapY & 7) * 8;
+        while (x < SCREEN_WIDTH) {
+            int tile = TileCache.getTileIndex(readVRAM(mapRow + (mapX >>> 3)), unsignedTileSet);
+            int pixel = tile * TileCache.TILE_PIXELS + tileRow;
+            for (int column = mapX & 7; column < 8 && x < SCREEN_WIDTH; column++, x++) {
+                int colorNumber = tiles[pixel + column];
+                lineColorNumbers[x] = colorNumber;
+                frameBuffer[offset + x] = getBGColor((byte) colorNumber);
+            }
+            mapX = (mapX + 8) & ~7 & 0xFF;
+        }
+    }
+
+    private void drawBackground(int line, int offset) {
+        int scx = Util.unsignedByteToInt(memory.getIORegister(SCX));
+        int scy = Util.unsignedByteToInt(memory.getIORegister(SCY));
+        drawTileMap(offset, 0, getBGTileMap(), scx, (line + scy) & 0xFF);
+    }
+
+    private void drawWindow(int line, int offset) {
+        int wy = Util.unsignedByteToInt(memory.getIORegister(WY));
+        int wx = Util.unsignedByteToInt(memory.getIORegister(WX)) - 7;
+        if (line < wy || wx >= SCREEN_WIDTH) {
+            return;
+        }
+        drawTileMap(offset, Math.max(wx, 0), getWindowTileMapLocation(), Math.max(-wx, 0), windowLine);
+        windowLine++;
     }
 
     private int getBGColor(byte b) {
-        byte palette = memory.readByte(BGP);
-        return 0;
+        return bgPalette[b & 0b11];
     }
 
 
@@ -222,9 +599,44 @@ public class Display {
     // one with the smallest x coordinate appears on top. When they overlap at
     // the same x coordinate, have priority by table ordering (0xFE00 highest,
     // 0xFE04 second highest...)
-    public void drawSprites() {
-        // Get the sprite attribute table address
-
+    private void drawSprites(int line, int offset) {
+        byte[] oam = memory.getPage(0xFE);
+        int height = spriteHeight();
+        int count = spriteIndex.getSprites(line, height, lineSprites);
+
+        // Draw the lowest priority sprite first so the highest ends up on top
+        for (int i = count - 1; i >= 0; i--) {
+            int entry = lineSprites[i] * 4;
+            int y = (oam[entry] & 0xFF) - 16;
+            int x = (oam[entry + 1] & 0xFF) - 8;
+            int tile = oam[entry + 2] & 0xFF;
+            byte attributes = oam[entry + 3];
+            boolean behindBG = Util.checkBit(attributes, (byte) 7);
+            boolean flipX = Util.checkBit(attributes, (byte) 5);
+            int[] palette = Util.checkBit(attributes, (byte) 4) ? objPalette1 : objPalette0;
+
+            int row = line - y;
+            if (Util.checkBit(attributes, (byte) 6)) {
+                row = height - 1 - row;
+            }
+            if (height == 16) {
+                tile &= 0xFE;
+            }
+            byte[] tiles = flipX ? tileCache.getFlippedPixels() : tileCache.getPixels();
+            int start = tile * TileCache.TILE_PIXELS + row * 8;
+            for (int pixel = 0; pixel < 8; pixel++) {
+                int screenX = x + pixel;
+                if (screenX < 0 || screenX >= SCREEN_WIDTH) {
+                    continue;
+                }
+                int colorNumber = tiles[start + pixel];
+                // Color 0 is transparent
+                if (colorNumber == 0 || (behindBG && lineColorNumbers[screenX] != 0)) {
+                    continue;
+                }
+                frameBuffer[offset + screenX] = palette[colorNumber];
+            }
+        }
     }
 
 
@@ -232,6 +644,106 @@ public class Display {
     // 169-175 clks. A complete cycle through these states takes 456 clks.
     // VBlank lasts 4560 clks. A complete screen refresh occurs every 70224
     // clks.)
+    //
+    // Catch the display up with the CPU. With the scanline renderer lines
+    // are drawn as their mode 3 ends; with the pixel FIFO mode 3 runs dot by
+    // dot until the line is drawn. A V-blank interrupt is requested as line
+    // 144 starts.
     public void update(long cycleCount) {
+        long elapsed = cycleCount - lastCycleCount;
+        lastCycleCount = cycleCount;
+        if (!isLCDOn()) {
+            return;
+        }
+        lineCycles += (int) elapsed;
+        while (true) {
+            if (mode == 2 && lineCycles >= OAM_SEARCH_CYCLES) {
+                enterMode(3);
+                startTransfer();
+            } else if (mode == 3) {
+                if (lineRenderer == Renderer.PIXEL_FIFO) {
+                    if (!runPixelFifo()) {
+                        return;
+                    }
+                } else {
+                    if (lineCycles < OAM_SEARCH_CYCLES + TRANSFER_CYCLES) {
+                        return;
+                    }
+                    if (drawingFrame) {
+                        renderLine(ly);
+                    }
+                }
+                enterMode(0);
+            } else if (lineCycles >= LINE_CYCLES) {
+                lineCycles -= LINE_CYCLES;
+                nextLine();
+            } else {
+                return;
+            }
+        }
+    }
+
+    // Start mode 3 of a line with the renderer chosen for it. The pixel FIFO
+    // runs on skipped frames too, without drawing, since it decides how long
+    // mode 3 lasts.
+    private void startTransfer() {
+        lineRenderer = renderer;
+        if (renderer == Renderer.AUTO) {
+            lineRenderer = frameCount <= accurateUntilFrame ? Renderer.PIXEL_FIFO : Renderer.SCANLINE;
+        }
+        if (lineRenderer == Renderer.PIXEL_FIFO) {
+            startPixelFifo();
+        }
+    }
+
+    private void startPixelFifo() {
+        int height = spriteHeight();
+        int count = spriteIndex.getSprites(ly, height, lineSprites);
+        pixelFifo.startLine(ly, windowLine, lineSprites, count, height, drawingFrame ? frameBuffer : null);
+        transferDots = 0;
+        accurateLineCount++;
+    }
+
+    // Run the pixel FIFO up to the current cycle. Returns true once the line
+    // is finished, which ends mode 3.
+    private boolean runPixelFifo() {
+        int dots = lineCycles - OAM_SEARCH_CYCLES;
+        while (transferDots < dots) {
+            transferDots++;
+            if (pixelFifo.step()) {
+                if (pixelFifo.drewWindow()) {
+                    windowLine++;
+                }
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Move on to the next line, into or out of V-blank as needed
+    private void nextLine() {
+        int next = ly + 1;
+        if (next == LINES) {
+            next = 0;
+        }
+        setLY(next);
+        if (next == SCREEN_HEIGHT) {
+            frameCount++;
+            enterMode(1);
+            requestInterrupt(VBLANK_INTERRUPT);
+            if (drawingFrame) {
+                if (frameListener != null) {
+                    frameListener.onFrame(frameBuffer, frameCount);
+                }
+                if (frames != null && frameBuffer == frames.getBackBuffer()) {
+                    frames.publish(frameCount);
+                }
+            }
+        } else if (next < SCREEN_HEIGHT) {
+            if (next == 0) {
+                startFrame();
+            }
+            enterMode(2);
+        }
     }
 }
@@ -1,32 +1,276 @@
 package mattpvaughn.io.github.emulator;
 
+import mattpvaughn.io.github.emulator.capture.AviWriter;
+import mattpvaughn.io.github.emulator.capture.FrameCapture;
+import mattpvaughn.io.github.emulator.capture.FrameWriter;
+import mattpvaughn.io.github.emulator.capture.PngSequenceWriter;
+import mattpvaughn.io.github.emulator.capture.RawVideoWriter;
+import mattpvaughn.io.github.emulator.cartridge.RealTimeClock;
 import mattpvaughn.io.github.emulator.cpu.CPU;
 
 import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.locks.LockSupport;
 
 // Ostrich Emulator: a gameboy emulator pet project.
 // By Matt Vaughn: http://mattpvaughn.github.io/ 
+//
+// Usage: EmuMain [options] <game rom>
+// Options:
+//      --shared-state <file>: publish RAM to a memory-mapped file every frame
+//                             (see SharedStateBuffer for the layout)
+//      --boot-rom <file>: use this boot rom instead of the bundled one
+//      --skip-boot: start the game at 0x0100 without running the boot rom
+//      --access-samples <dir>: write a heatmap and CSV of sampled memory
+//                              accesses into dir every 60 frames (see
+//                              AccessSampler)
+//      --sample-rate <n>: sample one in every n accesses (default 1024)
+//      --headless: run without a window, as fast as possible. Frames are
+//                  still drawn into the frame buffer, but no AWT/Swing
+//                  objects are ever created.
+//      --scale <n>: make the window n times the size of the screen
+//                   (default 4)
+//      --frame-hashes <file>: write a hash of every frame to file, or to
+//                             standard output if file is "-" (see
+//                             FrameHasher)
+//      --frames <n>: stop after n frames
+//      --frame-skip <n>: only draw one frame in every n. The game runs
+//                        exactly the same, only the drawing is skipped.
+//      --renderer <scanline|pixel_fifo|auto>: how lines are drawn (see
+//                                             Display.Renderer, default
+//                                             auto)
+//      --record <file>: record every drawn frame in the background. A file
+//                       ending .avi is an uncompressed AVI, .rgb raw 24 bit
+//                       RGB frames, anything else a directory of PNGs (see
+//                       FrameCapture). Frames are dropped rather than slow
+//                       the game down.
+//      --screenshot <file>: save the last frame as a PNG when the run ends
+//                           (in a window, F12 also saves a screenshot)
+//      --rtc <emulated|real_time>: what the cartridge's clock (MBC3 games
+//                                  only) keeps time with (see RealTimeClock,
+//                                  default emulated)
+//
+// Games with a battery load their RAM and clock from a .sav file next to the
+// ROM (game.gb -> game.sav) if there is one, and write it back when the run
+// ends.
 
 public class EmuMain {
 
-    public static void main(String[] args) {
-        // Parse args to get game ROM file name
-        File gameRom = new File(args[0]);
+    // Cycles per second
+    private static final long CPU_CLOCK = 4194304;
 
-        Memory memory = new Memory();
-        memory.attachGameFile(gameRom);
+    public static void main(String[] args) throws IOException {
+        // Parse args to get game ROM file name and options
+        File gameRom = null;
+        String sharedStateFile = null;
+        File bootRom = null;
+        boolean skipBoot = false;
+        String accessSampleDirectory = null;
+        int sampleRate = 1024;
+        String frameHashFile = null;
+        long maxFrames = Long.MAX_VALUE;
+        int frameSkip = 1;
+        Display.Renderer renderer = Display.Renderer.AUTO;
+        boolean headless = false;
+        int scale = 4;
+        String recordFile = null;
+        String screenshotFile = null;
+        RealTimeClock.TimeSource clockSource = RealTimeClock.TimeSource.EMULATED;
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--shared-state":
+                    sharedStateFile = args[++i];
+                    break;
+                case "--boot-rom":
+                    bootRom = new File(args[++i]);
+                    break;
+                case "--skip-boot":
+                    skipBoot = true;
+                    break;
+                case "--access-samples":
+                    accessSampleDirectory = args[++i];
+                    break;
+                case "--sample-rate":
+                    sampleRate = Integer.parseInt(args[++i]);
+                    break;
+                case "--headless":
+                    headless = true;
+                    break;
+                case "--scale":
+                    scale = Integer.parseInt(args[++i]);
+                    break;
+                case "--record":
+                    recordFile = args[++i];
+                    break;
+                case "--screenshot":
+                    screenshotFile = args[++i];
+                    break;
+                case "--frame-hashes":
+                    frameHashFile = args[++i];
+                    break;
+                case "--frames":
+                    maxFrames = Long.parseLong(args[++i]);
+                    break;
+                case "--frame-skip":
+                    frameSkip = Integer.parseInt(args[++i]);
+                    break;
+                case "--renderer":
+                    renderer = Display.Renderer.valueOf(args[++i].toUpperCase());
+                    break;
+                case "--rtc":
+                    clockSource = RealTimeClock.TimeSource.valueOf(args[++i].toUpperCase());
+                    break;
+                default:
+                    gameRom = new File(args[i]);
+            }
+        }
+        if (gameRom == null) {
+            throw new IllegalArgumentException("No game ROM given");
+        }
 
-        CPU cpu = new CPU.Builder().memory(memory).build();
+        Memory memory = new Memory(bootRom);
+        memory.attachGameFile(gameRom, clockSource);
+        if (sharedStateFile != null) {
+            memory.attachSharedState(SharedStateBuffer.map(Paths.get(sharedStateFile)));
+        }
+        if (accessSampleDirectory != null) {
+            memory.attachAccessSampler(new AccessSampler(sampleRate, 60, Paths.get(accessSampleDirectory)));
+        }
 
+        CPU cpu = new CPU.Builder().memory(memory).build();
+        if (skipBoot) {
+            memory.skipBootRom();
+            cpu.skipBootRom();
+        }
+        Path saveFile = memory.getCartridge().hasBattery() ? saveFileFor(gameRom.toPath()) : null;
+        if (saveFile != null && Files.exists(saveFile)) {
+            try (InputStream in = Files.newInputStream(saveFile)) {
+                memory.loadCartridgeRam(in);
+            }
+        }
 
         Display ppu = new Display(memory);
+        ppu.setFrameSkip(frameSkip);
+        ppu.setRenderer(renderer);
+        FrameListener frameListener = null;
+        PrintStream frameHashes = null;
+        if (frameHashFile != null) {
+            frameHashes = frameHashFile.equals("-") ? System.out : new PrintStream(frameHashFile);
+            frameListener = new FrameHasher(frameHashes);
+        }
+        FrameCapture capture = null;
+        if (recordFile != null || screenshotFile != null || !headless) {
+            capture = new FrameCapture(recordFile == null ? null : openRecording(Paths.get(recordFile)), 8);
+            frameListener = frameListener == null ? capture : frameListener.andThen(capture);
+        }
+        ppu.setFrameListener(frameListener);
+
+        if (headless) {
+            runHeadless(cpu, memory, ppu, maxFrames);
+        } else {
+            runWindowed(cpu, memory, ppu, capture, maxFrames, scale, gameRom.getName());
+        }
 
-        while (cpu.hasInstruction()) {
-            // Execute instructions
-            long cycleCount = cpu.executeInstruction();
+        if (capture != null) {
+            if (screenshotFile != null) {
+                capture.screenshot(ppu.getFrameBuffer(), Paths.get(screenshotFile));
+            }
+            capture.close();
+        }
+
+        if (saveFile != null) {
+            try (OutputStream out = Files.newOutputStream(saveFile)) {
+                memory.saveCartridgeRam(out);
+            }
+        }
 
-            // Update ppu
-            ppu.update(cycleCount);
+        if (frameHashes != null) {
+            frameHashes.flush();
+            if (frameHashes != System.out) {
+                frameHashes.close();
+            }
         }
     }
+
+    // Run as fast as possible without a screen, until maxFrames frames have
+    // been drawn or the CPU runs out of instructions
+    private static void runHeadless(CPU cpu, Memory memory, Display ppu, long maxFrames) {
+        while (cpu.hasInstruction() && ppu.getFrameCount() < maxFrames) {
+            step(cpu, memory, ppu);
+        }
+    }
+
+    // Run at the gameboy's real speed, showing frames in a window, until it
+    // is closed, maxFrames frames have been drawn or the CPU runs out of
+    // instructions. The window picks frames up on its own thread, so this
+    // thread only ever waits to keep time.
+    private static void runWindowed(CPU cpu, Memory memory, Display ppu, FrameCapture capture, long maxFrames,
+                                    int scale, String title) {
+        SwingPresenter presenter = new SwingPresenter(ppu.getTripleBuffer(), scale, title);
+        presenter.setScreenshotAction(() -> capture.requestScreenshot(
+                Paths.get(String.format("screenshot-%d.png", System.currentTimeMillis()))));
+        presenter.start();
+        long frameNanos = 1_000_000_000L * Memory.FRAME_CYCLES / CPU_CLOCK;
+        long nextFrame = System.nanoTime() + frameNanos;
+        long nextFrameCycle = Memory.FRAME_CYCLES;
+        while (presenter.isOpen() && cpu.hasInstruction() && ppu.getFrameCount() < maxFrames) {
+            if (step(cpu, memory, ppu) < nextFrameCycle) {
+                continue;
+            }
+            nextFrameCycle += Memory.FRAME_CYCLES;
+            long wait = nextFrame - System.nanoTime();
+            if (wait > 0) {
+                LockSupport.parkNanos(wait);
+            } else if (wait < -frameNanos * 5) {
+                // Too far behind to catch up, so start keeping time again
+                // from now
+                nextFrame = System.nanoTime();
+            }
+            nextFrame += frameNanos;
+        }
+        presenter.stop();
+    }
+
+    // The save file of a ROM: game.gb, game.gb.gz and game.zip all save to
+    // game.sav
+    private static Path saveFileFor(Path gameRom) {
+        String name = gameRom.getFileName().toString();
+        if (name.toLowerCase().endsWith(".gz")) {
+            name = name.substring(0, name.length() - 3);
+        }
+        int dot = name.lastIndexOf('.');
+        return gameRom.resolveSibling((dot > 0 ? name.substring(0, dot) : name) + ".sav");
+    }
+
+    // Pick a writer for a recording from the file's extension
+    private static FrameWriter openRecording(Path file) throws IOException {
+        String name = file.getFileName().toString();
+        if (name.endsWith(".avi")) {
+            return new AviWriter(file);
+        } else if (name.endsWith(".rgb")) {
+            return new RawVideoWriter(file);
+        }
+        return new PngSequenceWriter(file);
+    }
+
+    // Run one instruction and let everything else catch up with it. Returns
+    // the cycle count.
+    private static long step(CPU cpu, Memory memory, Display ppu) {
+        // Execute instructions
+        long cycleCount = cpu.executeInstruction();
+
+        // Let memory catch up (DMA transfers, shared state publishing,
+        // access sampling)
+        memory.update(cycleCount);
+
+        // Update ppu
+        ppu.update(cycleCount);
+        return cycleCount;
+    }
 } 
@@ -0,0 +1,65 @@
+package mattpvaughn.io.github.emulator;
+
+import java.io.PrintStream;
+
+// Hashes every frame, for headless runs
+//
+// Two runs which produce the same stream of hashes drew the same frames, so
+// runs can be checked against a known good run, or compared with each other,
+// without storing any images. The hash is a fast non-cryptographic 64 bit
+// hash: each pixel is mixed into the state with a multiply and rotate, and
+// the result finished with murmur3's fmix64.
+//
+// If given a stream, one line is written per frame:
+//      <frame number> <hash as 16 hex digits>
+
+public class FrameHasher implements FrameListener {
+
+    private static final long SEED = 0x9E3779B97F4A7C15L;
+    private static final long MULTIPLIER = 0xC2B2AE3D27D4EB4FL;
+
+    private final PrintStream out;
+    private long lastHash;
+    private long frames = 0;
+
+    // Hash frames, writing each hash to out (which may be null)
+    public FrameHasher(PrintStream out) {
+        this.out = out;
+    }
+
+    @Override
+    public void onFrame(int[] frameBuffer, long frameNumber) {
+        lastHash = hash(frameBuffer);
+        frames++;
+        if (out != null) {
+            out.printf("%d %016x%n", frameNumber, lastHash);
+        }
+    }
+
+    public long getLastHash() {
+        return lastHash;
+    }
+
+    public long getFrameCount() {
+        return frames;
+    }
+
+    public static long hash(int[] pixels) {
+        long h = SEED ^ pixels.length;
+        int i = 0;
+        // Two pixels at a time
+        for (; i + 1 < pixels.length; i += 2) {
+            long k = (pixels[i] & 0xFFFFFFFFL) | (long) pixels[i + 1] << 32;
+            h = Long.rotateLeft(h ^ k * MULTIPLIER, 31) * SEED;
+        }
+        if (i < pixels.length) {
+            h = Long.rotateLeft(h ^ (pixels[i] & 0xFFFFFFFFL) * MULTIPLIER, 31) * SEED;
+        }
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        h *= 0xC4CEB9FE1A85EC53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
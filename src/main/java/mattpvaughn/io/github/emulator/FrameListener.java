@@ -0,0 +1,21 @@
+package mattpvaughn.io.github.emulator;
+
+// Told about every frame the display finishes, as V-blank starts.
+//
+// Parameters:
+//      frameBuffer: the finished frame, ARGB pixels row by row (see
+//                   Display.getFrameBuffer()). Only valid until the call
+//                   returns; the display starts drawing over it afterwards.
+//      frameNumber: the number of frames finished so far, counting this one
+
+public interface FrameListener {
+    void onFrame(int[] frameBuffer, long frameNumber);
+
+    // A listener which tells this one about each frame, then other
+    default FrameListener andThen(FrameListener other) {
+        return (frameBuffer, frameNumber) -> {
+            onFrame(frameBuffer, frameNumber);
+            other.onFrame(frameBuffer, frameNumber);
+        };
+    }
+}
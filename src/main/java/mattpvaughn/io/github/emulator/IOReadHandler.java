@@ -0,0 +1,8 @@
+package mattpvaughn.io.github.emulator;
+
+// Handles CPU reads from a hardware register in 0xFF00-0xFF7F. Returns the
+// value the CPU should see.
+
+public interface IOReadHandler {
+    byte onRead(int address);
+}
@@ -0,0 +1,9 @@
+package mattpvaughn.io.github.emulator;
+
+// Handles CPU writes to a hardware register in 0xFF00-0xFF7F. The handler is
+// responsible for storing the value (see Memory.setIORegister) as well as for
+// any side effects of the write.
+
+public interface IOWriteHandler {
+    void onWrite(int address, byte value);
+}
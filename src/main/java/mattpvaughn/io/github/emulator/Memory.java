@@ -1,116 +1,981 @@
 package mattpvaughn.io.github.emulator;
 
+import mattpvaughn.io.github.emulator.cartridge.Cartridge;
+import mattpvaughn.io.github.emulator.cartridge.CartridgeHeader;
+import mattpvaughn.io.github.emulator.cartridge.RealTimeClock;
+import mattpvaughn.io.github.emulator.cartridge.RomLoader;
+import mattpvaughn.io.github.emulator.cpu.CPU;
+import mattpvaughn.io.github.emulator.cpu.Util;
+
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
 
 // Memory for the ostrich GameBoy emulator
 // By Matt Vaughn: http://mattpvaughn.github.io/
+//
+// Once a game is attached, its ROM banks and cartridge RAM are mapped into
+// the same page tables as the rest of memory, so reading ROM or cartridge
+// RAM is as cheap as reading work RAM. The cartridge's bank controller only
+// runs when the game writes to the ROM area or touches cartridge registers
+// (see cartridge.Cartridge). Without a game attached, 0x0000-0x7FFF is plain
+// RAM for data and code is fetched from what loadBytesToRom() loaded.
 
-public class Memory {
-
-    // Default memory size is from 0-0xFFFF (0xFFFF + 1 bytes)
-    private byte[] memory = new byte[0xFFFF + 1];
+public final class Memory implements Bus {
 
     // The largest memory address which we are allowed to retrieve memory from.
     // When memory bank controllers are added this value should end up being
     // computed in the constructor.
     public static final int MAX_MEMORY_SIZE = 0xFFFF + 1;
 
+    // Memory is split into pages of 256 bytes. The upper byte of an address
+    // selects the page and the lower byte is the offset into that page.
+    public static final int PAGE_SHIFT = 8;
+    public static final int PAGE_SIZE = 1 << PAGE_SHIFT;
+    public static final int PAGE_COUNT = MAX_MEMORY_SIZE >> PAGE_SHIFT;
+    private static final int PAGE_MASK = PAGE_SIZE - 1;
+
+    // Backing storage for the address space 0-0xFFFF, one array per page.
+    // Every page starts out as the shared ZERO_PAGE, marked as shared, so a
+    // page only gets an array of its own (through copy-on-write) the first
+    // time something is written to it. Most of the address space is never
+    // written, so an instance only pays for the RAM its game uses.
+    private byte[][] pages = new byte[PAGE_COUNT][];
+    private static final byte[] ZERO_PAGE = new byte[PAGE_SIZE];
+
+    // Echo RAM: 0xE000-0xFDFF mirrors 0xC000-0xDDFF. Each mirror page is
+    // backed by the same array as the page it mirrors, so the fast paths
+    // handle it without any address arithmetic. Both start out as
+    // ZERO_PAGE, and copy-on-write keeps the two bound together (see
+    // unsharePage()).
+    private static final int ECHO_FIRST_PAGE = 0xE0;
+    private static final int ECHO_LAST_PAGE = 0xFD;
+    private static final int ECHO_DISTANCE = 0x20;
+
+    // 0xFEA0-0xFEFF can't be used. It shares a page with OAM, whose writes
+    // already go through writeByteSlow(), which drops writes to this range;
+    // reads see the zeroes it started with.
+    private static final int UNUSABLE = 0xFEA0;
+
+    // Pages which can be read from in place. A null entry sends reads from
+    // that page through readByteSlow().
+    private final byte[][] readMap = new byte[PAGE_COUNT][];
+
+    // Pages which can be written to in place. A null entry sends writes to
+    // that page through writeByteSlow(), which is where copy-on-write happens.
+    private final byte[][] writeMap = new byte[PAGE_COUNT][];
+
+    // Pages which are referenced by at least one snapshot, so must be copied
+    // before they are written to
+    private final boolean[] shared = new boolean[PAGE_COUNT];
+
+    // Watchpoints, one bit per address. A page only leaves the fast path
+    // while it contains at least one watched address (see readWatchedPage and
+    // writeWatchedPage), so watching the score doesn't slow down the stack.
+    // The bitmaps are only allocated once the first watchpoint is added.
+    private long[] readWatches;
+    private long[] writeWatches;
+    private final boolean[] readWatchedPage = new boolean[PAGE_COUNT];
+    private final boolean[] writeWatchedPage = new boolean[PAGE_COUNT];
+
+    // Video memory which has been written to since the renderer last looked
+    // at it. The renderer clears the bits it has dealt with.
+    //      dirtyTiles: one bit per 16 byte tile in 0x8000 to 0x97FF
+    //      dirtyTileMaps: one bit per byte of the tile maps in 0x9800 to
+    //                     0x9FFF (first map 0-1023, second map 1024-2047)
+    //      dirtyOAM: one bit per 4 byte sprite in 0xFE00 to 0xFE9F
+    public static final int TILE_COUNT = 384;
+    public static final int TILE_MAP_SIZE = 1024;
+    public static final int SPRITE_COUNT = 40;
+    private final BitSet dirtyTiles = new BitSet(TILE_COUNT);
+    private final BitSet dirtyTileMaps = new BitSet(2 * TILE_MAP_SIZE);
+    private final BitSet dirtyOAM = new BitSet(SPRITE_COUNT);
+
+    // OAM DMA transfer. Writing XX to the DMA register copies XX00-XX9F into
+    // OAM (0xFE00-0xFE9F) over the next 640 cycles. While the transfer runs
+    // the CPU can only use the 0xFF00-0xFFFF page (IO registers and HRAM);
+    // everything else reads as 0xFF and ignores writes.
+    public static final int DMA = 0xFF46;
+    private static final int DMA_CYCLES = 160 * 4;
+    private static final int OAM = 0xFE00;
+    private static final int OAM_SIZE = 160;
+    private boolean dmaActive = false;
+    private int dmaSourcePage;
+    private long dmaEndCycle;
+
+    // Hardware registers in 0xFF00-0xFF7F. Subsystems register handlers for
+    // the registers they own; a handler replaces the plain byte store/load for
+    // its register, and can use getIORegister()/setIORegister() to get at the
+    // stored value. Registers without handlers behave like normal memory.
+    public static final int IO_REGISTERS = 0xFF00;
+    public static final int IO_REGISTER_COUNT = 0x80;
+    private static final int IO_PAGE = IO_REGISTERS >>> PAGE_SHIFT;
+    private final IOReadHandler[] ioReadHandlers = new IOReadHandler[IO_REGISTER_COUNT];
+    private final IOWriteHandler[] ioWriteHandlers = new IOWriteHandler[IO_REGISTER_COUNT];
+    private boolean hasIOReadHandlers = false;
+
+    // HRAM and IE (0xFF80-0xFFFF) are plain RAM, but share a page with the
+    // IO registers, which always has handlers (the CPU's DIV at least) and so
+    // never gets onto readMap/writeMap. HRAM has fast paths of its own
+    // instead: the IO page's array while HRAM can be read or written in
+    // place, otherwise null.
+    private static final int HRAM = 0xFF80;
+    private byte[] hramReadPage;
+    private byte[] hramWritePage;
+
+    // Number of reads and writes which went through readByteSlow() or
+    // writeByteSlow()
+    private long slowAccessCount = 0;
+
+    // Optional copy of RAM shared with other processes, republished every
+    // frame
+    static final int FRAME_CYCLES = 70224;
+    private SharedStateBuffer sharedState;
+    private long nextPublishCycle;
+
+    // Optional sampling of reads and writes. The countdown is decremented on
+    // every access and an access is handed to the sampler when it reaches
+    // zero, so when nothing is attached the cost is one decrement.
+    private AccessSampler accessSampler;
+    private int sampleCountdown = Integer.MAX_VALUE;
+
+    // Run after the contents of memory have been replaced wholesale (a
+    // snapshot restored, the post-boot state installed), so subsystems can
+    // reload any state they derive from memory
+    private final List<Runnable> restoreListeners = new ArrayList<>();
+
+    // Told about every access to a watched address
+    private WatchpointListener watchpointListener;
+
+    // The CPU which is currently running from this memory. Used to report
+    // where and when a watchpoint was hit.
+    private CPU cpu;
+
     // The largest ROM address which we can retrieve memory from
     public static final int MAX_ROM_SIZE = 0xFFFF + 1;
 
-    // Default boot rom location
-    // TODO: load this in as a relative file
-    private final String bootRomLoc = "/home/matt/Development/ostrich-emulator/src/main/java/mattpvaughn/io/github/emulator/rom/boot.rom";
+    // The boot rom bundled with the emulator, relative to this class on the
+    // classpath
+    private static final String BUNDLED_BOOT_ROM = "rom/boot.rom";
+
+    // The size of the boot rom. While it is mapped it sits on top of the first
+    // 0x100 bytes of the game ROM.
+    public static final int BOOT_ROM_SIZE = 0x100;
+
+    // Writing a non-zero value to this register unmaps the boot rom
+    public static final int BOOT_ROM_DISABLE = 0xFF50;
+
+    private byte[] bootRom;
+    private boolean bootRomMapped = true;
+
+    // The cartridge ROM occupies 0x0000-0x7FFF, and cartridge RAM
+    // 0xA000-0xBFFF
+    private static final int ROM_PAGES = 0x8000 >>> PAGE_SHIFT;
+    private static final int CARTRIDGE_RAM_PAGES = 0x2000 >>> PAGE_SHIFT;
+
+    // The smallest game ROM is two 16 KB banks. Shorter images, and images
+    // which end part way through a bank, are padded out with zeroes.
+    private static final int MIN_GAME_ROM_SIZE = 2 * Cartridge.ROM_BANK_PAGES << PAGE_SHIFT;
+
+    // Game ROM, one array per page. The ROM and boot rom are shared between
+    // instances (every Memory running the same game references the same
+    // image, see RomLoader.loadShared()), so they are copied before
+    // loadBytesToRom() changes them.
+    private byte[][] rom = EMPTY_ROM;
+    private boolean romShared = true;
+    private boolean bootRomShared = false;
+    private static final byte[][] EMPTY_ROM = new byte[MAX_ROM_SIZE >>> PAGE_SHIFT][];
+
+    static {
+        Arrays.fill(EMPTY_ROM, ZERO_PAGE);
+    }
 
-    // The size of the boot rom, indicates where the game rom will be loaded
-    private final int bootRomSize = 0xFF;
+    // The bank controller of the attached game, or null if there isn't one
+    private Cartridge cartridge;
 
-    // Boot and game ROMs
-    private byte[] rom = new byte[0xFFFF];
+    // Bumped whenever what the CPU would fetch from a page might have moved
+    // to a different array (page remapped, boot rom unmapped, new ROM), so
+    // the CPU knows its cached code page is out of date. See getCodePage().
+    private int codeMapVersion = 0;
 
+    // What instruction fetches see while a DMA transfer has the bus
+    private static final byte[] OPEN_BUS_PAGE = new byte[PAGE_SIZE];
+
+    static {
+        Arrays.fill(OPEN_BUS_PAGE, (byte) 0xFF);
+    }
+
+    // The header of the attached game, or null if there isn't one
+    private CartridgeHeader cartridgeHeader;
+
+    // Use the boot rom bundled with the emulator
     public Memory() {
-        this.loadBootRom();
+        this(null);
+    }
+
+    // Use the boot rom in a file, or the bundled one if bootRomFile is null
+    public Memory(File bootRomFile) {
+        Arrays.fill(pages, ZERO_PAGE);
+        Arrays.fill(shared, true);
+        mapAllPages();
+        markVideoMemoryDirty();
+        registerIOHandler(DMA, null, (address, value) -> {
+            setIORegister(address, value);
+            startDMA(Util.unsignedByteToInt(value) << 8);
+        });
+        registerIOHandler(BOOT_ROM_DISABLE, null, (address, value) -> {
+            setIORegister(address, value);
+            if (value != 0) {
+                bootRomMapped = false;
+                mapPage(0);
+            }
+        });
+        this.loadBootRom(bootRomFile);
+    }
+
+    // Let the memory know which CPU is using it
+    @Override
+    public void attachCPU(CPU cpu) {
+        this.cpu = cpu;
+    }
+
+    // A frozen copy of the address space 0-0xFFFF. Snapshots hold references
+    // to the pages of the Memory they were taken from rather than copies, so
+    // they are cheap to take and only cost as much as the pages written to
+    // after they were taken.
+    public static final class Snapshot {
+        private final byte[][] pages;
+        private final Cartridge.Snapshot cartridge;
+        private final boolean bootRomMapped;
+
+        // A DMA transfer which was running, where it copies from and the
+        // CPU cycle it finishes on
+        private final boolean dmaActive;
+        private final int dmaSourcePage;
+        private final long dmaEndCycle;
+
+        private Snapshot(byte[][] pages, Cartridge.Snapshot cartridge, boolean bootRomMapped,
+                         boolean dmaActive, int dmaSourcePage, long dmaEndCycle) {
+            this.pages = pages;
+            this.cartridge = cartridge;
+            this.bootRomMapped = bootRomMapped;
+            this.dmaActive = dmaActive;
+            this.dmaSourcePage = dmaSourcePage;
+            this.dmaEndCycle = dmaEndCycle;
+        }
+    }
+
+    // Take a snapshot of memory, along with the attached cartridge's bank
+    // registers and RAM, whether the boot rom is mapped and any DMA transfer
+    // in progress. No bytes are copied here: every page is marked as
+    // shared, and the first write to a shared page copies just that page
+    // (see writeByteSlow)
+    public Snapshot snapshot() {
+        Cartridge.Snapshot cartridgeSnapshot = cartridge == null ? null : cartridge.snapshot();
+        markAllPagesShared();
+        return new Snapshot(pages.clone(), cartridgeSnapshot, bootRomMapped,
+                dmaActive, dmaSourcePage, dmaEndCycle);
+    }
+
+    // Restore memory to the state it was in when the snapshot was taken. The
+    // snapshot can be restored again later (or into another Memory running
+    // the same game), as its pages stay shared and are never written to
+    public void restore(Snapshot snapshot) {
+        pages = snapshot.pages.clone();
+        if (cartridge != null && snapshot.cartridge != null) {
+            cartridge.restore(snapshot.cartridge);
+        }
+        bootRomMapped = snapshot.bootRomMapped;
+        dmaActive = snapshot.dmaActive;
+        dmaSourcePage = snapshot.dmaSourcePage;
+        dmaEndCycle = snapshot.dmaEndCycle;
+        // Remaps every page, which also blocks or unblocks them for DMA
+        markAllPagesShared();
+        markVideoMemoryDirty();
+        notifyRestoreListeners();
+    }
+
+    private void notifyRestoreListeners() {
+        for (Runnable listener : restoreListeners) {
+            listener.run();
+        }
+    }
+
+    public void addRestoreListener(Runnable listener) {
+        restoreListeners.add(listener);
+    }
+
+    private void markAllPagesShared() {
+        for (int i = 0; i < PAGE_COUNT; i++) {
+            shared[i] = true;
+        }
+        mapAllPages();
+    }
+
+    // Work out whether accesses to a page can go straight to its backing
+    // array or need to go through readByteSlow()/writeByteSlow()
+    private void mapPage(int index) {
+        updatePageMaps(index);
+        codeMapVersion++;
+    }
+
+    // mapPage() without bumping the code map version, for callers which
+    // remap many pages at a time
+    private void updatePageMaps(int index) {
+        byte[] page = backingPage(index);
+        boolean blocked = page == null || isBlockedByDMA(index);
+        boolean io = index == IO_PAGE;
+        boolean cartridgePage = isCartridgePage(index);
+        boolean copyOnWrite = cartridgePage
+                ? index >= ROM_PAGES && cartridge.isRamPageShared(index) : shared[index];
+        readMap[index] = blocked || readWatchedPage[index]
+                || (io && hasIOReadHandlers) ? null : page;
+        writeMap[index] = blocked || copyOnWrite || writeWatchedPage[index]
+                || isVideoPage(index) || io || (cartridgePage && index < ROM_PAGES) ? null : page;
+        if (io) {
+            hramReadPage = blocked || readWatchedPage[index] ? null : page;
+            hramWritePage = blocked || shared[index] || writeWatchedPage[index] ? null : page;
+        }
+    }
+
+    // The array which holds the bytes of a page right now, or null if
+    // accesses to it have to be handled by the cartridge
+    private byte[] backingPage(int index) {
+        if (cartridge != null) {
+            if (index < ROM_PAGES) {
+                return bootRomMapped && index == 0 ? bootRom : rom[cartridge.getRomPage(index)];
+            }
+            if (index >= Cartridge.RAM_FIRST_PAGE && index < Cartridge.RAM_FIRST_PAGE + CARTRIDGE_RAM_PAGES) {
+                return cartridge.getRamPage(index);
+            }
+        }
+        return pages[index];
+    }
+
+    // Whether a page belongs to the cartridge rather than to pages[]
+    private boolean isCartridgePage(int index) {
+        return cartridge != null && (index < ROM_PAGES
+                || (index >= Cartridge.RAM_FIRST_PAGE && index < Cartridge.RAM_FIRST_PAGE + CARTRIDGE_RAM_PAGES));
+    }
+
+    // Remap every page the cartridge controls, e.g. after its state has
+    // been restored
+    private void mapCartridgePages() {
+        for (int i = 0; i < ROM_PAGES; i++) {
+            updatePageMaps(i);
+        }
+        for (int i = 0; i < CARTRIDGE_RAM_PAGES; i++) {
+            updatePageMaps(Cartridge.RAM_FIRST_PAGE + i);
+        }
+        codeMapVersion++;
+    }
+
+    private boolean isBlockedByDMA(int index) {
+        return dmaActive && index != IO_PAGE;
+    }
+
+    // Install read and/or write handlers for a hardware register in
+    // 0xFF00-0xFF7F. Either handler can be null to keep the default
+    // behaviour.
+    @Override
+    public void registerIOHandler(int address, IOReadHandler readHandler, IOWriteHandler writeHandler) {
+        if (address < IO_REGISTERS || address >= IO_REGISTERS + IO_REGISTER_COUNT) {
+            throw new IllegalArgumentException("Not an IO register: " + address);
+        }
+        ioReadHandlers[address - IO_REGISTERS] = readHandler;
+        ioWriteHandlers[address - IO_REGISTERS] = writeHandler;
+        hasIOReadHandlers = false;
+        for (IOReadHandler handler : ioReadHandlers) {
+            hasIOReadHandlers |= handler != null;
+        }
+        mapPage(IO_PAGE);
+    }
+
+    // The array backing a page of internal memory (VRAM, WRAM, OAM, HRAM),
+    // for subsystems which read a lot of it at once, like the PPU. It must
+    // not be written to: it may be shared with a snapshot or other pages.
+    // Ask again rather than keeping it, as copy-on-write swaps the arrays.
+    public byte[] getPage(int index) {
+        return pages[index];
+    }
+
+    // Read the stored value of a register without going through its handler
+    public byte getIORegister(int address) {
+        return pages[IO_PAGE][address & PAGE_MASK];
+    }
+
+    // Store the value of a register without going through its handler
+    public void setIORegister(int address, byte value) {
+        if (shared[IO_PAGE]) {
+            unsharePage(IO_PAGE);
+        }
+        pages[IO_PAGE][address & PAGE_MASK] = value;
+    }
+
+    // Writes to VRAM and OAM always take the slow path so they can be
+    // tracked for the renderer
+    private static boolean isVideoPage(int index) {
+        return (index >= 0x80 && index < 0xA0) || index == 0xFE;
+    }
+
+    private void mapAllPages() {
+        for (int i = 0; i < PAGE_COUNT; i++) {
+            updatePageMaps(i);
+        }
+        codeMapVersion++;
+    }
+
+    // Report all reads from and/or writes to an address to the watchpoint
+    // listener
+    public void addWatchpoint(int address, boolean onRead, boolean onWrite) {
+        if (address >= MAX_MEMORY_SIZE || address < 0) {
+            throw new IllegalArgumentException("Address requested is out of bounds! " + address + " out of " + MAX_MEMORY_SIZE);
+        }
+        if (readWatches == null) {
+            readWatches = new long[MAX_MEMORY_SIZE / Long.SIZE];
+            writeWatches = new long[MAX_MEMORY_SIZE / Long.SIZE];
+        }
+        if (onRead) {
+            readWatches[address >>> 6] |= 1L << address;
+        }
+        if (onWrite) {
+            writeWatches[address >>> 6] |= 1L << address;
+        }
+        updateWatchedPage(address >>> PAGE_SHIFT);
+    }
+
+    // Stop watching reads from and writes to an address
+    public void removeWatchpoint(int address) {
+        if (address >= MAX_MEMORY_SIZE || address < 0) {
+            throw new IllegalArgumentException("Address requested is out of bounds! " + address + " out of " + MAX_MEMORY_SIZE);
+        }
+        if (readWatches == null) {
+            return;
+        }
+        readWatches[address >>> 6] &= ~(1L << address);
+        writeWatches[address >>> 6] &= ~(1L << address);
+        updateWatchedPage(address >>> PAGE_SHIFT);
+    }
+
+    public void setWatchpointListener(WatchpointListener watchpointListener) {
+        this.watchpointListener = watchpointListener;
+    }
+
+    // A page is watched if any of the bits covering its addresses are set.
+    // Echo RAM and the RAM it mirrors share their bytes, so a watchpoint on
+    // either takes both pages off the fast path.
+    private void updateWatchedPage(int index) {
+        int mirror = mirrorOf(index);
+        boolean read = isPageWatched(readWatches, index) || (mirror >= 0 && isPageWatched(readWatches, mirror));
+        boolean write = isPageWatched(writeWatches, index) || (mirror >= 0 && isPageWatched(writeWatches, mirror));
+        readWatchedPage[index] = read;
+        writeWatchedPage[index] = write;
+        mapPage(index);
+        if (mirror >= 0) {
+            readWatchedPage[mirror] = read;
+            writeWatchedPage[mirror] = write;
+            mapPage(mirror);
+        }
+    }
+
+    private static boolean isPageWatched(long[] watches, int index) {
+        int first = (index << PAGE_SHIFT) >>> 6;
+        for (int i = first; i < first + (PAGE_SIZE >>> 6); i++) {
+            if (watches[i] != 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Flag the tile, tile map entry or sprite containing an address as
+    // changed
+    private void markVideoMemoryDirty(int address) {
+        if (address < 0x9800) {
+            dirtyTiles.set((address - 0x8000) >>> 4);
+        } else if (address < 0xA000) {
+            dirtyTileMaps.set(address - 0x9800);
+        } else if (address < 0xFEA0) {
+            dirtyOAM.set((address - 0xFE00) >>> 2);
+        }
+    }
+
+    // Flag all of video memory as changed, e.g. after restoring a snapshot
+    private void markVideoMemoryDirty() {
+        dirtyTiles.set(0, TILE_COUNT);
+        dirtyTileMaps.set(0, 2 * TILE_MAP_SIZE);
+        dirtyOAM.set(0, SPRITE_COUNT);
+    }
+
+    // Tiles written to since their bits were last cleared
+    public BitSet getDirtyTiles() {
+        return dirtyTiles;
+    }
+
+    // Tile map entries written to since their bits were last cleared
+    public BitSet getDirtyTileMaps() {
+        return dirtyTileMaps;
+    }
+
+    // Sprites written to since their bits were last cleared
+    public BitSet getDirtyOAM() {
+        return dirtyOAM;
+    }
+
+    private static boolean isWatched(long[] watches, int address) {
+        return watches != null && (watches[address >>> 6] & (1L << address)) != 0;
+    }
+
+    // The watched address an access to address hits: address itself, or the
+    // byte it shares through echo RAM, so a watchpoint on 0xC123 also sees
+    // accesses to 0xE123. Returns -1 if neither is watched.
+    private static int watchedAddress(long[] watches, int address) {
+        if (isWatched(watches, address)) {
+            return address;
+        }
+        int mirror = mirrorOf(address >>> PAGE_SHIFT);
+        if (mirror >= 0 && isWatched(watches, mirror << PAGE_SHIFT | (address & PAGE_MASK))) {
+            return mirror << PAGE_SHIFT | (address & PAGE_MASK);
+        }
+        return -1;
+    }
+
+    // Pass a watchpoint hit on to the listener, or log it if nobody is
+    // listening
+    private void hitWatchpoint(int address, byte value, boolean isWrite) {
+        int pc = cpu == null ? -1 : cpu.getInstructionAddress();
+        long cycle = cpu == null ? -1 : cpu.getCycles();
+        if (watchpointListener != null) {
+            watchpointListener.onWatchpoint(address, value, isWrite, pc, cycle);
+        } else {
+            Utils.log(String.format("Watchpoint %s %04X = %02X at PC %04X, cycle %d",
+                    isWrite ? "write" : "read", address, value, pc, cycle));
+        }
     }
 
-    // Returns a byte of ROM at a specified address
-    // TODO- User ROM should be stored in address 0x0150-0x8000
+    // Returns a byte of ROM at a specified address. With a game attached
+    // that is whatever its controller has mapped there (0x0000-0x7FFF), so
+    // it agrees with readByte() after a bank switch.
     public byte readRom(int address) {
-        if (address > rom.length || address < 0) {
-            throw new IllegalArgumentException("Address requested is out of ROM bounds! " + address + " out of " + MAX_MEMORY_SIZE);
+        int size = cartridge == null ? rom.length << PAGE_SHIFT : ROM_PAGES << PAGE_SHIFT;
+        if (address >= size || address < 0) {
+            throw new IllegalArgumentException("Address requested is out of ROM bounds! " + address + " out of " + size);
         }
-        return rom[address];
+        int index = address >>> PAGE_SHIFT;
+        byte[] page = cartridge == null ? (bootRomMapped && index == 0 ? bootRom : rom[index]) : backingPage(index);
+        return page[address & PAGE_MASK];
+    }
+
+    // Instruction fetch. The CPU asks for the array which backs a page of
+    // code once, then reads opcodes and operands straight out of it until it
+    // leaves the page or getCodeMapVersion() changes. Code below 0x8000
+    // comes from the ROM (or the boot rom), code above it from RAM, and
+    // nothing can be fetched but 0xFF while a DMA transfer is running outside
+    // HRAM.
+    @Override
+    public byte[] getCodePage(int index) {
+        if (isBlockedByDMA(index)) {
+            return OPEN_BUS_PAGE;
+        }
+        if (cartridge == null && index < ROM_PAGES) {
+            return bootRomMapped && index == 0 ? bootRom : rom[index];
+        }
+        byte[] page = backingPage(index);
+        return page != null ? page : OPEN_BUS_PAGE;
+    }
+
+    @Override
+    public int getCodeMapVersion() {
+        return codeMapVersion;
+    }
+
+    // Number of reads and writes which couldn't go straight to an array, for
+    // tests and profiling
+    public long getSlowAccessCount() {
+        return slowAccessCount;
     }
 
-    // Write a byte of ROM to a specific address
+    public boolean isBootRomMapped() {
+        return bootRomMapped;
+    }
+
+    // Put memory into the state the boot rom leaves it in, so that a game can
+    // be started at 0x0100 without running the boot rom. Values are those of
+    // the original DMG. The CPU needs the same treatment, see
+    // CPU.skipBootRom().
+    public void skipBootRom() {
+        for (int[] register : POST_BOOT_IO_REGISTERS) {
+            setIORegister(register[0], (byte) register[1]);
+        }
+        writeByte(0xFFFF, (byte) 0x00);
+        bootRomMapped = false;
+        mapPage(0);
+        notifyRestoreListeners();
+    }
+
+    // {address, value} of each IO register after the boot rom has run
+    private static final int[][] POST_BOOT_IO_REGISTERS = {
+            {0xFF00, 0xCF}, {0xFF01, 0x00}, {0xFF02, 0x7E}, {0xFF05, 0x00},
+            {0xFF06, 0x00}, {0xFF07, 0xF8}, {0xFF0F, 0xE1}, {0xFF10, 0x80},
+            {0xFF11, 0xBF}, {0xFF12, 0xF3}, {0xFF13, 0xFF}, {0xFF14, 0xBF},
+            {0xFF16, 0x3F}, {0xFF17, 0x00}, {0xFF18, 0xFF}, {0xFF19, 0xBF},
+            {0xFF1A, 0x7F}, {0xFF1B, 0xFF}, {0xFF1C, 0x9F}, {0xFF1D, 0xFF},
+            {0xFF1E, 0xBF}, {0xFF20, 0xFF}, {0xFF21, 0x00}, {0xFF22, 0x00},
+            {0xFF23, 0xBF}, {0xFF24, 0x77}, {0xFF25, 0xF3}, {0xFF26, 0xF1},
+            {0xFF40, 0x91}, {0xFF41, 0x85}, {0xFF42, 0x00}, {0xFF43, 0x00},
+            {0xFF44, 0x00}, {0xFF45, 0x00}, {0xFF46, 0xFF}, {0xFF47, 0xFC},
+            {0xFF48, 0xFF}, {0xFF49, 0xFF}, {0xFF4A, 0x00}, {0xFF4B, 0x00},
+            {0xFF50, 0x01},
+    };
+
+    // Write a byte of memory to a specific address
+    @Override
     public void writeByte(int address, byte value) {
-        if (address > MAX_MEMORY_SIZE || address < 0) {
+        if (address >= MAX_MEMORY_SIZE || address < 0) {
             throw new IllegalArgumentException("Address requested is out of bounds! " + address + " out of " + MAX_MEMORY_SIZE);
         }
-        this.memory[address] = value;
+        if (--sampleCountdown == 0) {
+            sampleAccess(address, true);
+        }
+        byte[] page = writeMap[address >>> PAGE_SHIFT];
+        if (page != null) {
+            page[address & PAGE_MASK] = value;
+            return;
+        }
+        if (address >= HRAM && hramWritePage != null) {
+            hramWritePage[address & PAGE_MASK] = value;
+            return;
+        }
+        writeByteSlow(address, value);
+    }
+
+    // Writes which can't go straight into a page end up here
+    private void writeByteSlow(int address, byte value) {
+        slowAccessCount++;
+        int index = address >>> PAGE_SHIFT;
+        if (isBlockedByDMA(index)) {
+            return;
+        }
+        if (address >= UNUSABLE && address < IO_REGISTERS) {
+            return;
+        }
+        if (isCartridgePage(index)) {
+            writeCartridge(address, value);
+            int watched = watchedAddress(writeWatches, address);
+            if (watched >= 0) {
+                hitWatchpoint(watched, value, true);
+            }
+            return;
+        }
+        if (shared[index]) {
+            unsharePage(index);
+        }
+        if (isVideoPage(index) && pages[index][address & PAGE_MASK] != value) {
+            markVideoMemoryDirty(address);
+        }
+        IOWriteHandler ioWriteHandler = address < IO_REGISTERS + IO_REGISTER_COUNT && index == IO_PAGE
+                ? ioWriteHandlers[address - IO_REGISTERS] : null;
+        if (ioWriteHandler != null) {
+            ioWriteHandler.onWrite(address, value);
+        } else {
+            pages[index][address & PAGE_MASK] = value;
+        }
+        int watched = watchedAddress(writeWatches, address);
+        if (watched >= 0) {
+            hitWatchpoint(watched, value, true);
+        }
+    }
+
+    // Writes to the ROM area go to the bank controller; writes to cartridge
+    // RAM go to the mapped RAM page (copied first if a snapshot shares it),
+    // or to the controller if there isn't one
+    private void writeCartridge(int address, byte value) {
+        int index = address >>> PAGE_SHIFT;
+        if (index < ROM_PAGES) {
+            // Only remap the areas whose bank actually changed. A bank's
+            // pages are consecutive in the ROM image and RAM, so comparing
+            // the first page of each area is enough.
+            int lowBank = cartridge.getRomPage(0);
+            int highBank = cartridge.getRomPage(Cartridge.ROM_BANK_PAGES);
+            byte[] ramBank = cartridge.getRamPage(Cartridge.RAM_FIRST_PAGE);
+            cartridge.writeControl(address, value, getCycles());
+            boolean changed = false;
+            if (cartridge.getRomPage(0) != lowBank) {
+                for (int i = 0; i < Cartridge.ROM_BANK_PAGES; i++) {
+                    updatePageMaps(i);
+                }
+                changed = true;
+            }
+            if (cartridge.getRomPage(Cartridge.ROM_BANK_PAGES) != highBank) {
+                for (int i = Cartridge.ROM_BANK_PAGES; i < ROM_PAGES; i++) {
+                    updatePageMaps(i);
+                }
+                changed = true;
+            }
+            if (cartridge.getRamPage(Cartridge.RAM_FIRST_PAGE) != ramBank) {
+                for (int i = 0; i < CARTRIDGE_RAM_PAGES; i++) {
+                    updatePageMaps(Cartridge.RAM_FIRST_PAGE + i);
+                }
+                changed = true;
+            }
+            if (changed) {
+                codeMapVersion++;
+            }
+            return;
+        }
+        if (cartridge.getRamPage(index) != null && cartridge.isRamPageShared(index)) {
+            cartridge.unshareRamPage(index);
+            mapPage(index);
+        }
+        byte[] page = cartridge.getRamPage(index);
+        if (page != null) {
+            page[address & PAGE_MASK] = value;
+        } else {
+            cartridge.writeExternal(address, value, getCycles());
+        }
+    }
+
+    // The CPU's cycle count at the start of the instruction being run, or 0
+    // with no CPU attached
+    long getCycles() {
+        return cpu == null ? 0 : cpu.getCycles();
+    }
+
+    // Give a page its own copy of its bytes so that it can be written to
+    // without changing any snapshot which references it
+    private void unsharePage(int index) {
+        byte[] copy = pages[index].clone();
+        pages[index] = copy;
+        shared[index] = false;
+        mapPage(index);
+        int mirror = mirrorOf(index);
+        if (mirror >= 0) {
+            pages[mirror] = copy;
+            shared[mirror] = false;
+            mapPage(mirror);
+        }
+    }
+
+    // Returns the page which shares its backing array with a page (echo RAM
+    // and the RAM it mirrors), or -1 if it has none
+    private static int mirrorOf(int index) {
+        if (index >= ECHO_FIRST_PAGE && index <= ECHO_LAST_PAGE) {
+            return index - ECHO_DISTANCE;
+        }
+        if (index >= ECHO_FIRST_PAGE - ECHO_DISTANCE && index <= ECHO_LAST_PAGE - ECHO_DISTANCE) {
+            return index + ECHO_DISTANCE;
+        }
+        return -1;
     }
 
+    @Override
     public byte readByte(int address) {
-        if (address > MAX_MEMORY_SIZE || address < 0) {
+        if (address >= MAX_MEMORY_SIZE || address < 0) {
             throw new IllegalArgumentException("Address requested is out of bounds! " + address + " out of " + MAX_MEMORY_SIZE);
         }
-        return this.memory[address];
+        if (--sampleCountdown == 0) {
+            sampleAccess(address, false);
+        }
+        byte[] page = readMap[address >>> PAGE_SHIFT];
+        if (page != null) {
+            return page[address & PAGE_MASK];
+        }
+        if (address >= HRAM && hramReadPage != null) {
+            return hramReadPage[address & PAGE_MASK];
+        }
+        return readByteSlow(address);
+    }
+
+    // Reads which can't come straight from a page end up here
+    private byte readByteSlow(int address) {
+        slowAccessCount++;
+        if (isBlockedByDMA(address >>> PAGE_SHIFT)) {
+            return (byte) 0xFF;
+        }
+        IOReadHandler ioReadHandler = address >= IO_REGISTERS && address < IO_REGISTERS + IO_REGISTER_COUNT
+                ? ioReadHandlers[address - IO_REGISTERS] : null;
+        byte value;
+        if (ioReadHandler != null) {
+            value = ioReadHandler.onRead(address);
+        } else {
+            byte[] page = backingPage(address >>> PAGE_SHIFT);
+            value = page != null ? page[address & PAGE_MASK] : cartridge.readExternal(address, getCycles());
+        }
+        int watched = watchedAddress(readWatches, address);
+        if (watched >= 0) {
+            hitWatchpoint(watched, value, false);
+        }
+        return value;
     }
 
-    // Loads the boot rom into memory
-    // The boot rom path should be located at the relative path rom/boot.rom
-    private void loadBootRom() {
-        File file = new File(bootRomLoc);
-        // Load into the rom byte[] in memory
-        loadByteArray(rom, readFileToByteArray(file), 0);
+    // Loads the boot rom from a file, or uses the bundled one (shared by
+    // every instance) if file is null
+    private void loadBootRom(File file) {
+        if (file == null) {
+            bootRom = getBundledBootRom();
+            bootRomShared = true;
+            return;
+        }
+        byte[] bytes = readFileToByteArray(file);
+        if (bytes == null || bytes.length < BOOT_ROM_SIZE) {
+            throw new IllegalStateException("Boot rom must be at least " + BOOT_ROM_SIZE + " bytes");
+        }
+        bootRom = Arrays.copyOf(bytes, BOOT_ROM_SIZE);
+        bootRomShared = false;
+    }
+
+    // The boot rom bundled with the emulator, read from the classpath the
+    // first time it is needed
+    private static byte[] bundledBootRom;
+
+    private static synchronized byte[] getBundledBootRom() {
+        if (bundledBootRom == null) {
+            byte[] bytes;
+            try (InputStream in = Memory.class.getResourceAsStream(BUNDLED_BOOT_ROM)) {
+                if (in == null) {
+                    throw new IllegalStateException("Boot rom missing from the classpath: " + BUNDLED_BOOT_ROM);
+                }
+                bytes = readStreamToByteArray(in);
+            } catch (IOException io) {
+                throw new IllegalStateException("Unable to read the bundled boot rom", io);
+            }
+            if (bytes.length < BOOT_ROM_SIZE) {
+                throw new IllegalStateException("Boot rom must be at least " + BOOT_ROM_SIZE + " bytes");
+            }
+            bundledBootRom = Arrays.copyOf(bytes, BOOT_ROM_SIZE);
+        }
+        return bundledBootRom;
     }
 
-    // Load an array of bytes into a large byte array
-    // Parameters:
-    //      writeTo: the array to which the bytes will be written
+    // Loads an array of bytes into ROM starting at location (addr). Bytes
+    // below 0x100 go into the boot rom while it is mapped, so that what is
+    // loaded is what readRom() returns.
     //      bytes: the bytes to write into writeTo
     //      addr: the address in writeTo the first byte should be written
-    private void loadByteArray(byte[] writeTo, byte[] bytes, int addr) {
+    public void loadBytesToRom(byte[] bytes, int addr) {
         if (addr < 0) {
             throw new IllegalArgumentException("Attempted to write to invalid memory location: " + addr);
         }
-        if (bytes.length + addr > writeTo.length) {
-            throw new IllegalArgumentException("Attempted to write past the end of main memory!");
+        if (bytes.length + addr > rom.length << PAGE_SHIFT) {
+            throw new IllegalArgumentException("Attempted to write past the end of ROM!");
+        }
+        if (romShared) {
+            byte[][] copy = new byte[rom.length][];
+            for (int i = 0; i < rom.length; i++) {
+                copy[i] = rom[i].clone();
+            }
+            rom = copy;
+            romShared = false;
+            mapAllPages();
         }
         for (int i = 0; i < bytes.length; i++) {
-            writeTo[addr + i] = bytes[i];
+            rom[(addr + i) >>> PAGE_SHIFT][(addr + i) & PAGE_MASK] = bytes[i];
+        }
+        if (bootRomMapped && addr < BOOT_ROM_SIZE) {
+            if (bootRomShared) {
+                bootRom = bootRom.clone();
+                bootRomShared = false;
+                mapPage(0);
+            }
+            System.arraycopy(bytes, 0, bootRom, addr, Math.min(bytes.length, BOOT_ROM_SIZE - addr));
         }
     }
 
-    // Loads an array of bytes into ROM starting at location (addr)
-    //      bytes: the bytes to write into writeTo
-    //      addr: the address in writeTo the first byte should be written
-    public void loadBytesToRom(byte[] bytes, int addr) {
-        loadByteArray(rom, bytes, addr);
+    // Begin a DMA transfer of 160 bytes from sourceAddress (XX00) into OAM.
+    // The copy itself happens in one go once the transfer's 640 cycles are
+    // up, see update()
+    public void startDMA(int sourceAddress) {
+        if ((sourceAddress & PAGE_MASK) != 0 || sourceAddress < 0 || sourceAddress >= MAX_MEMORY_SIZE) {
+            throw new IllegalArgumentException("DMA source must be the start of a page: " + sourceAddress);
+        }
+        dmaSourcePage = sourceAddress >>> PAGE_SHIFT;
+        dmaEndCycle = (cpu == null ? 0 : cpu.getCycles()) + DMA_CYCLES;
+        if (!dmaActive) {
+            dmaActive = true;
+            mapAllPages();
+        }
     }
 
-    // Load 160 bytes from an address in RAM into OAM (0xFE00 to 0xFE9F). Used
-    // for DMA transfer
-    public void loadToOAM(int address) {
-        //
-        loadByteArray(memory, readBytes(memory, address, 160), 0xFE00);
+    public boolean isDMAActive() {
+        return dmaActive;
     }
 
-    // Load a subset of bytes from a byte[], given a start address and the
-    // number of bytes you want
-    private byte[] readBytes(byte[] source, int start, int length) {
-        if (start < 0 || start + length >= source.length) {
-            throw new IndexOutOfBoundsException();
+    // Catch memory up with the CPU. Called after every instruction, so has
+    // to be cheap when there is nothing to do
+    public void update(long cycleCount) {
+        if (dmaActive && cycleCount >= dmaEndCycle) {
+            finishDMA();
         }
-        // Iterate through source array, copying bytes from [start] to [start +
-        // length]
-        byte[] retBytes = new byte[length];
-        for (int i = start; i < start + length; i++) {
-            retBytes[i - start] = source[i];
+        if (sharedState != null && cycleCount >= nextPublishCycle) {
+            publishSharedState(cycleCount);
+            nextPublishCycle = cycleCount + FRAME_CYCLES;
         }
+        if (accessSampler != null) {
+            accessSampler.update(cycleCount);
+        }
+    }
 
-        return retBytes;
+    // Start sampling reads and writes. Pass null to stop.
+    public void attachAccessSampler(AccessSampler accessSampler) {
+        this.accessSampler = accessSampler;
+        this.sampleCountdown = accessSampler == null ? Integer.MAX_VALUE : accessSampler.nextInterval();
+    }
+
+    private void sampleAccess(int address, boolean isWrite) {
+        if (accessSampler == null) {
+            sampleCountdown = Integer.MAX_VALUE;
+            return;
+        }
+        accessSampler.record(address, isWrite);
+        sampleCountdown = accessSampler.nextInterval();
+    }
+
+    // Start copying VRAM, WRAM, OAM and HRAM into a shared buffer once per
+    // frame. The pages themselves stay on the Java heap so that the CPU's
+    // accesses and snapshots stay cheap; a frame's worth of copying is about
+    // 16 KB. Pass null to stop.
+    public void attachSharedState(SharedStateBuffer sharedState) {
+        this.sharedState = sharedState;
+        this.nextPublishCycle = 0;
+    }
+
+    // Copy the shared regions of memory into the shared buffer right now
+    public void publishSharedState(long cycleCount) {
+        sharedState.beginPublish();
+        for (int[] region : SharedStateBuffer.REGIONS) {
+            for (int i = 0; i < region[1]; i++) {
+                sharedState.putPage(region[2] + i * PAGE_SIZE, pages[region[0] + i]);
+            }
+        }
+        sharedState.endPublish(cycleCount);
+    }
+
+    // Copy the DMA source page into OAM and give the CPU the bus back. The
+    // source is a whole page (XX00-XX9F), so this is a single array copy.
+    // ROM and cartridge RAM are copied from whichever bank is mapped; with no
+    // RAM page mapped (RAM disabled, or the MBC3 clock selected) the
+    // transfer reads 0xFF like the CPU would.
+    private void finishDMA() {
+        int oamIndex = OAM >>> PAGE_SHIFT;
+        if (shared[oamIndex]) {
+            unsharePage(oamIndex);
+        }
+        byte[] source = backingPage(dmaSourcePage);
+        if (source != null) {
+            System.arraycopy(source, 0, pages[oamIndex], OAM & PAGE_MASK, OAM_SIZE);
+        } else {
+            Arrays.fill(pages[oamIndex], OAM & PAGE_MASK, (OAM & PAGE_MASK) + OAM_SIZE, (byte) 0xFF);
+        }
+        dirtyOAM.set(0, SPRITE_COUNT);
+        dmaActive = false;
+        mapAllPages();
     }
 
     // Reads the bytes of a file into a byte array
@@ -125,13 +990,74 @@ public class Memory {
         return null;
     }
 
+    // Reads everything left in a stream into a byte array
+    private static byte[] readStreamToByteArray(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+        return out.toByteArray();
+    }
+
     // Attach a game ROM file to the memory. This will be important for normal
     // game playing, but don't include it in the constructor because the emulator
     // can run solely on the boot ROM itself (nice to not need to load a whole
-    // game for testing)
+    // game for testing). The game starts at address 0, underneath the boot
+    // rom, and the boot rom hands over to it at 0x0100.
     public void attachGameFile(File gameRom) {
-        // This should be pretty efficient because the ROMs are small, but it
-        // might be worth looking into reading ROMs as buffers
-        this.loadByteArray(rom, readFileToByteArray(gameRom), bootRomSize);
+        attachGameFile(gameRom, RealTimeClock.TimeSource.EMULATED);
+    }
+
+    // Attach a game ROM file, with a cartridge clock (if the game has one)
+    // which keeps time from clockSource
+    public void attachGameFile(File gameRom, RealTimeClock.TimeSource clockSource) {
+        // The ROM is read (or decompressed, for .gz and .zip files) straight
+        // into pages which every instance running the same game shares, see
+        // RomLoader. It is kept at its real size so that the controller
+        // mirrors banks past the end of it, as the hardware does.
+        byte[][] image;
+        try {
+            image = RomLoader.loadShared(gameRom.toPath(), MIN_GAME_ROM_SIZE, PAGE_SIZE);
+        } catch (IOException io) {
+            throw new IllegalArgumentException("Unable to load game ROM: " + gameRom, io);
+        }
+        int partialPages = image.length % Cartridge.ROM_BANK_PAGES;
+        if (partialPages != 0) {
+            int length = image.length;
+            image = Arrays.copyOf(image, length + Cartridge.ROM_BANK_PAGES - partialPages);
+            Arrays.fill(image, length, image.length, ZERO_PAGE);
+        }
+        this.rom = image;
+        this.romShared = true;
+        byte[] header = new byte[CartridgeHeader.HEADER_END];
+        for (int i = 0; i < header.length; i++) {
+            header[i] = rom[i >>> PAGE_SHIFT][i & PAGE_MASK];
+        }
+        this.cartridgeHeader = CartridgeHeader.parse(header);
+        this.cartridge = Cartridge.create(cartridgeHeader, rom.length / Cartridge.ROM_BANK_PAGES, clockSource);
+        mapAllPages();
+    }
+
+    // Load the attached game's battery backed RAM and clock from a save
+    // file's contents (see Cartridge.loadRam())
+    public void loadCartridgeRam(InputStream in) throws IOException {
+        cartridge.loadRam(in, getCycles());
+        mapCartridgePages();
+    }
+
+    // Write the attached game's RAM and clock in the save file format
+    public void saveCartridgeRam(OutputStream out) throws IOException {
+        cartridge.saveRam(out, getCycles());
+    }
+
+    public CartridgeHeader getCartridgeHeader() {
+        return cartridgeHeader;
+    }
+
+    // The bank controller of the attached game, or null if there isn't one
+    public Cartridge getCartridge() {
+        return cartridge;
     }
 }
@@ -0,0 +1,417 @@
+package mattpvaughn.io.github.emulator;
+
+import mattpvaughn.io.github.emulator.cpu.Util;
+
+// The accurate renderer for the ostrich GameBoy emulator: a dot by dot model
+// of the original gameboy's pixel FIFO.
+//
+// During mode 3 the background fetcher reads a tile number from the map, then
+// the low and high bytes of one row of that tile, two dots for each step. It
+// pushes the 8 pixels into the background FIFO as soon as the FIFO is empty.
+// Every dot one pixel is shifted out of the FIFO onto the screen, mixed with
+// the sprite FIFO. So each register is read when the hardware reads it:
+//      SCX, SCY and the map/tileset bits of LCDC: at each tile fetch
+//      BGP, OBP0, OBP1 and the BG/sprite enable bits: as each pixel is shifted
+//                                                     out
+//      WX and WY: at every pixel, to see if the window has been reached
+//
+// Mode 3 lasts as long as this takes. A plain line takes 172 dots. Add the
+// SCX % 8 pixels thrown away at the start of the line, 6 dots for the
+// fetcher to restart at the window, and 6-11 for each sprite fetched: 6 for
+// the fetch itself, plus up to 5 waiting for the background fetcher to
+// finish the tile the sprite's left edge is in (see spritePenalty()).
+//
+// Display keeps the timing of the other modes and picks the renderer for
+// each line (see Display.Renderer).
+
+class PixelFifo {
+
+    private static final int LCDC = 0xFF40;
+    private static final int SCY = 0xFF42;
+    private static final int SCX = 0xFF43;
+    private static final int WY = 0xFF4A;
+    private static final int WX = 0xFF4B;
+
+    // Steps of the background fetcher. Each takes two dots, except PUSH,
+    // which tries again every dot until the FIFO is empty.
+    private static final int GET_TILE = 0;
+    private static final int GET_DATA_LOW = 1;
+    private static final int GET_DATA_HIGH = 2;
+    private static final int PUSH = 3;
+    private static final int STEP_DOTS = 2;
+
+    // The first tile of every line is fetched twice. The first fetch is
+    // thrown away.
+    private static final int STARTUP_DOTS = 6;
+
+    // Dots taken to fetch a sprite's tile once the background fetcher has
+    // stopped
+    private static final int SPRITE_FETCH_DOTS = 6;
+
+    // Most dots spent waiting for the background fetcher before a sprite
+    // fetch, when the sprite starts at the left edge of a tile
+    private static final int MAX_SPRITE_STALL = 5;
+
+    // Bits of a sprite FIFO entry above the color number
+    private static final int SPRITE_PALETTE_1 = 0x04;
+    private static final int SPRITE_BEHIND_BG = 0x08;
+
+    private final Memory memory;
+    private final int[] bgPalette;
+    private final int[] objPalette0;
+    private final int[] objPalette1;
+
+    // Color of a pixel with the background turned off
+    private final int blank;
+
+    // The pages of VRAM, fetched from memory at the start of each line
+    private final byte[][] vram = new byte[0x20][];
+
+    // Background FIFO of color numbers, as a ring buffer
+    private final int[] bgFifo = new int[16];
+    private int bgHead;
+    private int bgSize;
+
+    // Sprite FIFO, as a ring buffer. Entry i is mixed with entry i of the
+    // background FIFO. An entry is a color number (0 is transparent) plus the
+    // SPRITE_* bits.
+    private final int[] spriteFifo = new int[8];
+    private int spriteHead;
+    private int spriteSize;
+
+    // The line being drawn, the frame buffer and where the line starts in it,
+    // the next x to draw, and how many pixels are left to throw away (SCX % 8
+    // at the start of the line, or 7 - WX for a window starting off the left
+    // edge)
+    private int line;
+    private int[] frameBuffer;
+    private int offset;
+    private int x;
+    private int discard;
+
+    // Background fetcher: its step, dots spent on the step, the tile column
+    // it is up to, and what it has fetched so far
+    private int startupDots;
+    private int fetcherStep;
+    private int fetcherDots;
+    private int fetcherX;
+    private int tileNumber;
+    private int dataLow;
+    private int dataHigh;
+
+    // Window: the line of it to draw, whether the fetcher has switched to it
+    private int windowLine;
+    private boolean fetchingWindow;
+
+    // Sprites on this line, as OAM indexes in priority order, a bit for each
+    // one fetched so far, and the one being fetched (-1 when none is)
+    private byte[] oam;
+    private final int[] sprites = new int[SpriteIndex.SPRITES_PER_LINE];
+    private int spriteCount;
+    private int fetchedSprites;
+    private int sprite = -1;
+    private int spriteFetchDots;
+    private int spritePenalty;
+    private int spriteHeight;
+
+    // The background or window tile the last sprite fetch waited on. Only
+    // the first sprite in a tile waits for the fetcher.
+    private int stalledTile;
+
+    PixelFifo(Memory memory, int[] bgPalette, int[] objPalette0, int[] objPalette1, int blank) {
+        this.memory = memory;
+        this.bgPalette = bgPalette;
+        this.objPalette0 = objPalette0;
+        this.objPalette1 = objPalette1;
+        this.blank = blank;
+    }
+
+    // Get ready to draw a line at the start of its mode 3.
+    //
+    // Parameters:
+    //      line: the line to draw
+    //      windowLine: the line of the window to draw if it is reached
+    //      lineSprites: OAM indexes of the sprites on this line, highest
+    //                   priority first (only the first spriteCount are used)
+    //      spriteHeight: 8 or 16
+    //      frameBuffer: the frame to draw the line into, or null to run the
+    //                   line, taking exactly as long, without drawing it
+    void startLine(int line, int windowLine, int[] lineSprites, int spriteCount, int spriteHeight,
+                   int[] frameBuffer) {
+        for (int i = 0; i < vram.length; i++) {
+            vram[i] = memory.getPage(0x80 + i);
+        }
+        this.oam = memory.getPage(0xFE);
+        this.line = line;
+        this.windowLine = windowLine;
+        this.offset = line * Display.SCREEN_WIDTH;
+        this.frameBuffer = frameBuffer;
+        System.arraycopy(lineSprites, 0, sprites, 0, spriteCount);
+        this.spriteCount = spriteCount;
+        this.spriteHeight = spriteHeight;
+        fetchedSprites = 0;
+        sprite = -1;
+        stalledTile = Integer.MIN_VALUE;
+        x = 0;
+        discard = memory.getIORegister(SCX) & 7;
+        bgHead = 0;
+        bgSize = 0;
+        spriteHead = 0;
+        spriteSize = 0;
+        startupDots = STARTUP_DOTS;
+        fetcherStep = GET_TILE;
+        fetcherDots = 0;
+        fetcherX = 0;
+        fetchingWindow = false;
+    }
+
+    // Whether the window was drawn on the line, so the next line of it is
+    // due on the next line that shows it
+    boolean drewWindow() {
+        return fetchingWindow;
+    }
+
+    // Run one dot of mode 3. Returns true once the last pixel of the line has
+    // been drawn, which is when mode 3 ends.
+    boolean step() {
+        if (startupDots > 0) {
+            startupDots--;
+            return false;
+        }
+
+        // Everything else waits while a sprite's tile is fetched
+        if (sprite >= 0) {
+            if (++spriteFetchDots == spritePenalty) {
+                loadSprite(sprite);
+                sprite = -1;
+            }
+            return false;
+        }
+
+        byte lcdc = memory.getIORegister(LCDC);
+        if (!fetchingWindow && discard == 0 && isWindowReached(lcdc)) {
+            startWindow();
+        }
+
+        stepFetcher(lcdc);
+
+        // A sprite starting here stops the fetcher and the pixels until its
+        // tile is fetched. This dot, which would have shifted the pixel out,
+        // is the first of the penalty.
+        if (discard == 0 && bgSize > 0 && Util.checkBit(lcdc, (byte) 1)) {
+            int next = nextSprite();
+            if (next >= 0) {
+                fetchedSprites |= 1 << next;
+                sprite = sprites[next];
+                spritePenalty = spritePenalty(sprite);
+                spriteFetchDots = 1;
+                return false;
+            }
+        }
+
+        return shiftPixel(lcdc);
+    }
+
+    private boolean isWindowReached(byte lcdc) {
+        return Util.checkBit(lcdc, (byte) 5)
+                && line >= Util.unsignedByteToInt(memory.getIORegister(WY))
+                && x + 7 >= Util.unsignedByteToInt(memory.getIORegister(WX));
+    }
+
+    // Dots a sprite holds up the line for. The fetch takes 6, after waiting
+    // for the background fetcher to finish the tile the sprite's leftmost
+    // pixel is in: 5 dots for a sprite starting at the left of a tile, one
+    // fewer for each pixel further right, down to none. Later sprites in a
+    // tile which has already been waited on only pay for the fetch, and a
+    // sprite at X 0 always costs 11.
+    private int spritePenalty(int index) {
+        int spriteX = oam[index * 4 + 1] & 0xFF;
+        if (spriteX == 0) {
+            return SPRITE_FETCH_DOTS + MAX_SPRITE_STALL;
+        }
+        // Where the leftmost pixel is in the background or window
+        int pixel = spriteX - 8 + (fetchingWindow
+                ? 7 - Util.unsignedByteToInt(memory.getIORegister(WX))
+                : Util.unsignedByteToInt(memory.getIORegister(SCX)));
+        int tile = pixel >> 3;
+        if (tile == stalledTile) {
+            return SPRITE_FETCH_DOTS;
+        }
+        stalledTile = tile;
+        return SPRITE_FETCH_DOTS + Math.max(MAX_SPRITE_STALL - (pixel & 7), 0);
+    }
+
+    // Throw away the background pixels and start fetching the window from
+    // its first tile
+    private void startWindow() {
+        fetchingWindow = true;
+        stalledTile = Integer.MIN_VALUE;
+        bgSize = 0;
+        fetcherStep = GET_TILE;
+        fetcherDots = 0;
+        fetcherX = 0;
+        // A window at WX 0-6 starts off the left edge of the screen
+        if (x == 0) {
+            discard = Math.max(7 - Util.unsignedByteToInt(memory.getIORegister(WX)), 0);
+        }
+    }
+
+    private void stepFetcher(byte lcdc) {
+        if (fetcherStep == PUSH) {
+            if (bgSize == 0) {
+                pushTile();
+                fetcherStep = GET_TILE;
+                fetcherDots = 0;
+            }
+            return;
+        }
+        if (++fetcherDots < STEP_DOTS) {
+            return;
+        }
+        fetcherDots = 0;
+        switch (fetcherStep) {
+            case GET_TILE:
+                tileNumber = fetchTileNumber(lcdc);
+                break;
+            case GET_DATA_LOW:
+                dataLow = readVRAM(tileDataAddress(lcdc)) & 0xFF;
+                break;
+            case GET_DATA_HIGH:
+                dataHigh = readVRAM(tileDataAddress(lcdc) + 1) & 0xFF;
+                break;
+        }
+        fetcherStep++;
+    }
+
+    private int fetchTileNumber(byte lcdc) {
+        int map;
+        int mapX;
+        int mapY;
+        if (fetchingWindow) {
+            map = Util.checkBit(lcdc, (byte) 6) ? 0x9C00 : 0x9800;
+            mapX = fetcherX;
+            mapY = windowLine >>> 3;
+        } else {
+            map = Util.checkBit(lcdc, (byte) 3) ? 0x9C00 : 0x9800;
+            mapX = (Util.unsignedByteToInt(memory.getIORegister(SCX)) >>> 3) + fetcherX;
+            mapY = backgroundY() >>> 3;
+        }
+        return readVRAM(map + (mapY & 31) * 32 + (mapX & 31)) & 0xFF;
+    }
+
+    // The address of the row of the fetched tile being drawn
+    private int tileDataAddress(byte lcdc) {
+        int row = fetchingWindow ? windowLine & 7 : backgroundY() & 7;
+        int tile = TileCache.getTileIndex(tileNumber, Util.checkBit(lcdc, (byte) 4));
+        return 0x8000 + tile * 16 + row * 2;
+    }
+
+    private int backgroundY() {
+        return (line + Util.unsignedByteToInt(memory.getIORegister(SCY))) & 0xFF;
+    }
+
+    private void pushTile() {
+        for (int bit = 7; bit >= 0; bit--) {
+            bgFifo[(bgHead + bgSize++) & 15] = (dataLow >>> bit & 1) | (dataHigh >>> bit & 1) << 1;
+        }
+        fetcherX++;
+    }
+
+    // The first sprite not yet fetched which starts at x, or -1. Sprites
+    // hanging off the left edge all start at 0, the furthest left first.
+    private int nextSprite() {
+        int next = -1;
+        int nextX = Integer.MAX_VALUE;
+        for (int i = 0; i < spriteCount; i++) {
+            if ((fetchedSprites & 1 << i) != 0) {
+                continue;
+            }
+            int spriteX = oam[sprites[i] * 4 + 1] & 0xFF;
+            if (Math.max(spriteX - 8, 0) == x && spriteX < nextX) {
+                next = i;
+                nextX = spriteX;
+            }
+        }
+        return next;
+    }
+
+    // Fetch a sprite's row and mix it into the sprite FIFO. Pixels already
+    // there belong to sprites with priority, so only transparent ones are
+    // replaced.
+    private void loadSprite(int index) {
+        int entry = index * 4;
+        int spriteX = oam[entry + 1] & 0xFF;
+        int tile = oam[entry + 2] & 0xFF;
+        byte attributes = oam[entry + 3];
+        int row = line - ((oam[entry] & 0xFF) - 16);
+        if (Util.checkBit(attributes, (byte) 6)) {
+            row = spriteHeight - 1 - row;
+        }
+        if (spriteHeight == 16) {
+            tile &= 0xFE;
+        }
+        int address = 0x8000 + tile * 16 + row * 2;
+        int low = readVRAM(address) & 0xFF;
+        int high = readVRAM(address + 1) & 0xFF;
+        boolean flipX = Util.checkBit(attributes, (byte) 5);
+        int flags = (Util.checkBit(attributes, (byte) 4) ? SPRITE_PALETTE_1 : 0)
+                | (Util.checkBit(attributes, (byte) 7) ? SPRITE_BEHIND_BG : 0);
+
+        while (spriteSize < 8) {
+            spriteFifo[(spriteHead + spriteSize++) & 7] = 0;
+        }
+        // Pixels of a sprite off the left edge are already past
+        for (int pixel = Math.max(8 - spriteX, 0); pixel < 8; pixel++) {
+            int bit = flipX ? pixel : 7 - pixel;
+            int colorNumber = (low >>> bit & 1) | (high >>> bit & 1) << 1;
+            int slot = (spriteHead + pixel - Math.max(8 - spriteX, 0)) & 7;
+            if (colorNumber != 0 && (spriteFifo[slot] & 0b11) == 0) {
+                spriteFifo[slot] = colorNumber | flags;
+            }
+        }
+    }
+
+    // Shift one pixel out of the FIFOs onto the screen. Returns true when it
+    // was the last pixel of the line.
+    private boolean shiftPixel(byte lcdc) {
+        if (bgSize == 0) {
+            return false;
+        }
+        int colorNumber = bgFifo[bgHead];
+        bgHead = (bgHead + 1) & 15;
+        bgSize--;
+        int spritePixel = 0;
+        if (spriteSize > 0) {
+            spritePixel = spriteFifo[spriteHead];
+            spriteHead = (spriteHead + 1) & 7;
+            spriteSize--;
+        }
+        if (discard > 0) {
+            discard--;
+            return false;
+        }
+
+        // On the original gameboy bit 0 turns off the window as well as the
+        // background, leaving white
+        int color;
+        if (Util.checkBit(lcdc, (byte) 0)) {
+            color = bgPalette[colorNumber];
+        } else {
+            colorNumber = 0;
+            color = blank;
+        }
+        int spriteColor = spritePixel & 0b11;
+        if (spriteColor != 0 && Util.checkBit(lcdc, (byte) 1)
+                && ((spritePixel & SPRITE_BEHIND_BG) == 0 || colorNumber == 0)) {
+            color = ((spritePixel & SPRITE_PALETTE_1) != 0 ? objPalette1 : objPalette0)[spriteColor];
+        }
+        if (frameBuffer != null) {
+            frameBuffer[offset + x] = color;
+        }
+        return ++x == Display.SCREEN_WIDTH;
+    }
+
+    private byte readVRAM(int address) {
+        return vram[(address - 0x8000) >>> 8][address & 0xFF];
+    }
+}
@@ -0,0 +1,153 @@
+package mattpvaughn.io.github.emulator;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+// A copy of the emulator's RAM kept in a direct or memory-mapped buffer, so
+// that other tools (bots, RAM viewers, metrics scrapers) can read live game
+// state without going through the JVM. Memory copies its RAM into the buffer
+// once per frame, see Memory.attachSharedState().
+//
+// Layout (all header fields are little-endian):
+//      0x0000  4 bytes:        magic number "OSTR"
+//      0x0004  4 bytes:        layout version (currently 1)
+//      0x0008  8 bytes:        sequence number. Odd while a frame is being
+//                              copied in, even once the copy is complete.
+//      0x0010  8 bytes:        number of frames published
+//      0x0018  8 bytes:        CPU cycle count when the frame was published
+//      0x0020 to 0x00FF:       reserved
+//      0x0100 to 0x20FF:       VRAM (0x8000-0x9FFF)
+//      0x2100 to 0x40FF:       WRAM (0xC000-0xDFFF)
+//      0x4100 to 0x41FF:       OAM (0xFE00-0xFEFF)
+//      0x4200 to 0x42FF:       IO registers, HRAM and IE (0xFF00-0xFFFF)
+//
+// Readers should read the sequence number, copy what they need, then read
+// the sequence number again. If the two differ, or the first was odd, the
+// copy raced with a publish and should be retried. Both reads of the
+// sequence number must be acquire loads (or plain loads followed by a load
+// fence, e.g. std::atomic_thread_fence(std::memory_order_acquire) in C++),
+// otherwise the reader's own compiler or CPU can move the copy outside of
+// them.
+//
+// The writer's side of that: the odd sequence number is fenced off from the
+// copy before it, and the copy from the even sequence number after it, with
+// store fences. Plain ByteBuffer puts carry no ordering of their own, so
+// without them the JIT could move the copy across the sequence numbers and a
+// reader could see a torn frame under a matching even number.
+
+public class SharedStateBuffer {
+
+    public static final int MAGIC = 0x5254534F; // "OSTR"
+    public static final int VERSION = 1;
+
+    public static final int SEQUENCE_OFFSET = 0x0008;
+    public static final int FRAME_OFFSET = 0x0010;
+    public static final int CYCLES_OFFSET = 0x0018;
+    public static final int VRAM_OFFSET = 0x0100;
+    public static final int WRAM_OFFSET = 0x2100;
+    public static final int OAM_OFFSET = 0x4100;
+    public static final int HRAM_OFFSET = 0x4200;
+    public static final int SIZE = 0x4300;
+
+    // The regions of the address space copied into the buffer, as
+    // {first page, number of pages, offset in the buffer}
+    static final int[][] REGIONS = {
+            {0x80, 0x20, VRAM_OFFSET},
+            {0xC0, 0x20, WRAM_OFFSET},
+            {0xFE, 0x01, OAM_OFFSET},
+            {0xFF, 0x01, HRAM_OFFSET},
+    };
+
+    // Keeps stores before it from being reordered with stores after it.
+    // Java 8 has no public API for this, so it is looked up at runtime:
+    // VarHandle.storeStoreFence() from Java 9 on, or Unsafe.storeFence().
+    private static final MethodHandle STORE_FENCE = findStoreFence();
+
+    private final ByteBuffer buffer;
+
+    private long sequence = 0;
+    private long frames = 0;
+
+    private SharedStateBuffer(ByteBuffer buffer) {
+        this.buffer = buffer.order(ByteOrder.LITTLE_ENDIAN);
+        this.buffer.putInt(0, MAGIC);
+        this.buffer.putInt(4, VERSION);
+        this.buffer.putLong(SEQUENCE_OFFSET, sequence);
+    }
+
+    // A buffer outside of the Java heap, for tools running in the same
+    // process (e.g. through JNI)
+    public static SharedStateBuffer allocateDirect() {
+        return new SharedStateBuffer(ByteBuffer.allocateDirect(SIZE));
+    }
+
+    // A buffer backed by a memory-mapped file, for tools running in other
+    // processes. The file is created if it doesn't exist.
+    public static SharedStateBuffer map(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_WRITE, 0, SIZE);
+            return new SharedStateBuffer(mapped);
+        }
+    }
+
+    public ByteBuffer getBuffer() {
+        return buffer;
+    }
+
+    // Mark the buffer as being written to
+    void beginPublish() {
+        buffer.putLong(SEQUENCE_OFFSET, ++sequence);
+        storeFence();
+    }
+
+    // Copy a page of memory into the buffer at an offset
+    void putPage(int offset, byte[] page) {
+        buffer.position(offset);
+        buffer.put(page);
+    }
+
+    // Mark the buffer as consistent again
+    void endPublish(long cycleCount) {
+        buffer.putLong(FRAME_OFFSET, ++frames);
+        buffer.putLong(CYCLES_OFFSET, cycleCount);
+        storeFence();
+        buffer.putLong(SEQUENCE_OFFSET, ++sequence);
+    }
+
+    private static void storeFence() {
+        try {
+            STORE_FENCE.invokeExact();
+        } catch (Throwable t) {
+            throw new IllegalStateException("Store fence failed", t);
+        }
+    }
+
+    private static MethodHandle findStoreFence() {
+        MethodType type = MethodType.methodType(void.class);
+        try {
+            return MethodHandles.publicLookup().findStatic(
+                    Class.forName("java.lang.invoke.VarHandle"), "storeStoreFence", type);
+        } catch (ReflectiveOperationException e) {
+            // Java 8, fall back to Unsafe
+        }
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            return MethodHandles.publicLookup().findVirtual(unsafeClass, "storeFence", type)
+                    .bindTo(theUnsafe.get(null));
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("No store fence available to publish shared state with", e);
+        }
+    }
+}
@@ -0,0 +1,135 @@
+package mattpvaughn.io.github.emulator;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+// An index of which sprites are on which line, for the ostrich GameBoy
+// emulator
+//
+// Instead of searching all 40 OAM entries on every line, each line keeps a
+// bitmap of the sprites which cover it (bit i for OAM entry i). Only sprites
+// which memory reports as changed, by a write or a DMA transfer, are moved
+// between lines (see Memory.getDirtyOAM()). Everything is rebuilt when the
+// sprite height changes.
+//
+// A line shows the first 10 sprites in the table which cover it, whatever
+// their x. Those are sorted into priority order (smallest x first, then table
+// order) the first time the line is asked for after one of them changed.
+
+public class SpriteIndex {
+
+    // The most sprites drawn on one line
+    public static final int SPRITES_PER_LINE = 10;
+
+    private static final int LINES = Display.SCREEN_HEIGHT;
+
+    private final Memory memory;
+
+    // Sprites covering each line, one bit per OAM entry
+    private final long[] lineMasks = new long[LINES];
+
+    // The sprites shown on each line, highest priority first, and how many
+    // there are. Lines marked stale are sorted again when next asked for.
+    private final byte[] lineSprites = new byte[LINES * SPRITES_PER_LINE];
+    private final byte[] lineCounts = new byte[LINES];
+    private final BitSet staleLines = new BitSet(LINES);
+
+    // The first line each sprite covers, as it was when indexed
+    private final int[] spriteTops = new int[Memory.SPRITE_COUNT];
+
+    // The sprite height the index was built for (0 before it is built)
+    private int height = 0;
+
+    public SpriteIndex(Memory memory) {
+        this.memory = memory;
+    }
+
+    // Put the OAM indexes of the sprites shown on a line into sprites,
+    // highest priority first, and return how many there are.
+    //
+    // Parameters:
+    //      line: a visible line, 0-143
+    //      height: the sprite height, 8 or 16
+    //      sprites: filled with up to SPRITES_PER_LINE indexes
+    public int getSprites(int line, int height, int[] sprites) {
+        update(height);
+        if (staleLines.get(line)) {
+            sortLine(line);
+            staleLines.clear(line);
+        }
+        int count = lineCounts[line];
+        int start = line * SPRITES_PER_LINE;
+        for (int i = 0; i < count; i++) {
+            sprites[i] = lineSprites[start + i];
+        }
+        return count;
+    }
+
+    // Move every sprite which changed since the last update
+    private void update(int height) {
+        BitSet dirty = memory.getDirtyOAM();
+        if (height != this.height) {
+            Arrays.fill(lineMasks, 0);
+            staleLines.set(0, LINES);
+            this.height = height;
+            byte[] oam = memory.getPage(0xFE);
+            for (int sprite = 0; sprite < Memory.SPRITE_COUNT; sprite++) {
+                spriteTops[sprite] = (oam[sprite * 4] & 0xFF) - 16;
+                setLines(sprite, spriteTops[sprite], true);
+            }
+            dirty.clear();
+            return;
+        }
+        if (dirty.isEmpty()) {
+            return;
+        }
+        byte[] oam = memory.getPage(0xFE);
+        for (int sprite = dirty.nextSetBit(0); sprite >= 0; sprite = dirty.nextSetBit(sprite + 1)) {
+            // Even if it hasn't moved, its x or tile may have changed, and x
+            // decides its priority on the lines it covers
+            setLines(sprite, spriteTops[sprite], false);
+            spriteTops[sprite] = (oam[sprite * 4] & 0xFF) - 16;
+            setLines(sprite, spriteTops[sprite], true);
+        }
+        dirty.clear();
+    }
+
+    // Add a sprite to, or remove it from, the lines from top down its height
+    private void setLines(int sprite, int top, boolean covers) {
+        int first = Math.max(top, 0);
+        int last = Math.min(top + height, LINES);
+        long bit = 1L << sprite;
+        for (int line = first; line < last; line++) {
+            if (covers) {
+                lineMasks[line] |= bit;
+            } else {
+                lineMasks[line] &= ~bit;
+            }
+        }
+        if (first < last) {
+            staleLines.set(first, last);
+        }
+    }
+
+    // Take the first sprites in the table covering a line and sort them by
+    // priority: smallest x first, then table order
+    private void sortLine(int line) {
+        byte[] oam = memory.getPage(0xFE);
+        int start = line * SPRITES_PER_LINE;
+        int count = 0;
+        long mask = lineMasks[line];
+        while (mask != 0 && count < SPRITES_PER_LINE) {
+            int sprite = Long.numberOfTrailingZeros(mask);
+            mask &= mask - 1;
+            int x = oam[sprite * 4 + 1] & 0xFF;
+            int j = start + count - 1;
+            while (j >= start && (oam[lineSprites[j] * 4 + 1] & 0xFF) > x) {
+                lineSprites[j + 1] = lineSprites[j];
+                j--;
+            }
+            lineSprites[j + 1] = (byte) sprite;
+            count++;
+        }
+        lineCounts[line] = (byte) count;
+    }
+}
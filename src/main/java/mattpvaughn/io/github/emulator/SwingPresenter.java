@@ -0,0 +1,259 @@
+package mattpvaughn.io.github.emulator;
+
+import javax.swing.JFrame;
+import javax.swing.SwingUtilities;
+import java.awt.Canvas;
+import java.awt.Color;
+import java.awt.Dimension;
+import java.awt.Graphics2D;
+import java.awt.GraphicsEnvironment;
+import java.awt.RenderingHints;
+import java.awt.event.KeyAdapter;
+import java.awt.event.KeyEvent;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
+import java.awt.image.BufferStrategy;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DirectColorModel;
+import java.awt.image.Raster;
+import java.awt.image.VolatileImage;
+import java.awt.image.WritableRaster;
+import java.lang.reflect.InvocationTargetException;
+import java.util.concurrent.locks.LockSupport;
+
+// A window showing the screen, for the ostrich GameBoy emulator
+//
+// Runs on its own thread, picking up each finished frame from the display's
+// TripleBuffer (see TripleBuffer) without ever holding up emulation. Each of
+// the three frame buffers is wrapped once in a BufferedImage sharing its
+// DataBufferInt, so nothing is copied or allocated per frame on the Java
+// side. A frame is uploaded into a 160x144 VolatileImage and then scaled up
+// from there through the canvas's BufferStrategy, so the scaling is done by
+// the graphics pipeline.
+//
+// The screen is drawn at the largest whole number scale which fits the
+// window, centered. F1 shows or hides an overlay with the frames presented
+// per second and the time between frames. F12 runs the screenshot action, if
+// one is set.
+
+public class SwingPresenter implements Runnable {
+
+    private static final int WIDTH = Display.SCREEN_WIDTH;
+    private static final int HEIGHT = Display.SCREEN_HEIGHT;
+
+    // How long to wait before looking for a new frame again
+    private static final long IDLE_NANOS = 1_000_000;
+
+    // How often the overlay's numbers are worked out again
+    private static final long STATS_NANOS = 500_000_000;
+
+    private final TripleBuffer frames;
+    private final int scale;
+    private final String title;
+    private JFrame window;
+    private Canvas canvas;
+    private BufferStrategy strategy;
+    private VolatileImage screen;
+
+    // The frame buffers seen so far, and an image sharing each one's pixels
+    private final int[][] pixelArrays = new int[3][];
+    private final BufferedImage[] images = new BufferedImage[3];
+
+    private volatile boolean running;
+    private volatile boolean overlayVisible = true;
+    private volatile Runnable screenshotAction;
+    private Thread thread;
+
+    // Overlay: frames and time between them since the numbers were last
+    // worked out, and the text showing them
+    private long statsStart;
+    private long lastPresent;
+    private int statsFrames;
+    private long longestFrame;
+    private String overlayText = "";
+
+    // A window at scale times the size of the screen. Nothing is created
+    // until start() is called.
+    public SwingPresenter(TripleBuffer frames, int scale, String title) {
+        if (scale < 1) {
+            throw new IllegalArgumentException("Scale must be at least 1: " + scale);
+        }
+        this.frames = frames;
+        this.scale = scale;
+        this.title = title;
+    }
+
+    // Show the window and start presenting frames on a new thread
+    public void start() {
+        if (GraphicsEnvironment.isHeadless()) {
+            throw new IllegalStateException("No screen to open a window on (try --headless)");
+        }
+        try {
+            SwingUtilities.invokeAndWait(this::createWindow);
+        } catch (InterruptedException | InvocationTargetException e) {
+            throw new IllegalStateException("Couldn't open the window", e);
+        }
+        running = true;
+        thread = new Thread(this, "presenter");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    // Build and show the window. Runs on the event dispatch thread.
+    private void createWindow() {
+        window = new JFrame(title);
+        canvas = new Canvas();
+        canvas.setPreferredSize(new Dimension(WIDTH * scale, HEIGHT * scale));
+        canvas.setBackground(Color.BLACK);
+        canvas.setIgnoreRepaint(true);
+        canvas.addKeyListener(new KeyAdapter() {
+            @Override
+            public void keyPressed(KeyEvent e) {
+                if (e.getKeyCode() == KeyEvent.VK_F1) {
+                    overlayVisible = !overlayVisible;
+                } else if (e.getKeyCode() == KeyEvent.VK_F12 && screenshotAction != null) {
+                    screenshotAction.run();
+                }
+            }
+        });
+        window.setIgnoreRepaint(true);
+        window.setDefaultCloseOperation(JFrame.DISPOSE_ON_CLOSE);
+        window.addWindowListener(new WindowAdapter() {
+            @Override
+            public void windowClosing(WindowEvent e) {
+                running = false;
+            }
+        });
+        window.add(canvas);
+        window.pack();
+        window.setLocationRelativeTo(null);
+        window.setVisible(true);
+        canvas.createBufferStrategy(2);
+        strategy = canvas.getBufferStrategy();
+        canvas.requestFocus();
+    }
+
+    // Stop presenting and close the window
+    public void stop() {
+        running = false;
+        if (thread != null && thread != Thread.currentThread()) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (window != null) {
+            SwingUtilities.invokeLater(window::dispose);
+        }
+    }
+
+    // False once the window has been closed
+    public boolean isOpen() {
+        return running;
+    }
+
+    public void setOverlayVisible(boolean overlayVisible) {
+        this.overlayVisible = overlayVisible;
+    }
+
+    // Run on the event dispatch thread whenever F12 is pressed
+    public void setScreenshotAction(Runnable screenshotAction) {
+        this.screenshotAction = screenshotAction;
+    }
+
+    @Override
+    public void run() {
+        statsStart = System.nanoTime();
+        while (running) {
+            if (!frames.hasNewFrame()) {
+                LockSupport.parkNanos(IDLE_NANOS);
+                continue;
+            }
+            present(frames.acquire());
+            updateStats();
+        }
+    }
+
+    // The image sharing a frame buffer's pixels, made the first time that
+    // buffer is seen
+    BufferedImage getImage(int[] pixels) {
+        for (int i = 0; i < pixelArrays.length; i++) {
+            if (pixelArrays[i] == pixels) {
+                return images[i];
+            }
+            if (pixelArrays[i] == null) {
+                DirectColorModel colorModel = new DirectColorModel(24, 0xFF0000, 0x00FF00, 0x0000FF);
+                WritableRaster raster = Raster.createPackedRaster(new DataBufferInt(pixels, pixels.length),
+                        WIDTH, HEIGHT, WIDTH, colorModel.getMasks(), null);
+                pixelArrays[i] = pixels;
+                images[i] = new BufferedImage(colorModel, raster, false, null);
+                return images[i];
+            }
+        }
+        throw new IllegalStateException("More than three frame buffers");
+    }
+
+    // Draw a frame, scaled, into the window. Both the VolatileImage and the
+    // BufferStrategy's buffers can be lost at any time (e.g. when the
+    // display mode changes), in which case the frame is drawn again.
+    private void present(int[] pixels) {
+        BufferedImage image = getImage(pixels);
+        do {
+            if (screen == null
+                    || screen.validate(canvas.getGraphicsConfiguration()) == VolatileImage.IMAGE_INCOMPATIBLE) {
+                screen = canvas.createVolatileImage(WIDTH, HEIGHT);
+            }
+            Graphics2D screenGraphics = screen.createGraphics();
+            screenGraphics.drawImage(image, 0, 0, null);
+            screenGraphics.dispose();
+
+            do {
+                do {
+                    Graphics2D g = (Graphics2D) strategy.getDrawGraphics();
+                    draw(g);
+                    g.dispose();
+                } while (strategy.contentsRestored());
+                strategy.show();
+            } while (strategy.contentsLost());
+        } while (screen.contentsLost());
+    }
+
+    private void draw(Graphics2D g) {
+        int canvasWidth = canvas.getWidth();
+        int canvasHeight = canvas.getHeight();
+        int scale = Math.max(1, Math.min(canvasWidth / WIDTH, canvasHeight / HEIGHT));
+        int x = (canvasWidth - WIDTH * scale) / 2;
+        int y = (canvasHeight - HEIGHT * scale) / 2;
+        g.setColor(Color.BLACK);
+        g.fillRect(0, 0, canvasWidth, canvasHeight);
+        g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_NEAREST_NEIGHBOR);
+        g.drawImage(screen, x, y, WIDTH * scale, HEIGHT * scale, null);
+        if (overlayVisible) {
+            g.setColor(Color.BLACK);
+            g.fillRect(x, y, g.getFontMetrics().stringWidth(overlayText) + 8, g.getFontMetrics().getHeight() + 4);
+            g.setColor(Color.WHITE);
+            g.drawString(overlayText, x + 4, y + 2 + g.getFontMetrics().getAscent());
+        }
+    }
+
+    // Count the frame just presented, and work out the overlay's numbers
+    // again every STATS_NANOS
+    private void updateStats() {
+        long now = System.nanoTime();
+        if (lastPresent != 0) {
+            longestFrame = Math.max(longestFrame, now - lastPresent);
+        }
+        lastPresent = now;
+        statsFrames++;
+        long elapsed = now - statsStart;
+        if (elapsed >= STATS_NANOS) {
+            overlayText = String.format("%.1f fps  %.1f ms/frame (max %.1f)",
+                    statsFrames * 1e9 / elapsed, elapsed / 1e6 / statsFrames, longestFrame / 1e6);
+            statsStart = now;
+            statsFrames = 0;
+            longestFrame = 0;
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package mattpvaughn.io.github.emulator;
+
+import java.util.BitSet;
+
+// Decoded copies of the 384 tiles in VRAM, for the ostrich GameBoy emulator
+//
+// In VRAM each row of a tile is two bytes, one per bit of the color numbers
+// of its 8 pixels. Here every tile is kept decoded as 64 color numbers (0-3),
+// row by row, along with a horizontally flipped copy for sprites. Tiles are
+// only decoded again when memory reports that their bytes changed (see
+// Memory.getDirtyTiles()).
+//
+// Tile indexes run 0-383 in VRAM order (tile i is at 0x8000 + 16 * i), so
+// both of LCDC's tile data modes map straight onto them, see getTileIndex().
+
+public class TileCache {
+
+    public static final int TILE_PIXELS = 64;
+
+    private static final int VRAM = 0x8000;
+    private static final int TILE_BYTES = 16;
+
+    private final Memory memory;
+
+    // Color numbers of every tile, TILE_PIXELS per tile
+    private final byte[] pixels = new byte[Memory.TILE_COUNT * TILE_PIXELS];
+
+    // The same, with each row mirrored
+    private final byte[] flippedPixels = new byte[Memory.TILE_COUNT * TILE_PIXELS];
+
+    public TileCache(Memory memory) {
+        this.memory = memory;
+    }
+
+    // The index of a tile numbered in a tile map or OAM. With the 0x8000
+    // tileset numbers are unsigned, so tiles 0-255. With the 0x8800 tileset
+    // they are signed and count from the tile at 0x9000, so tiles 128-383.
+    public static int getTileIndex(int tileNumber, boolean unsignedTileSet) {
+        return unsignedTileSet ? tileNumber & 0xFF : 256 + (byte) tileNumber;
+    }
+
+    // Decode every tile written to since the last update
+    public void update() {
+        BitSet dirty = memory.getDirtyTiles();
+        if (dirty.isEmpty()) {
+            return;
+        }
+        for (int tile = dirty.nextSetBit(0); tile >= 0; tile = dirty.nextSetBit(tile + 1)) {
+            decode(tile);
+        }
+        dirty.clear();
+    }
+
+    private void decode(int tile) {
+        int address = VRAM + tile * TILE_BYTES;
+        byte[] page = memory.getPage(address >>> Memory.PAGE_SHIFT);
+        int offset = address & 0xFF;
+        int out = tile * TILE_PIXELS;
+        for (int row = 0; row < 8; row++) {
+            int low = page[offset + row * 2] & 0xFF;
+            int high = page[offset + row * 2 + 1] & 0xFF;
+            for (int x = 0; x < 8; x++) {
+                int bit = 7 - x;
+                byte colorNumber = (byte) ((low >>> bit & 1) | (high >>> bit & 1) << 1);
+                pixels[out + x] = colorNumber;
+                flippedPixels[out + 7 - x] = colorNumber;
+            }
+            out += 8;
+        }
+    }
+
+    // Color numbers of all tiles: pixel (x, y) of tile i is at
+    // i * TILE_PIXELS + y * 8 + x. Rows 8-15 of a tile are rows 0-7 of the
+    // next, which is what 8x16 sprites need.
+    public byte[] getPixels() {
+        return pixels;
+    }
+
+    public byte[] getFlippedPixels() {
+        return flippedPixels;
+    }
+}
@@ -0,0 +1,79 @@
+package mattpvaughn.io.github.emulator;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Hands finished frames from the emulation thread to a presentation thread,
+// for the ostrich GameBoy emulator
+//
+// There are three frame buffers, and each is always in exactly one role:
+//      back: being drawn by the emulation thread
+//      middle: the newest finished frame, waiting to be picked up
+//      front: being shown by the presentation thread
+// Publishing a frame swaps back with middle, and acquiring a frame swaps
+// middle with front, each as one atomic getAndSet. So neither thread ever
+// waits for the other or copies a frame. The presenter always gets the
+// newest finished frame, and never one still being drawn. Frames published
+// faster than they are picked up are simply replaced.
+//
+// The middle is kept in one int: the buffer's index, plus FRESH when it
+// holds a frame which hasn't been picked up yet.
+
+public class TripleBuffer {
+
+    private static final int INDEX_MASK = 0b11;
+    private static final int FRESH = 0b100;
+
+    private final int[][] buffers = new int[3][];
+
+    // The frame number in each buffer. Written before the buffer is
+    // published, so the atomic swap makes it visible with the pixels.
+    private final long[] frameNumbers = new long[3];
+
+    private final AtomicInteger middle = new AtomicInteger(1);
+
+    // Only touched by the emulation thread
+    private int back = 0;
+
+    // Only touched by the presentation thread
+    private int front = 2;
+
+    public TripleBuffer(int size) {
+        for (int i = 0; i < buffers.length; i++) {
+            buffers[i] = new int[size];
+        }
+    }
+
+    // Emulation thread: the buffer to draw the next frame into
+    public int[] getBackBuffer() {
+        return buffers[back];
+    }
+
+    // Emulation thread: make the back buffer the newest frame, and take the
+    // old middle buffer as the new back buffer
+    public void publish(long frameNumber) {
+        frameNumbers[back] = frameNumber;
+        back = middle.getAndSet(back | FRESH) & INDEX_MASK;
+    }
+
+    // Presentation thread: whether a frame has been published since the last
+    // acquire()
+    public boolean hasNewFrame() {
+        return (middle.get() & FRESH) != 0;
+    }
+
+    // Presentation thread: the newest finished frame. The array belongs to
+    // the caller until the next call. If nothing new has been published the
+    // same frame is returned again.
+    public int[] acquire() {
+        if (hasNewFrame()) {
+            front = middle.getAndSet(front) & INDEX_MASK;
+        }
+        return buffers[front];
+    }
+
+    // Presentation thread: the frame number of the frame returned by the
+    // last acquire() (0 before any frame is published)
+    public long getFrontFrameNumber() {
+        return frameNumbers[front];
+    }
+}
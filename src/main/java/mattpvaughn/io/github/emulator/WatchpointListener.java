@@ -0,0 +1,14 @@
+package mattpvaughn.io.github.emulator;
+
+// Receives reads from and writes to addresses being watched in Memory.
+//
+// Parameters:
+//      address: the address which was accessed
+//      value: the byte read, or the byte written
+//      isWrite: true for a write, false for a read
+//      pc: the address of the instruction which made the access
+//      cycle: the CPU cycle count when that instruction began
+
+public interface WatchpointListener {
+    void onWatchpoint(int address, byte value, boolean isWrite, int pc, long cycle);
+}
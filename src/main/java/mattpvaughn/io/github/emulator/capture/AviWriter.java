@@ -0,0 +1,206 @@
+package mattpvaughn.io.github.emulator.capture;
+
+import mattpvaughn.io.github.emulator.Display;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+// Writes frames into an uncompressed AVI file, which most players and
+// editors can open directly.
+//
+// File layout (RIFF chunks, all numbers little endian):
+//      RIFF 'AVI '
+//          LIST 'hdrl'
+//              'avih': main header (frame count filled in by close())
+//              LIST 'strl'
+//                  'strh': video stream header, 4194304 / 70224 frames per
+//                          second (the gameboy's real frame rate)
+//                  'strf': BITMAPINFOHEADER, 24 bit uncompressed
+//          LIST 'movi'
+//              '00db': one per frame, rows bottom up, BGR
+//          'idx1': index of the frames, written by close()
+//
+// Sizes and counts which aren't known until the end are written as 0 and
+// filled in by close(). The file is kept under 2GB (about 8 minutes), the
+// limit for this kind of AVI. Frames after that are refused.
+
+public class AviWriter implements FrameWriter {
+
+    private static final int WIDTH = Display.SCREEN_WIDTH;
+    private static final int HEIGHT = Display.SCREEN_HEIGHT;
+    public static final int FRAME_BYTES = WIDTH * HEIGHT * 3;
+
+    // Frame rate as a fraction: the CPU clock over cycles per frame
+    private static final int RATE = 4194304;
+    private static final int SCALE = 70224;
+
+    // Where the fields filled in by close() are
+    private static final int RIFF_SIZE = 4;
+    private static final int TOTAL_FRAMES = 48;
+    private static final int STREAM_LENGTH = 140;
+    private static final int MOVI_SIZE = 216;
+    private static final int HEADER_BYTES = 224;
+
+    // Each frame takes its data plus an 8 byte chunk header, and 16 bytes in
+    // the index
+    private static final int CHUNK_BYTES = 8 + FRAME_BYTES;
+    private static final long MAX_FILE_BYTES = Integer.MAX_VALUE;
+
+    private static final int AVIF_HASINDEX = 0x10;
+    private static final int AVIIF_KEYFRAME = 0x10;
+
+    private final FileChannel channel;
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(CHUNK_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+    private int frames = 0;
+
+    public AviWriter(Path file) throws IOException {
+        this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        writeHeaders();
+    }
+
+    private void writeHeaders() throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        fourCC(header, "RIFF");
+        header.putInt(0);
+        fourCC(header, "AVI ");
+
+        fourCC(header, "LIST");
+        header.putInt(200 - 8);
+        fourCC(header, "hdrl");
+        fourCC(header, "avih");
+        header.putInt(56);
+        header.putInt((int) (1_000_000L * SCALE / RATE));
+        header.putInt((int) ((long) FRAME_BYTES * RATE / SCALE));
+        header.putInt(0);
+        header.putInt(AVIF_HASINDEX);
+        header.putInt(0);
+        header.putInt(0);
+        header.putInt(1);
+        header.putInt(FRAME_BYTES);
+        header.putInt(WIDTH);
+        header.putInt(HEIGHT);
+        header.put(new byte[16]);
+
+        fourCC(header, "LIST");
+        header.putInt(4 + 64 + 48);
+        fourCC(header, "strl");
+        fourCC(header, "strh");
+        header.putInt(56);
+        fourCC(header, "vids");
+        fourCC(header, "DIB ");
+        header.putInt(0);
+        header.putShort((short) 0);
+        header.putShort((short) 0);
+        header.putInt(0);
+        header.putInt(SCALE);
+        header.putInt(RATE);
+        header.putInt(0);
+        header.putInt(0);
+        header.putInt(FRAME_BYTES);
+        header.putInt(-1);
+        header.putInt(0);
+        header.putShort((short) 0);
+        header.putShort((short) 0);
+        header.putShort((short) WIDTH);
+        header.putShort((short) HEIGHT);
+
+        fourCC(header, "strf");
+        header.putInt(40);
+        header.putInt(40);
+        header.putInt(WIDTH);
+        header.putInt(HEIGHT);
+        header.putShort((short) 1);
+        header.putShort((short) 24);
+        header.putInt(0);
+        header.putInt(FRAME_BYTES);
+        header.putInt(0);
+        header.putInt(0);
+        header.putInt(0);
+        header.putInt(0);
+
+        fourCC(header, "LIST");
+        header.putInt(0);
+        fourCC(header, "movi");
+        header.flip();
+        writeFully(header, 0);
+    }
+
+    @Override
+    public void write(int[] pixels, long frameNumber) throws IOException {
+        long end = HEADER_BYTES + (long) (frames + 1) * CHUNK_BYTES + 8 + (frames + 1) * 16L;
+        if (end > MAX_FILE_BYTES) {
+            throw new IOException("AVI file is full after " + frames + " frames");
+        }
+        buffer.clear();
+        fourCC(buffer, "00db");
+        buffer.putInt(FRAME_BYTES);
+        // Bottom row first
+        for (int y = HEIGHT - 1; y >= 0; y--) {
+            int row = y * WIDTH;
+            for (int x = 0; x < WIDTH; x++) {
+                int pixel = pixels[row + x];
+                buffer.put((byte) pixel);
+                buffer.put((byte) (pixel >> 8));
+                buffer.put((byte) (pixel >> 16));
+            }
+        }
+        buffer.flip();
+        writeFully(buffer, HEADER_BYTES + (long) frames * CHUNK_BYTES);
+        frames++;
+    }
+
+    public int getFrameCount() {
+        return frames;
+    }
+
+    // Write the index and fill in the sizes and frame counts
+    @Override
+    public void close() throws IOException {
+        try {
+            long moviEnd = HEADER_BYTES + (long) frames * CHUNK_BYTES;
+            ByteBuffer index = ByteBuffer.allocate(8 + frames * 16).order(ByteOrder.LITTLE_ENDIAN);
+            fourCC(index, "idx1");
+            index.putInt(frames * 16);
+            for (int i = 0; i < frames; i++) {
+                fourCC(index, "00db");
+                index.putInt(AVIIF_KEYFRAME);
+                // Offsets count from the 'movi' four character code
+                index.putInt(4 + i * CHUNK_BYTES);
+                index.putInt(FRAME_BYTES);
+            }
+            index.flip();
+            writeFully(index, moviEnd);
+
+            putInt(RIFF_SIZE, (int) (moviEnd + 8 + frames * 16L - 8));
+            putInt(TOTAL_FRAMES, frames);
+            putInt(STREAM_LENGTH, frames);
+            putInt(MOVI_SIZE, 4 + frames * CHUNK_BYTES);
+        } finally {
+            channel.close();
+        }
+    }
+
+    private void putInt(long position, int value) throws IOException {
+        ByteBuffer field = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+        field.putInt(value);
+        field.flip();
+        writeFully(field, position);
+    }
+
+    private void writeFully(ByteBuffer data, long position) throws IOException {
+        while (data.hasRemaining()) {
+            position += channel.write(data, position);
+        }
+    }
+
+    private static void fourCC(ByteBuffer buffer, String code) {
+        for (int i = 0; i < 4; i++) {
+            buffer.put((byte) code.charAt(i));
+        }
+    }
+}
@@ -0,0 +1,151 @@
+package mattpvaughn.io.github.emulator.capture;
+
+import mattpvaughn.io.github.emulator.Display;
+import mattpvaughn.io.github.emulator.FrameListener;
+import mattpvaughn.io.github.emulator.Utils;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Records frames and takes screenshots without slowing down emulation, for
+// the ostrich GameBoy emulator
+//
+// Attached to the display as a FrameListener. Each finished frame is copied
+// into one of a fixed number of spare buffers and handed to a background
+// thread, which encodes it with a FrameWriter and then returns the buffer.
+// The emulation thread never waits: if the background thread has fallen so
+// far behind that no buffer is spare, the frame is dropped and counted
+// instead.
+//
+// Screenshots are written as PNGs on the same background thread. They copy
+// into a new buffer, so they are never dropped.
+
+public class FrameCapture implements FrameListener, Closeable {
+
+    // How long close() waits for frames still being encoded
+    private static final long CLOSE_TIMEOUT_SECONDS = 30;
+
+    // Encodes a copied frame on the background thread
+    private interface Encoder {
+        void encode(int[] pixels) throws IOException;
+    }
+
+    private final FrameWriter video;
+    private final BlockingQueue<int[]> spareBuffers;
+    private final ExecutorService executor;
+
+    private final AtomicLong writtenFrames = new AtomicLong();
+    private final AtomicLong droppedFrames = new AtomicLong();
+
+    // A screenshot to take of the next frame, if one was asked for
+    private volatile Path pendingScreenshot;
+
+    // Set when the video writer fails. No more frames are recorded.
+    private volatile boolean failed = false;
+
+    // Record video with a writer (or null for screenshots only), letting up
+    // to bufferFrames frames wait to be encoded
+    public FrameCapture(FrameWriter video, int bufferFrames) {
+        if (bufferFrames < 1) {
+            throw new IllegalArgumentException("Need at least one buffer: " + bufferFrames);
+        }
+        this.video = video;
+        this.spareBuffers = new ArrayBlockingQueue<>(bufferFrames);
+        for (int i = 0; i < bufferFrames; i++) {
+            spareBuffers.add(new int[Display.SCREEN_WIDTH * Display.SCREEN_HEIGHT]);
+        }
+        this.executor = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "capture");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @Override
+    public void onFrame(int[] frameBuffer, long frameNumber) {
+        Path screenshot = pendingScreenshot;
+        if (screenshot != null) {
+            pendingScreenshot = null;
+            screenshot(frameBuffer, screenshot);
+        }
+        if (video == null || failed) {
+            return;
+        }
+        int[] copy = spareBuffers.poll();
+        if (copy == null) {
+            droppedFrames.incrementAndGet();
+            return;
+        }
+        System.arraycopy(frameBuffer, 0, copy, 0, copy.length);
+        submit(copy, true, pixels -> {
+            if (!failed) {
+                video.write(pixels, frameNumber);
+                writtenFrames.incrementAndGet();
+            }
+        });
+    }
+
+    // Take a screenshot of the next frame the display finishes. Can be
+    // called from any thread.
+    public void requestScreenshot(Path file) {
+        pendingScreenshot = file;
+    }
+
+    // Write a frame to a PNG file in the background
+    public void screenshot(int[] frameBuffer, Path file) {
+        submit(frameBuffer.clone(), false, pixels -> PngSequenceWriter.writePng(pixels, file));
+    }
+
+    // Encode a copied frame on the background thread. A video frame's
+    // buffer is one of the spares, so it is given back afterwards, and if it
+    // can't be written recording stops.
+    private void submit(int[] copy, boolean videoFrame, Encoder encoder) {
+        executor.execute(() -> {
+            try {
+                encoder.encode(copy);
+            } catch (IOException e) {
+                Utils.log((videoFrame ? "Recording failed: " : "Screenshot failed: ") + e.getMessage());
+                if (videoFrame) {
+                    failed = true;
+                }
+            } finally {
+                if (videoFrame) {
+                    spareBuffers.offer(copy);
+                }
+            }
+        });
+    }
+
+    public long getWrittenFrames() {
+        return writtenFrames.get();
+    }
+
+    public long getDroppedFrames() {
+        return droppedFrames.get();
+    }
+
+    // Finish encoding the frames already handed over, then close the writer
+    @Override
+    public void close() throws IOException {
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(CLOSE_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                Utils.log("Capture still encoding after " + CLOSE_TIMEOUT_SECONDS + " seconds, giving up");
+                executor.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (video != null) {
+            video.close();
+            Utils.log(String.format("Recorded %d frames, dropped %d", getWrittenFrames(), getDroppedFrames()));
+        }
+    }
+}
@@ -0,0 +1,16 @@
+package mattpvaughn.io.github.emulator.capture;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+// Writes a stream of frames to disk, for recording gameplay. Only ever used
+// from one thread at a time (FrameCapture's background thread).
+//
+// Parameters:
+//      pixels: the frame, ARGB pixels row by row, Display.SCREEN_WIDTH per
+//              row. Only valid until the call returns.
+//      frameNumber: the display's frame number for the frame
+
+public interface FrameWriter extends Closeable {
+    void write(int[] pixels, long frameNumber) throws IOException;
+}
@@ -0,0 +1,42 @@
+package mattpvaughn.io.github.emulator.capture;
+
+import mattpvaughn.io.github.emulator.Display;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+// Writes each frame to its own PNG file in a directory, named by frame
+// number: frame-000001.png, frame-000002.png, ...
+//
+// Also writes single screenshots (see writePng()).
+
+public class PngSequenceWriter implements FrameWriter {
+
+    private final Path directory;
+
+    public PngSequenceWriter(Path directory) throws IOException {
+        this.directory = Files.createDirectories(directory);
+    }
+
+    @Override
+    public void write(int[] pixels, long frameNumber) throws IOException {
+        writePng(pixels, directory.resolve(String.format("frame-%06d.png", frameNumber)));
+    }
+
+    @Override
+    public void close() {
+    }
+
+    // Write one frame to a PNG file through javax.imageio
+    public static void writePng(int[] pixels, Path file) throws IOException {
+        BufferedImage image = new BufferedImage(Display.SCREEN_WIDTH, Display.SCREEN_HEIGHT,
+                BufferedImage.TYPE_INT_RGB);
+        image.setRGB(0, 0, Display.SCREEN_WIDTH, Display.SCREEN_HEIGHT, pixels, 0, Display.SCREEN_WIDTH);
+        if (!ImageIO.write(image, "png", file.toFile())) {
+            throw new IOException("No PNG writer available");
+        }
+    }
+}
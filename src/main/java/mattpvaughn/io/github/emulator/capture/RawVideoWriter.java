@@ -0,0 +1,46 @@
+package mattpvaughn.io.github.emulator.capture;
+
+import mattpvaughn.io.github.emulator.Display;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+// Writes frames one after another into a single file as raw 24 bit RGB, top
+// row first, with no header. Each frame is 160 * 144 * 3 bytes. For example
+// ffmpeg can read it with:
+//      -f rawvideo -pixel_format rgb24 -video_size 160x144 -framerate 59.7275
+
+public class RawVideoWriter implements FrameWriter {
+
+    public static final int FRAME_BYTES = Display.SCREEN_WIDTH * Display.SCREEN_HEIGHT * 3;
+
+    private final FileChannel channel;
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(FRAME_BYTES);
+
+    public RawVideoWriter(Path file) throws IOException {
+        this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+    }
+
+    @Override
+    public void write(int[] pixels, long frameNumber) throws IOException {
+        buffer.clear();
+        for (int pixel : pixels) {
+            buffer.put((byte) (pixel >> 16));
+            buffer.put((byte) (pixel >> 8));
+            buffer.put((byte) pixel);
+        }
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
@@ -0,0 +1,292 @@
+package mattpvaughn.io.github.emulator.cartridge;
+
+import mattpvaughn.io.github.emulator.Utils;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+// Memory bank controller of a cartridge, for the ostrich GameBoy emulator
+//
+// A controller decides which 16 KB bank of ROM appears at 0x4000-0x7FFF (and
+// for some, 0x0000-0x3FFF), and which 8 KB bank of cartridge RAM appears at
+// 0xA000-0xBFFF. Games choose banks by writing to the ROM area.
+//
+// Memory asks the controller which pages to map and then serves reads and
+// writes from those pages itself, so the controller is only involved when
+// the game writes to the ROM area or touches 0xA000-0xBFFF while no RAM
+// page is mapped there (RAM disabled, or the MBC3 clock selected). That keeps
+// the per-access paths free of any per-cartridge code.
+//
+// Snapshots of the cartridge go along with snapshots of memory. Cartridge
+// RAM pages are shared with snapshots copy-on-write the same way as
+// Memory's pages: Memory sends writes to a shared page through its slow
+// path, which asks for the page to be unshared first.
+//
+// Cartridges with a battery keep their RAM (and clock) while switched off.
+// saveRam()/loadRam() read and write it in the usual .sav format: the RAM
+// as it is, followed on cartridges with a clock by the clock's 48 byte
+// footer (see RealTimeClock).
+//
+// Supported types (header byte 0x147):
+//      0x00, 0x08, 0x09:       ROM only, optionally with RAM
+//      0x01-0x03:              MBC1
+//      0x0F-0x13:              MBC3 (0x0F and 0x10 with the real time clock)
+//      0x19-0x1E:              MBC5
+// Of those, 0x03, 0x09, 0x0F, 0x10, 0x13, 0x1B and 0x1E have a battery.
+
+public abstract class Cartridge {
+
+    // Pages of 256 bytes in a bank of ROM or RAM
+    public static final int ROM_BANK_PAGES = 0x40;
+    public static final int RAM_BANK_PAGES = 0x20;
+
+    // The first page of cartridge RAM in the address space (0xA000)
+    public static final int RAM_FIRST_PAGE = 0xA0;
+
+    private static final int PAGE_SIZE = 0x100;
+
+    // Number of 16 KB banks of ROM
+    protected final int romBanks;
+
+    // Bank numbers are cut down to the bank lines the ROM has, so a game
+    // which selects a bank past the end of its ROM gets one of the banks it
+    // does have, the way the hardware mirrors them
+    private final int romBankMask;
+
+    // Cartridge RAM, one array per page. Banks which don't exist (2 KB
+    // chips, or banks past the end) mirror the ones which do.
+    private byte[][] ram;
+
+    // RAM pages which are referenced by at least one snapshot, so must be
+    // copied before they are written to
+    private final boolean[] ramShared;
+
+    protected boolean ramEnabled = false;
+
+    private boolean battery = false;
+
+    protected Cartridge(int romBanks, int ramSize) {
+        if (romBanks < 2) {
+            throw new IllegalArgumentException("A ROM has at least two banks: " + romBanks);
+        }
+        this.romBanks = romBanks;
+        this.romBankMask = Integer.highestOneBit(romBanks - 1) * 2 - 1;
+        this.ram = new byte[ramSize / PAGE_SIZE][PAGE_SIZE];
+        this.ramShared = new boolean[ram.length];
+    }
+
+    // A frozen copy of the bank registers, clock and RAM
+    public static final class Snapshot {
+        private final byte[][] ram;
+        private final boolean ramEnabled;
+        private final int[] registers;
+        private final RealTimeClock clock;
+
+        private Snapshot(byte[][] ram, boolean ramEnabled, int[] registers, RealTimeClock clock) {
+            this.ram = ram;
+            this.ramEnabled = ramEnabled;
+            this.registers = registers;
+            this.clock = clock;
+        }
+    }
+
+    // Take a snapshot. No RAM is copied here: every page is marked as shared
+    // and copied by unshareRamPage() the first time it is written to.
+    public Snapshot snapshot() {
+        Arrays.fill(ramShared, true);
+        RealTimeClock clock = getClock();
+        return new Snapshot(ram.clone(), ramEnabled, getRegisters(),
+                clock == null ? null : new RealTimeClock(clock));
+    }
+
+    // Put the cartridge back into the state it was in when the snapshot was
+    // taken. Memory has to remap the cartridge's pages afterwards.
+    public void restore(Snapshot snapshot) {
+        if (snapshot.ram.length != ram.length) {
+            throw new IllegalArgumentException("Snapshot is of a cartridge with different RAM");
+        }
+        ram = snapshot.ram.clone();
+        Arrays.fill(ramShared, true);
+        ramEnabled = snapshot.ramEnabled;
+        setRegisters(snapshot.registers);
+        RealTimeClock clock = getClock();
+        if (clock != null && snapshot.clock != null) {
+            clock.restore(snapshot.clock);
+        }
+    }
+
+    // The bank registers, in whatever order the controller likes, for
+    // snapshots
+    protected abstract int[] getRegisters();
+
+    protected abstract void setRegisters(int[] registers);
+
+    // The real time clock, or null if the cartridge doesn't have one
+    public RealTimeClock getClock() {
+        return null;
+    }
+
+    // Build the controller described by a cartridge header, for a ROM image
+    // of romBanks banks. A real time clock, if there is one, keeps emulated
+    // time.
+    public static Cartridge create(CartridgeHeader header, int romBanks) {
+        return create(header, romBanks, RealTimeClock.TimeSource.EMULATED);
+    }
+
+    // Build the controller described by a cartridge header, with a real time
+    // clock (if there is one) which keeps time from clockSource
+    public static Cartridge create(CartridgeHeader header, int romBanks, RealTimeClock.TimeSource clockSource) {
+        int type = header.getCartridgeType();
+        int ramSize = header.getRamSize();
+        Cartridge cartridge;
+        switch (type) {
+            case 0x00:
+            case 0x08:
+            case 0x09:
+                cartridge = new RomOnlyCartridge(romBanks, ramSize);
+                break;
+            case 0x01:
+            case 0x02:
+            case 0x03:
+                cartridge = new Mbc1Cartridge(romBanks, ramSize);
+                break;
+            case 0x0F:
+            case 0x10:
+            case 0x11:
+            case 0x12:
+            case 0x13:
+                cartridge = new Mbc3Cartridge(romBanks, ramSize, type == 0x0F || type == 0x10 ? clockSource : null);
+                break;
+            case 0x19:
+            case 0x1A:
+            case 0x1B:
+            case 0x1C:
+            case 0x1D:
+            case 0x1E:
+                cartridge = new Mbc5Cartridge(romBanks, ramSize);
+                break;
+            default:
+                Utils.log(String.format("Unsupported cartridge type %02X, running it as ROM only", type));
+                return new RomOnlyCartridge(romBanks, ramSize);
+        }
+        cartridge.battery = type == 0x03 || type == 0x09 || type == 0x0F || type == 0x10 || type == 0x13
+                || type == 0x1B || type == 0x1E;
+        return cartridge;
+    }
+
+    // Whether the RAM and clock are kept while the game is switched off, so
+    // should be saved
+    public boolean hasBattery() {
+        return battery;
+    }
+
+    // Write the RAM, and the clock if there is one, in the .sav format
+    public void saveRam(OutputStream out, long cycleCount) throws IOException {
+        for (byte[] page : ram) {
+            out.write(page);
+        }
+        RealTimeClock clock = getClock();
+        if (clock != null) {
+            clock.save(out, cycleCount);
+        }
+    }
+
+    // Read back what saveRam() wrote. A file which is short leaves the rest
+    // of RAM as it is, and one without the clock's footer leaves the clock
+    // as it is. Memory has to remap the cartridge's pages afterwards.
+    public void loadRam(InputStream in, long cycleCount) throws IOException {
+        for (int i = 0; i < ram.length; i++) {
+            byte[] page = ram[i].clone();
+            int total = 0;
+            int read = 0;
+            while (total < PAGE_SIZE && (read = in.read(page, total, PAGE_SIZE - total)) >= 0) {
+                total += read;
+            }
+            ram[i] = page;
+            ramShared[i] = false;
+            if (read < 0) {
+                Utils.log("Save file is shorter than the cartridge's RAM");
+                return;
+            }
+        }
+        RealTimeClock clock = getClock();
+        if (clock != null) {
+            try {
+                clock.load(in, cycleCount);
+            } catch (EOFException e) {
+                Utils.log("Save file has no clock data, starting the clock from zero");
+            }
+        }
+    }
+
+    // The page of the ROM image (counting from the start of the image) which
+    // appears at page index (0x00-0x7F) of the address space
+    public abstract int getRomPage(int index);
+
+    // Handle a write to the bank control registers in 0x0000-0x7FFF. Memory
+    // remaps the ROM and RAM pages afterwards.
+    public abstract void writeControl(int address, byte value, long cycleCount);
+
+    // The RAM page which appears at page index (0xA0-0xBF) of the address
+    // space, or null if reads and writes there have to go through
+    // readExternal()/writeExternal()
+    public byte[] getRamPage(int index) {
+        if (!ramEnabled || ram.length == 0) {
+            return null;
+        }
+        return ram[ramSlot(index)];
+    }
+
+    // Whether the RAM page mapped at page index is shared with a snapshot,
+    // so has to be unshared before it is written to
+    public boolean isRamPageShared(int index) {
+        return ram.length != 0 && ramShared[ramSlot(index)];
+    }
+
+    // Give the RAM page mapped at page index its own copy of its bytes.
+    // Memory has to remap the cartridge's pages afterwards.
+    public void unshareRamPage(int index) {
+        int slot = ramSlot(index);
+        ram[slot] = ram[slot].clone();
+        ramShared[slot] = false;
+    }
+
+    // Which of the RAM pages appears at page index of the address space
+    private int ramSlot(int index) {
+        return (getRamBank() * RAM_BANK_PAGES + index - RAM_FIRST_PAGE) % ram.length;
+    }
+
+    // The bank of RAM currently selected
+    protected int getRamBank() {
+        return 0;
+    }
+
+    // Reads from 0xA000-0xBFFF while getRamPage() is null. With nothing
+    // there the bus reads 0xFF.
+    public byte readExternal(int address, long cycleCount) {
+        return (byte) 0xFF;
+    }
+
+    // Writes to 0xA000-0xBFFF while getRamPage() is null
+    public void writeExternal(int address, byte value, long cycleCount) {
+    }
+
+    // The page within the image of a page of a ROM bank. Images whose size
+    // isn't a power of two still wrap around past their last bank.
+    protected int romPage(int bank, int index) {
+        int masked = bank & romBankMask;
+        if (masked >= romBanks) {
+            masked %= romBanks;
+        }
+        return masked * ROM_BANK_PAGES + (index & (ROM_BANK_PAGES - 1));
+    }
+
+    // Writing 0xA to the low bits of 0x0000-0x1FFF enables RAM, anything
+    // else disables it
+    protected static boolean isRamEnable(byte value) {
+        return (value & 0x0F) == 0x0A;
+    }
+}
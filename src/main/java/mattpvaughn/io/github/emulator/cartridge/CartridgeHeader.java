@@ -0,0 +1,157 @@
+package mattpvaughn.io.github.emulator.cartridge;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+// Cartridge header for the ostrich GameBoy emulator
+//
+// Every game ROM describes itself in the bytes 0x0100-0x014F:
+//      0x0134 to 0x0143: Title, upper case ASCII padded with zeros. On color
+//                        games 0x0143 is the CGB flag instead.
+//      0x0143: CGB flag (0x80 = works on DMG too, 0xC0 = CGB only)
+//      0x0147: Cartridge type, i.e. which memory bank controller is used and
+//              whether there is RAM, a battery or a real time clock
+//      0x0148: ROM size. 32 KB shifted left by this value, at most 8 (8 MB,
+//              the most MBC5 can address)
+//      0x0149: External RAM size (see RAM_SIZES)
+//      0x014D: Header checksum over 0x0134-0x014C
+//      0x014E to 0x014F: Global checksum, the sum of every other byte in the
+//                        ROM (big-endian)
+
+public class CartridgeHeader {
+
+    // The number of bytes at the start of a ROM needed to read the header
+    public static final int HEADER_END = 0x150;
+
+    private static final int TITLE = 0x0134;
+    private static final int CGB_FLAG = 0x0143;
+    private static final int CARTRIDGE_TYPE = 0x0147;
+    private static final int ROM_SIZE = 0x0148;
+    private static final int RAM_SIZE = 0x0149;
+    private static final int HEADER_CHECKSUM = 0x014D;
+    private static final int GLOBAL_CHECKSUM = 0x014E;
+
+    // The largest valid ROM size code
+    public static final int MAX_ROM_SIZE_CODE = 8;
+
+    // External RAM sizes in bytes, indexed by the RAM size code
+    private static final int[] RAM_SIZES = {0, 0x800, 0x2000, 0x8000, 0x20000, 0x10000};
+
+    private final String title;
+    private final int cartridgeType;
+    private final int romSizeCode;
+    private final int ramSizeCode;
+    private final int cgbFlag;
+    private final int headerChecksum;
+    private final int globalChecksum;
+    private final boolean headerChecksumValid;
+
+    public CartridgeHeader(String title, int cartridgeType, int romSizeCode, int ramSizeCode,
+                           int cgbFlag, int headerChecksum, int globalChecksum,
+                           boolean headerChecksumValid) {
+        this.title = title;
+        this.cartridgeType = cartridgeType;
+        this.romSizeCode = romSizeCode;
+        this.ramSizeCode = ramSizeCode;
+        this.cgbFlag = cgbFlag;
+        this.headerChecksum = headerChecksum;
+        this.globalChecksum = globalChecksum;
+        this.headerChecksumValid = headerChecksumValid;
+    }
+
+    // Parse the header out of the first HEADER_END (or more) bytes of a ROM
+    public static CartridgeHeader parse(byte[] rom) {
+        if (rom.length < HEADER_END) {
+            throw new IllegalArgumentException("ROM is too short to contain a header: " + rom.length + " bytes");
+        }
+        int cgbFlag = rom[CGB_FLAG] & 0xFF;
+        int titleEnd = (cgbFlag & 0x80) != 0 ? CGB_FLAG : CGB_FLAG + 1;
+        int titleLength = 0;
+        while (TITLE + titleLength < titleEnd && rom[TITLE + titleLength] != 0) {
+            titleLength++;
+        }
+        String title = new String(rom, TITLE, titleLength, StandardCharsets.US_ASCII);
+
+        int checksum = 0;
+        for (int i = TITLE; i < HEADER_CHECKSUM; i++) {
+            checksum = checksum - (rom[i] & 0xFF) - 1;
+        }
+        int headerChecksum = rom[HEADER_CHECKSUM] & 0xFF;
+
+        return new CartridgeHeader(
+                title,
+                rom[CARTRIDGE_TYPE] & 0xFF,
+                rom[ROM_SIZE] & 0xFF,
+                rom[RAM_SIZE] & 0xFF,
+                cgbFlag,
+                headerChecksum,
+                (rom[GLOBAL_CHECKSUM] & 0xFF) << 8 | (rom[GLOBAL_CHECKSUM + 1] & 0xFF),
+                (checksum & 0xFF) == headerChecksum);
+    }
+
+    // Read the header with a positioned read of the start of a file, without
+    // reading the rest of it
+    public static CartridgeHeader read(FileChannel channel) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_END);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, buffer.position()) < 0) {
+                throw new EOFException("ROM is too short to contain a header");
+            }
+        }
+        return parse(buffer.array());
+    }
+
+    public String getTitle() {
+        return title;
+    }
+
+    public int getCartridgeType() {
+        return cartridgeType;
+    }
+
+    public int getRomSizeCode() {
+        return romSizeCode;
+    }
+
+    // Size of the ROM in bytes, as declared by the header, or 0 if the size
+    // code isn't a valid one (a corrupt header, or not a ROM at all)
+    public int getRomSize() {
+        return isRomSizeValid() ? 0x8000 << romSizeCode : 0;
+    }
+
+    public boolean isRomSizeValid() {
+        return romSizeCode <= MAX_ROM_SIZE_CODE;
+    }
+
+    public int getRamSizeCode() {
+        return ramSizeCode;
+    }
+
+    // Size of the external RAM in bytes, as declared by the header
+    public int getRamSize() {
+        return ramSizeCode < RAM_SIZES.length ? RAM_SIZES[ramSizeCode] : 0;
+    }
+
+    public int getCgbFlag() {
+        return cgbFlag;
+    }
+
+    public boolean isCgb() {
+        return (cgbFlag & 0x80) != 0;
+    }
+
+    public int getHeaderChecksum() {
+        return headerChecksum;
+    }
+
+    public int getGlobalChecksum() {
+        return globalChecksum;
+    }
+
+    public boolean isHeaderChecksumValid() {
+        return headerChecksumValid;
+    }
+}
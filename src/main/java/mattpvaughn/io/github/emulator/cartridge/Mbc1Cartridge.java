@@ -0,0 +1,62 @@
+package mattpvaughn.io.github.emulator.cartridge;
+
+// MBC1: up to 2 MB of ROM and 32 KB of RAM
+//
+// Registers:
+//      0x0000-0x1FFF: RAM enable
+//      0x2000-0x3FFF: lower 5 bits of the ROM bank (0 is treated as 1)
+//      0x4000-0x5FFF: 2 more bits, the upper ROM bank bits or the RAM bank
+//      0x6000-0x7FFF: banking mode. In mode 1 the 2 bit register also
+//                     selects the RAM bank and the bank at 0x0000-0x3FFF.
+
+public class Mbc1Cartridge extends Cartridge {
+
+    private int lowBank = 1;
+    private int highBits = 0;
+    private boolean advancedMode = false;
+
+    Mbc1Cartridge(int romBanks, int ramSize) {
+        super(romBanks, ramSize);
+    }
+
+    @Override
+    public int getRomPage(int index) {
+        if (index < ROM_BANK_PAGES) {
+            return romPage(advancedMode ? highBits << 5 : 0, index);
+        }
+        return romPage(highBits << 5 | lowBank, index);
+    }
+
+    @Override
+    protected int getRamBank() {
+        return advancedMode ? highBits : 0;
+    }
+
+    @Override
+    public void writeControl(int address, byte value, long cycleCount) {
+        if (address < 0x2000) {
+            ramEnabled = isRamEnable(value);
+        } else if (address < 0x4000) {
+            lowBank = value & 0x1F;
+            if (lowBank == 0) {
+                lowBank = 1;
+            }
+        } else if (address < 0x6000) {
+            highBits = value & 0x03;
+        } else {
+            advancedMode = (value & 0x01) != 0;
+        }
+    }
+
+    @Override
+    protected int[] getRegisters() {
+        return new int[]{lowBank, highBits, advancedMode ? 1 : 0};
+    }
+
+    @Override
+    protected void setRegisters(int[] registers) {
+        lowBank = registers[0];
+        highBits = registers[1];
+        advancedMode = registers[2] != 0;
+    }
+}
@@ -0,0 +1,104 @@
+package mattpvaughn.io.github.emulator.cartridge;
+
+// MBC3: up to 2 MB of ROM, 32 KB of RAM, and on some cartridges a real time
+// clock
+//
+// Registers:
+//      0x0000-0x1FFF: RAM and clock enable
+//      0x2000-0x3FFF: ROM bank, 7 bits (0 is treated as 1)
+//      0x4000-0x5FFF: 0x00-0x03 select a RAM bank, 0x08-0x0C select a clock
+//                     register to appear at 0xA000-0xBFFF
+//      0x6000-0x7FFF: writing 0x00 then 0x01 latches the clock
+
+public class Mbc3Cartridge extends Cartridge {
+
+    private int romBank = 1;
+    private int ramBank = 0;
+
+    // The clock register selected, or 0 if a RAM bank is selected
+    private int clockRegister = 0;
+    private byte lastLatchWrite = (byte) 0xFF;
+
+    // Null on cartridges without a clock
+    private final RealTimeClock clock;
+
+    // A cartridge whose clock keeps time from clockSource, or without a
+    // clock if clockSource is null
+    Mbc3Cartridge(int romBanks, int ramSize, RealTimeClock.TimeSource clockSource) {
+        super(romBanks, ramSize);
+        this.clock = clockSource != null ? new RealTimeClock(clockSource) : null;
+    }
+
+    @Override
+    public RealTimeClock getClock() {
+        return clock;
+    }
+
+    @Override
+    public int getRomPage(int index) {
+        return romPage(index < ROM_BANK_PAGES ? 0 : romBank, index);
+    }
+
+    @Override
+    public byte[] getRamPage(int index) {
+        return clockRegister != 0 ? null : super.getRamPage(index);
+    }
+
+    @Override
+    protected int getRamBank() {
+        return ramBank;
+    }
+
+    @Override
+    public void writeControl(int address, byte value, long cycleCount) {
+        if (address < 0x2000) {
+            ramEnabled = isRamEnable(value);
+        } else if (address < 0x4000) {
+            romBank = value & 0x7F;
+            if (romBank == 0) {
+                romBank = 1;
+            }
+        } else if (address < 0x6000) {
+            int v = value & 0xFF;
+            if (v >= RealTimeClock.SECONDS && v <= RealTimeClock.DAY_HIGH && clock != null) {
+                clockRegister = v;
+            } else {
+                clockRegister = 0;
+                ramBank = v & 0x03;
+            }
+        } else {
+            if (lastLatchWrite == 0x00 && value == 0x01 && clock != null) {
+                clock.latch(cycleCount);
+            }
+            lastLatchWrite = value;
+        }
+    }
+
+    @Override
+    protected int[] getRegisters() {
+        return new int[]{romBank, ramBank, clockRegister, lastLatchWrite};
+    }
+
+    @Override
+    protected void setRegisters(int[] registers) {
+        romBank = registers[0];
+        ramBank = registers[1];
+        clockRegister = registers[2];
+        lastLatchWrite = (byte) registers[3];
+    }
+
+    @Override
+    public byte readExternal(int address, long cycleCount) {
+        if (ramEnabled && clockRegister != 0) {
+            return clock.readRegister(clockRegister);
+        }
+        return (byte) 0xFF;
+    }
+
+    @Override
+    public void writeExternal(int address, byte value, long cycleCount) {
+        if (ramEnabled && clockRegister != 0) {
+            clock.writeRegister(clockRegister, value, cycleCount);
+        }
+    }
+}
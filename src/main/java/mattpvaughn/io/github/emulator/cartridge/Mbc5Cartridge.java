@@ -0,0 +1,53 @@
+package mattpvaughn.io.github.emulator.cartridge;
+
+// MBC5: up to 8 MB of ROM and 128 KB of RAM
+//
+// Registers:
+//      0x0000-0x1FFF: RAM enable
+//      0x2000-0x2FFF: lower 8 bits of the ROM bank (bank 0 can be selected)
+//      0x3000-0x3FFF: bit 8 of the ROM bank
+//      0x4000-0x5FFF: RAM bank, 4 bits
+
+public class Mbc5Cartridge extends Cartridge {
+
+    private int romBank = 1;
+    private int ramBank = 0;
+
+    Mbc5Cartridge(int romBanks, int ramSize) {
+        super(romBanks, ramSize);
+    }
+
+    @Override
+    public int getRomPage(int index) {
+        return romPage(index < ROM_BANK_PAGES ? 0 : romBank, index);
+    }
+
+    @Override
+    protected int getRamBank() {
+        return ramBank;
+    }
+
+    @Override
+    public void writeControl(int address, byte value, long cycleCount) {
+        if (address < 0x2000) {
+            ramEnabled = isRamEnable(value);
+        } else if (address < 0x3000) {
+            romBank = (romBank & 0x100) | (value & 0xFF);
+        } else if (address < 0x4000) {
+            romBank = (romBank & 0xFF) | (value & 0x01) << 8;
+        } else if (address < 0x6000) {
+            ramBank = value & 0x0F;
+        }
+    }
+
+    @Override
+    protected int[] getRegisters() {
+        return new int[]{romBank, ramBank};
+    }
+
+    @Override
+    protected void setRegisters(int[] registers) {
+        romBank = registers[0];
+        ramBank = registers[1];
+    }
+}
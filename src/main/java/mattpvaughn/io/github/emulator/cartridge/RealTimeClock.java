@@ -0,0 +1,253 @@
+package mattpvaughn.io.github.emulator.cartridge;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+// Real time clock found on some MBC3 cartridges, for the ostrich GameBoy
+// emulator
+//
+// The clock doesn't tick. Instead it remembers what time it was at some base
+// point (baseSeconds at baseTime) and works out the current time from that
+// whenever the game latches the clock or sets it. Time is either emulated
+// time, measured in CPU cycles, or wall clock time in real time mode.
+//
+// Registers (selected by writing 0x08-0x0C to 0x4000-0x5FFF):
+//      0x08: Seconds (0-59)
+//      0x09: Minutes (0-59)
+//      0x0A: Hours (0-23)
+//      0x0B: Lower 8 bits of the day counter
+//      0x0C: Upper 1 bit of the day counter, and flags
+//          bit 0: Bit 8 of the day counter
+//          bit 6: Halt (0 = active, 1 = stop timer)
+//          bit 7: Day counter carry (set when the day counter overflows)
+//
+// Save format: the 48 byte footer appended to the save file by most
+// emulators. All values are little-endian.
+//      5 ints: seconds, minutes, hours, day low, day high
+//      5 ints: latched seconds, minutes, hours, day low, day high
+//      1 long: unix time (seconds) when the file was saved
+
+public class RealTimeClock {
+
+    public static final int SECONDS = 0x08;
+    public static final int MINUTES = 0x09;
+    public static final int HOURS = 0x0A;
+    public static final int DAY_LOW = 0x0B;
+    public static final int DAY_HIGH = 0x0C;
+
+    // Size of the clock's part of a save file
+    public static final int SAVE_SIZE = 48;
+
+    // The GameBoy CPU clock speed
+    private static final long CYCLES_PER_SECOND = 4194304;
+
+    private static final long SECONDS_PER_DAY = 24 * 60 * 60;
+
+    // The day counter is 9 bits, so wraps after 512 days
+    private static final long DAY_COUNTER_PERIOD = 512 * SECONDS_PER_DAY;
+
+    public enum TimeSource {
+        // Time passes as the CPU executes cycles
+        EMULATED,
+        // Time passes with the host's clock, even while the emulator isn't
+        // running
+        REAL_TIME
+    }
+
+    private final TimeSource timeSource;
+
+    // The clock's value (in seconds since day 0) at baseTime
+    private long baseSeconds = 0;
+
+    // The time (cycles or milliseconds, depending on the time source) at
+    // which the clock read baseSeconds
+    private long baseTime = 0;
+
+    private boolean halted = false;
+    private boolean dayCarry = false;
+
+    // The registers as of the last latch, indexed by register - SECONDS
+    private final byte[] latched = new byte[5];
+
+    public RealTimeClock(TimeSource timeSource) {
+        this.timeSource = timeSource;
+    }
+
+    // A copy of another clock, e.g. for a snapshot
+    public RealTimeClock(RealTimeClock other) {
+        this.timeSource = other.timeSource;
+        restore(other);
+    }
+
+    // Set this clock to exactly the state of another one
+    public void restore(RealTimeClock other) {
+        if (other.timeSource != timeSource) {
+            throw new IllegalArgumentException("Clocks keep different time: " + other.timeSource);
+        }
+        baseSeconds = other.baseSeconds;
+        baseTime = other.baseTime;
+        halted = other.halted;
+        dayCarry = other.dayCarry;
+        System.arraycopy(other.latched, 0, latched, 0, latched.length);
+    }
+
+    public TimeSource getTimeSource() {
+        return timeSource;
+    }
+
+    // The current time in the clock's units. The cycle count is ignored in
+    // real time mode.
+    private long now(long cycleCount) {
+        return timeSource == TimeSource.EMULATED ? cycleCount : System.currentTimeMillis();
+    }
+
+    private long unitsPerSecond() {
+        return timeSource == TimeSource.EMULATED ? CYCLES_PER_SECOND : 1000;
+    }
+
+    // Bring the base point up to now, keeping any fraction of a second which
+    // has passed, and deal with the day counter overflowing
+    private void rebase(long now) {
+        if (!halted) {
+            long elapsed = now - baseTime;
+            baseSeconds += elapsed / unitsPerSecond();
+            baseTime = now - elapsed % unitsPerSecond();
+        } else {
+            baseTime = now;
+        }
+        if (baseSeconds >= DAY_COUNTER_PERIOD) {
+            dayCarry = true;
+            baseSeconds %= DAY_COUNTER_PERIOD;
+        }
+    }
+
+    // Copy the current time into the latched registers, which is all the
+    // game can read
+    public void latch(long cycleCount) {
+        rebase(now(cycleCount));
+        for (int register = SECONDS; register <= DAY_HIGH; register++) {
+            latched[register - SECONDS] = currentRegister(register);
+        }
+    }
+
+    // Read a latched register
+    public byte readRegister(int register) {
+        checkRegister(register);
+        return latched[register - SECONDS];
+    }
+
+    // Set a register. The clock carries on from the new time.
+    public void writeRegister(int register, byte value, long cycleCount) {
+        checkRegister(register);
+        long now = now(cycleCount);
+        rebase(now);
+
+        int v = value & 0xFF;
+        long seconds = baseSeconds % 60;
+        long minutes = baseSeconds / 60 % 60;
+        long hours = baseSeconds / 3600 % 24;
+        long days = baseSeconds / SECONDS_PER_DAY;
+        switch (register) {
+            case SECONDS:
+                seconds = v % 60;
+                // Writing the seconds also resets the fraction of a second
+                baseTime = now;
+                break;
+            case MINUTES:
+                minutes = v % 60;
+                break;
+            case HOURS:
+                hours = v % 24;
+                break;
+            case DAY_LOW:
+                days = (days & 0x100) | v;
+                break;
+            case DAY_HIGH:
+                days = (days & 0xFF) | (v & 0x01) << 8;
+                dayCarry = (v & 0x80) != 0;
+                boolean halt = (v & 0x40) != 0;
+                if (halted && !halt) {
+                    baseTime = now;
+                }
+                halted = halt;
+                break;
+        }
+        baseSeconds = days * SECONDS_PER_DAY + hours * 3600 + minutes * 60 + seconds;
+    }
+
+    // The value of a register right now (rebase() must be called first)
+    private byte currentRegister(int register) {
+        switch (register) {
+            case SECONDS:
+                return (byte) (baseSeconds % 60);
+            case MINUTES:
+                return (byte) (baseSeconds / 60 % 60);
+            case HOURS:
+                return (byte) (baseSeconds / 3600 % 24);
+            case DAY_LOW:
+                return (byte) (baseSeconds / SECONDS_PER_DAY);
+            case DAY_HIGH:
+                long days = baseSeconds / SECONDS_PER_DAY;
+                return (byte) ((days >> 8 & 0x01) | (halted ? 0x40 : 0) | (dayCarry ? 0x80 : 0));
+            default:
+                throw new IllegalArgumentException("Not an RTC register: " + register);
+        }
+    }
+
+    private static void checkRegister(int register) {
+        if (register < SECONDS || register > DAY_HIGH) {
+            throw new IllegalArgumentException("Not an RTC register: " + register);
+        }
+    }
+
+    // Write the clock in the common 48 byte save file format
+    public void save(OutputStream out, long cycleCount) throws IOException {
+        rebase(now(cycleCount));
+        ByteBuffer buffer = ByteBuffer.allocate(SAVE_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        for (int register = SECONDS; register <= DAY_HIGH; register++) {
+            buffer.putInt(currentRegister(register) & 0xFF);
+        }
+        for (byte value : latched) {
+            buffer.putInt(value & 0xFF);
+        }
+        buffer.putLong(System.currentTimeMillis() / 1000);
+        out.write(buffer.array());
+    }
+
+    // Read the clock back from a save file. In real time mode the clock
+    // catches up with the time which passed since it was saved.
+    public void load(InputStream in, long cycleCount) throws IOException {
+        byte[] bytes = new byte[SAVE_SIZE];
+        int total = 0;
+        while (total < SAVE_SIZE) {
+            int read = in.read(bytes, total, SAVE_SIZE - total);
+            if (read < 0) {
+                throw new EOFException("RTC save data is too short");
+            }
+            total += read;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+        int[] current = new int[5];
+        for (int i = 0; i < current.length; i++) {
+            current[i] = buffer.getInt();
+        }
+        for (int i = 0; i < latched.length; i++) {
+            latched[i] = (byte) buffer.getInt();
+        }
+        long savedAt = buffer.getLong();
+
+        halted = (current[4] & 0x40) != 0;
+        dayCarry = (current[4] & 0x80) != 0;
+        long days = (current[4] & 0x01) << 8 | (current[3] & 0xFF);
+        baseSeconds = days * SECONDS_PER_DAY + (current[2] % 24) * 3600 + (current[1] % 60) * 60 + current[0] % 60;
+        baseTime = now(cycleCount);
+        if (timeSource == TimeSource.REAL_TIME && !halted) {
+            baseSeconds += Math.max(0, System.currentTimeMillis() / 1000 - savedAt);
+            rebase(baseTime);
+        }
+    }
+}
@@ -0,0 +1,209 @@
+package mattpvaughn.io.github.emulator.cartridge;
+
+import mattpvaughn.io.github.emulator.Utils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+// ROM library indexer for the ostrich GameBoy emulator
+//
+// Scans directories of ROMs (plain, .gz or .zip, see RomLoader), reading the
+// cartridge header of each one, and keeps the results in an index file.
+// Headers are read in parallel and only for files which are new or have
+// changed (by size or modification time) since the index was last saved, so
+// rescanning a large library is cheap.
+//
+// Index file format (big-endian, see DataOutputStream):
+//      int: magic number "OSRI", int: version, int: number of entries
+//      then for each entry:
+//          UTF: absolute path, long: size, long: last modified (ms),
+//          UTF: title, byte: cartridge type, byte: ROM size code,
+//          byte: RAM size code, byte: CGB flag, byte: header checksum,
+//          short: global checksum, boolean: header checksum valid
+
+public class RomLibrary {
+
+    private static final int MAGIC = 0x4F535249; // "OSRI"
+    private static final int VERSION = 1;
+
+    // A ROM file in the library
+    public static class Entry {
+        private final String path;
+        private final long size;
+        private final long lastModified;
+        private final CartridgeHeader header;
+
+        public Entry(String path, long size, long lastModified, CartridgeHeader header) {
+            this.path = path;
+            this.size = size;
+            this.lastModified = lastModified;
+            this.header = header;
+        }
+
+        public String getPath() {
+            return path;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public long getLastModified() {
+            return lastModified;
+        }
+
+        public CartridgeHeader getHeader() {
+            return header;
+        }
+    }
+
+    // Where the index is saved
+    private final Path indexFile;
+
+    // Known ROMs, keyed by absolute path
+    private Map<String, Entry> entries = new HashMap<>();
+
+    // The number of headers which had to be read during the last scan
+    private int headersRead = 0;
+
+    // Open a library, loading the index file if there is one
+    public RomLibrary(Path indexFile) throws IOException {
+        this.indexFile = indexFile;
+        if (Files.exists(indexFile)) {
+            load();
+        }
+    }
+
+    // Find every ROM under a directory, re-reading the headers of those which
+    // aren't in the index or have changed since. ROMs under the directory
+    // which have gone missing are dropped from the index; ROMs from other
+    // directories are kept.
+    public List<Entry> scan(Path directory) throws IOException {
+        List<Path> files;
+        try (Stream<Path> walk = Files.walk(directory)) {
+            files = walk.filter(Files::isRegularFile)
+                    .filter(RomLoader::isRomFile)
+                    .collect(Collectors.toList());
+        }
+
+        final Map<String, Entry> known = entries;
+        AtomicInteger read = new AtomicInteger();
+        List<Entry> scanned = files.parallelStream()
+                .map(file -> index(file, known, read))
+                .filter(Objects::nonNull)
+                .sorted(Comparator.comparing(Entry::getPath))
+                .collect(Collectors.toList());
+
+        Path root = directory.toAbsolutePath();
+        Map<String, Entry> updated = new HashMap<>(entries);
+        updated.keySet().removeIf(path -> Paths.get(path).startsWith(root));
+        for (Entry entry : scanned) {
+            updated.put(entry.getPath(), entry);
+        }
+        entries = updated;
+        headersRead = read.get();
+        return scanned;
+    }
+
+    // Index a single file, reusing what we know about it if it hasn't
+    // changed. Returns null if the file can't be read as a ROM.
+    private static Entry index(Path file, Map<String, Entry> known, AtomicInteger read) {
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+            String path = file.toAbsolutePath().toString();
+            long size = attributes.size();
+            long lastModified = attributes.lastModifiedTime().toMillis();
+
+            Entry entry = known.get(path);
+            if (entry != null && entry.getSize() == size && entry.getLastModified() == lastModified) {
+                return entry;
+            }
+
+            read.incrementAndGet();
+            return new Entry(path, size, lastModified, RomLoader.readHeader(file));
+        } catch (IOException | IllegalArgumentException e) {
+            Utils.log("Unable to index ROM: " + file + ".\r\n" + e);
+            return null;
+        }
+    }
+
+    public List<Entry> getEntries() {
+        List<Entry> list = new ArrayList<>(entries.values());
+        list.sort(Comparator.comparing(Entry::getPath));
+        return list;
+    }
+
+    public int getHeadersRead() {
+        return headersRead;
+    }
+
+    // Write the index file. The index is written to a temporary file first so
+    // a crash can't leave a half written index behind.
+    public void save() throws IOException {
+        Path temp = indexFile.resolveSibling(indexFile.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(entries.size());
+            for (Entry entry : getEntries()) {
+                CartridgeHeader header = entry.getHeader();
+                out.writeUTF(entry.getPath());
+                out.writeLong(entry.getSize());
+                out.writeLong(entry.getLastModified());
+                out.writeUTF(header.getTitle());
+                out.writeByte(header.getCartridgeType());
+                out.writeByte(header.getRomSizeCode());
+                out.writeByte(header.getRamSizeCode());
+                out.writeByte(header.getCgbFlag());
+                out.writeByte(header.getHeaderChecksum());
+                out.writeShort(header.getGlobalChecksum());
+                out.writeBoolean(header.isHeaderChecksumValid());
+            }
+        }
+        Files.move(temp, indexFile, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    // Read the index file. An index from a different version is ignored and
+    // the library is rebuilt on the next scan.
+    private void load() throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(indexFile)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                Utils.log("Ignoring ROM index with unknown format: " + indexFile);
+                return;
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String path = in.readUTF();
+                long size = in.readLong();
+                long lastModified = in.readLong();
+                CartridgeHeader header = new CartridgeHeader(
+                        in.readUTF(),
+                        in.readUnsignedByte(),
+                        in.readUnsignedByte(),
+                        in.readUnsignedByte(),
+                        in.readUnsignedByte(),
+                        in.readUnsignedByte(),
+                        in.readUnsignedShort(),
+                        in.readBoolean());
+                entries.put(path, new Entry(path, size, lastModified, header));
+            }
+        }
+    }
+}
@@ -0,0 +1,246 @@
+package mattpvaughn.io.github.emulator.cartridge;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+// ROM loader for the ostrich GameBoy emulator
+//
+// Loads ROM images from plain .gb/.gbc files, or from .gz and .zip archives
+// without unpacking them to disk first. The ROM is read (or decompressed)
+// straight into fixed size pages, and a new page is only added when the
+// data runs past the last one, so an image never has to be grown and copied
+// and the size is always taken from the data itself: any file can claim to
+// be a ROM, so the header's size is never trusted. Nothing is read past the
+// largest real ROM.
+
+public class RomLoader {
+
+    // The largest ROM a header can declare (8 MB). Anything past it is
+    // ignored.
+    public static final int MAX_ROM_SIZE = 0x8000 << CartridgeHeader.MAX_ROM_SIZE_CODE;
+
+    // Pages used by load(), which hands back a single array
+    private static final int LOAD_PAGE_SIZE = 0x4000;
+
+    // Extensions of uncompressed ROM files
+    private static final String[] ROM_EXTENSIONS = {".gb", ".gbc", ".sgb"};
+
+    // Returns true if a file looks like a ROM, compressed or not
+    public static boolean isRomFile(Path file) {
+        String name = file.getFileName().toString().toLowerCase();
+        return isUncompressedRomName(name) || name.endsWith(".gz") || name.endsWith(".zip");
+    }
+
+    private static boolean isUncompressedRomName(String name) {
+        for (String extension : ROM_EXTENSIONS) {
+            if (name.endsWith(extension)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Load a whole ROM image. The image is the size of the ROM (at most
+    // MAX_ROM_SIZE), or minimumSize if that is larger, with any bytes past
+    // the end of the ROM left as zero.
+    public static byte[] load(Path file, int minimumSize) throws IOException {
+        InputStream compressed = openCompressed(file);
+        if (compressed == null) {
+            return loadUncompressed(file, minimumSize);
+        }
+        PagedImage paged;
+        try (InputStream in = compressed) {
+            paged = readPages(in, LOAD_PAGE_SIZE);
+        }
+        byte[] image = new byte[Math.max(paged.length, minimumSize)];
+        for (int i = 0; i < paged.pages.size(); i++) {
+            int offset = i * LOAD_PAGE_SIZE;
+            System.arraycopy(paged.pages.get(i), 0, image, offset, Math.min(LOAD_PAGE_SIZE, paged.length - offset));
+        }
+        return image;
+    }
+
+    // Load a ROM image which may be shared with everyone else who loads the
+    // same file, so running many copies of a game only holds one copy of its
+    // ROM. The image is read straight into pages of pageSize bytes, with
+    // zero pages added to make it at least minimumSize bytes, and must not be
+    // modified. Images are only kept while something still references them.
+    public static byte[][] loadShared(Path file, int minimumSize, int pageSize) throws IOException {
+        String key = file.toRealPath() + "|" + Files.getLastModifiedTime(file).toMillis()
+                + "|" + minimumSize + "|" + pageSize;
+        synchronized (SHARED_IMAGES) {
+            // Forget images which nobody references any more, so the map
+            // doesn't keep growing as games are loaded and closed
+            SHARED_IMAGES.values().removeIf(reference -> reference.get() == null);
+            WeakReference<byte[][]> cached = SHARED_IMAGES.get(key);
+            byte[][] pages = cached == null ? null : cached.get();
+            if (pages == null) {
+                pages = loadPages(file, pageSize, minimumSize);
+                SHARED_IMAGES.put(key, new WeakReference<>(pages));
+            }
+            return pages;
+        }
+    }
+
+    private static final Map<String, WeakReference<byte[][]>> SHARED_IMAGES = new HashMap<>();
+
+    // Read a ROM into pages of pageSize bytes, padding the last one with
+    // zeroes, then add empty pages until there are minimumSize bytes
+    private static byte[][] loadPages(Path file, int pageSize, int minimumSize) throws IOException {
+        PagedImage paged;
+        InputStream compressed = openCompressed(file);
+        if (compressed == null) {
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                paged = readPages(channel, pageSize);
+            }
+        } else {
+            try (InputStream in = compressed) {
+                paged = readPages(in, pageSize);
+            }
+        }
+        while (paged.pages.size() * pageSize < minimumSize) {
+            paged.pages.add(new byte[pageSize]);
+        }
+        return paged.pages.toArray(new byte[0][]);
+    }
+
+    // A ROM read into pages of the same size, and how many bytes of them
+    // hold the ROM
+    private static final class PagedImage {
+        private final List<byte[]> pages = new ArrayList<>();
+        private int length;
+    }
+
+    // Read a stream of unknown length into pages, adding a page each time
+    // the last one fills up
+    private static PagedImage readPages(InputStream in, int pageSize) throws IOException {
+        PagedImage paged = new PagedImage();
+        while (paged.length < MAX_ROM_SIZE) {
+            byte[] page = new byte[pageSize];
+            int read = readUpTo(in, page, 0, Math.min(pageSize, MAX_ROM_SIZE - paged.length));
+            if (read == 0) {
+                break;
+            }
+            paged.pages.add(page);
+            paged.length += read;
+            if (read < pageSize) {
+                break;
+            }
+        }
+        if (paged.length < CartridgeHeader.HEADER_END) {
+            throw new EOFException("ROM is too short to contain a header");
+        }
+        return paged;
+    }
+
+    // Read an uncompressed ROM from its file channel into pages, as many as
+    // the file's size needs
+    private static PagedImage readPages(FileChannel channel, int pageSize) throws IOException {
+        int size = (int) Math.min(channel.size(), MAX_ROM_SIZE);
+        if (size < CartridgeHeader.HEADER_END) {
+            throw new EOFException("ROM is too short to contain a header");
+        }
+        PagedImage paged = new PagedImage();
+        while (paged.length < size) {
+            byte[] page = new byte[pageSize];
+            ByteBuffer buffer = ByteBuffer.wrap(page, 0, Math.min(pageSize, size - paged.length));
+            while (buffer.hasRemaining() && channel.read(buffer, paged.length + buffer.position()) >= 0) {
+                // Keep reading until the page is full or the file ends
+            }
+            paged.pages.add(page);
+            paged.length += buffer.limit();
+        }
+        return paged;
+    }
+
+    // Read just the header of a ROM. Compressed ROMs are only decompressed as
+    // far as the end of the header.
+    public static CartridgeHeader readHeader(Path file) throws IOException {
+        InputStream compressed = openCompressed(file);
+        if (compressed == null) {
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                return CartridgeHeader.read(channel);
+            }
+        }
+        try (InputStream in = compressed) {
+            byte[] header = new byte[CartridgeHeader.HEADER_END];
+            readFully(in, header, 0, header.length);
+            return CartridgeHeader.parse(header);
+        }
+    }
+
+    // Read an uncompressed ROM straight from its file channel into the image,
+    // which is the size of the file
+    private static byte[] loadUncompressed(Path file, int minimumSize) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            int size = (int) Math.min(channel.size(), MAX_ROM_SIZE);
+            if (size < CartridgeHeader.HEADER_END) {
+                throw new EOFException("ROM is too short to contain a header");
+            }
+            byte[] image = new byte[Math.max(size, minimumSize)];
+            ByteBuffer buffer = ByteBuffer.wrap(image, 0, size);
+            while (buffer.hasRemaining() && channel.read(buffer, buffer.position()) >= 0) {
+                // Keep reading until the buffer is full or the file ends
+            }
+            return image;
+        }
+    }
+
+    // Open a stream over the decompressed contents of a .gz file or the first
+    // ROM in a .zip file. Returns null if the file isn't compressed.
+    private static InputStream openCompressed(Path file) throws IOException {
+        String name = file.getFileName().toString().toLowerCase();
+        if (name.endsWith(".gz")) {
+            return new GZIPInputStream(Files.newInputStream(file), 1 << 16);
+        }
+        if (name.endsWith(".zip")) {
+            ZipInputStream zip = new ZipInputStream(new BufferedInputStream(Files.newInputStream(file), 1 << 16));
+            ZipEntry entry;
+            while ((entry = zip.getNextEntry()) != null) {
+                if (!entry.isDirectory() && isUncompressedRomName(entry.getName().toLowerCase())) {
+                    return zip;
+                }
+            }
+            zip.close();
+            throw new FileNotFoundException("No ROM inside archive: " + file);
+        }
+        return null;
+    }
+
+    // Fill a range of an array from a stream, failing if the stream ends
+    // first
+    private static void readFully(InputStream in, byte[] bytes, int offset, int length) throws IOException {
+        if (readUpTo(in, bytes, offset, length) < length) {
+            throw new EOFException("ROM is too short to contain a header");
+        }
+    }
+
+    // Read up to length bytes into an array, returning how many were read
+    private static int readUpTo(InputStream in, byte[] bytes, int offset, int length) throws IOException {
+        int total = 0;
+        while (total < length) {
+            int read = in.read(bytes, offset + total, length - total);
+            if (read < 0) {
+                break;
+            }
+            total += read;
+        }
+        return total;
+    }
+}
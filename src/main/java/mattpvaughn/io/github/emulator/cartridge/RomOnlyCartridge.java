@@ -0,0 +1,31 @@
+package mattpvaughn.io.github.emulator.cartridge;
+
+// A cartridge without a memory bank controller: 32 KB of ROM mapped
+// straight in, and optionally up to 8 KB of RAM which is always enabled
+
+public class RomOnlyCartridge extends Cartridge {
+
+    RomOnlyCartridge(int romBanks, int ramSize) {
+        super(romBanks, ramSize);
+        ramEnabled = true;
+    }
+
+    @Override
+    public int getRomPage(int index) {
+        return romPage(index / ROM_BANK_PAGES, index);
+    }
+
+    @Override
+    public void writeControl(int address, byte value, long cycleCount) {
+        // Nothing to control
+    }
+
+    @Override
+    protected int[] getRegisters() {
+        return new int[0];
+    }
+
+    @Override
+    protected void setRegisters(int[] registers) {
+    }
+}
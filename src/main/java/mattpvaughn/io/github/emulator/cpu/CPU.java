@@ -3,6 +3,7 @@ package mattpvaughn.io.github.emulator.cpu;
 // CPU for the ostrich GameBoy emulator
 // By Matt Vaughn: http://mattpvaughn.github.io/
 
+import mattpvaughn.io.github.emulator.Bus;
 import mattpvaughn.io.github.emulator.InterruptManager;
 import mattpvaughn.io.github.emulator.Memory;
 
@@ -11,7 +12,7 @@ import static mattpvaughn.io.github.emulator.InterruptManager.InterruptState.*;
 public class CPU {
 
     // Memory which CPU has access for reading/writing
-    private Memory memory;
+    private Bus bus;
 
     // Component to keep track of program location
     private ProgramCounter pc;
@@ -28,9 +29,24 @@ public class CPU {
     // The number of CPU cycles elapsed since the start of the emulator
     private long cycles = 0;
 
+    // The address of the instruction currently being executed
+    private int instructionAddress = 0;
+
     // Tracks number number of CPU cycles elapsed since the start of the
     // emulator. Increment DIV by 1 every 256 cycles.
-    private int DIV = 0xFF04;
+    private static final int DIV = 0xFF04;
+
+    // The cycle count when DIV was last reset. Rather than counting DIV up
+    // as we go, it is worked out from the cycle count when it is read.
+    private long divResetCycles = 0;
+
+    // Fetch unit. The page the PC is currently in, kept so that fetching an
+    // opcode or operand is a single array read. It is only looked up again
+    // when the PC moves to another page or memory says its code pages have
+    // changed (see Memory.getCodePage()).
+    private byte[] codePage;
+    private int codePageIndex = -1;
+    private int codeMapVersion;
 
     // The current run status of the CPU
     private CPUState cpuState = CPUState.NORMAL;
@@ -43,6 +59,16 @@ public class CPU {
         return cpuState;
     }
 
+    // Returns the number of CPU cycles elapsed before the current instruction
+    public long getCycles() {
+        return cycles;
+    }
+
+    // Returns the address of the instruction currently being executed
+    public int getInstructionAddress() {
+        return instructionAddress;
+    }
+
     // Returns the current state of interrupts
     // Cycles: 0
     // Bytes consumed: 0
@@ -50,12 +76,17 @@ public class CPU {
         return interruptManager.getInterruptState();
     }
 
-    private CPU(CPURegister cpuRegister, ProgramCounter pc, FlagRegister flagRegister, Memory memory, InterruptManager interruptManager) {
+    private CPU(CPURegister cpuRegister, ProgramCounter pc, FlagRegister flagRegister, Bus bus, InterruptManager interruptManager) {
         this.cpuRegister = cpuRegister;
         this.pc = pc;
         this.flagRegister = flagRegister;
-        this.memory = memory;
-        this.interruptManager = new InterruptManager();
+        this.bus = bus;
+        this.interruptManager = interruptManager;
+        bus.attachCPU(this);
+        // Writing any value to DIV resets it to zero
+        bus.registerIOHandler(DIV,
+                address -> (byte) ((cycles - divResetCycles) >>> 8),
+                (address, value) -> divResetCycles = cycles);
     }
 
     // Builder pattern: useful when you have a number of potentially optional
@@ -64,7 +95,7 @@ public class CPU {
         private CPURegister cpuRegister;
         private ProgramCounter programCounter;
         private FlagRegister flagRegister;
-        private Memory memory;
+        private Bus bus;
         private InterruptManager interruptManager;
 
         public Builder cpuRegister(CPURegister cpuRegister) {
@@ -83,7 +114,17 @@ public class CPU {
         }
 
         public Builder memory(Memory memory) {
-            this.memory = memory;
+            this.bus = memory;
+            return this;
+        }
+
+        public Builder bus(Bus bus) {
+            this.bus = bus;
+            return this;
+        }
+
+        public Builder interruptManager(InterruptManager interruptManager) {
+            this.interruptManager = interruptManager;
             return this;
         }
 
@@ -97,8 +138,8 @@ public class CPU {
             if (this.flagRegister == null) {
                 this.flagRegister = new FlagRegister();
             }
-            if (this.memory == null) {
-                this.memory = new Memory();
+            if (this.bus == null) {
+                this.bus = new Memory();
             }
             if (this.interruptManager == null) {
                 this.interruptManager = new InterruptManager();
@@ -107,12 +148,39 @@ public class CPU {
                     cpuRegister,
                     programCounter,
                     flagRegister,
-                    memory,
+                    bus,
                     interruptManager);
         }
 
     }
 
+    // Put the CPU into the state the boot rom leaves it in (original DMG
+    // values), ready to start the game at 0x0100. Memory needs the same
+    // treatment, see Memory.skipBootRom().
+    public void skipBootRom() {
+        cpuRegister.setRegister(CPURegister.Register.AF, (byte) 0x01, (byte) 0xB0);
+        cpuRegister.setRegister(CPURegister.Register.BC, (byte) 0x00, (byte) 0x13);
+        cpuRegister.setRegister(CPURegister.Register.DE, (byte) 0x00, (byte) 0xD8);
+        cpuRegister.setRegister(CPURegister.Register.HL, (byte) 0x01, (byte) 0x4D);
+        cpuRegister.set16BitRegister(CPURegister.Register.SP, (short) 0xFFFE);
+        flagRegister.setFlags(true, false, true, true);
+        pc.setAddr(0x0100);
+        // DIV reads 0xAB once the boot rom is done
+        divResetCycles = cycles - (0xAB << 8);
+    }
+
+    // Reads the byte at the PC and moves the PC on to the next byte
+    byte fetch() {
+        int address = pc.getAddrInc();
+        int index = address >>> Memory.PAGE_SHIFT;
+        if (index != codePageIndex || codeMapVersion != bus.getCodeMapVersion()) {
+            codePage = bus.getCodePage(index);
+            codePageIndex = index;
+            codeMapVersion = bus.getCodeMapVersion();
+        }
+        return codePage[address & 0xFF];
+    }
+
     // Returns whether there are more instructions in ROM to be executed
     public boolean hasInstruction() {
         return pc.getAddr() <= Memory.MAX_ROM_SIZE;
@@ -122,7 +190,7 @@ public class CPU {
     // current cycle
     public long executeInstruction() {
         // Ensure that memory is available
-        if (memory == null) {
+        if (bus == null) {
             throw new IllegalStateException("Memory must be attached before instructions can be executed");
         }
 
@@ -132,7 +200,8 @@ public class CPU {
         // A V-blank occurs every 70224 clock cycles
 
         // Execute instruction, increment program counter
-        cycles += Instructions.parse(memory.readRom(pc.getAddrInc()), this);
+        instructionAddress = pc.getAddr();
+        cycles += Instructions.parse(fetch(), this);
 
         // Update interrupt status
         if (interruptManager.getInterruptState().equals(INTERRUPTABLE_NEXT_COMMAND)) {
@@ -240,8 +309,8 @@ public class CPU {
     // Bytes consumed: 2
     public int call() {
         // Grab in reverse order b/c DMG is little-endian
-        byte addr2 = memory.readRom(pc.getAddrInc());
-        byte addr1 = memory.readRom(pc.getAddrInc());
+        byte addr2 = fetch();
+        byte addr1 = fetch();
 
         int address = Util.unsignedShortToInt(
                 Util.concatBytes(addr1, addr2));
@@ -263,7 +332,7 @@ public class CPU {
     // Cycles: 8
     // Bytes consumed: 1
     public int jumpCFlagRelative(boolean cBoolean) {
-        byte n = memory.readRom(pc.getAddrInc());
+        byte n = fetch();
 
         // Only jump if the Z flag matches zBoolean
         if (flagRegister.c == cBoolean) {
@@ -278,7 +347,7 @@ public class CPU {
     // Cycles: 8
     // Bytes consumed: 1
     public int jumpZFlagRelative(boolean zBoolean) {
-        byte b = memory.readRom(pc.getAddrInc());
+        byte b = fetch();
 
         // Only jump if the Z flag matches zBoolean
         if (flagRegister.z == zBoolean) {
@@ -293,7 +362,7 @@ public class CPU {
     // Cycles: 8
     // Bytes consumed: 1
     public int jumpRelative() {
-        byte n = memory.readRom(pc.getAddrInc());
+        byte n = fetch();
         pc.setAddr(pc.getAddr() + n);
         return 8;
     }
@@ -320,8 +389,8 @@ public class CPU {
     // Bytes consumed: 2
     public int jumpCFlag(boolean cBoolean) {
         // Grab in reverse order b/c DMG is little-endian
-        byte addr2 = memory.readRom(pc.getAddrInc());
-        byte addr1 = memory.readRom(pc.getAddrInc());
+        byte addr2 = fetch();
+        byte addr1 = fetch();
 
         int address = Util.unsignedShortToInt(
                 Util.concatBytes(addr1, addr2));
@@ -338,8 +407,8 @@ public class CPU {
     // Bytes consumed: 2
     public int jumpZFlag(boolean zBoolean) {
         // Grab in reverse order b/c DMG is little-endian
-        byte addr2 = memory.readRom(pc.getAddrInc());
-        byte addr1 = memory.readRom(pc.getAddrInc());
+        byte addr2 = fetch();
+        byte addr1 = fetch();
 
         int address = Util.unsignedShortToInt(
                 Util.concatBytes(addr1, addr2));
@@ -356,8 +425,8 @@ public class CPU {
     // Bytes consumed: 2
     public int jump() {
         // Grab in reverse order b/c DMG is little-endian
-        byte addr2 = memory.readRom(pc.getAddrInc());
-        byte addr1 = memory.readRom(pc.getAddrInc());
+        byte addr2 = fetch();
+        byte addr1 = fetch();
 
         // Set the program counter's address to the address resolved by
         // combining the two bytes
@@ -617,7 +686,7 @@ public class CPU {
     // Flags: none affected
     // Bytes consumed: 1
     public int stop() {
-        byte nextByte = memory.readRom(pc.getAddrInc());
+        byte nextByte = fetch();
         // TODO- decide if this is necessary- AFAIK there is no reason to
         // include this b/c we should stop before, but it is a part of the spec
         if (nextByte != 0x00) {
@@ -912,7 +981,7 @@ public class CPU {
     //      c: set false
     // Bytes consumed: 1
     public int xor() {
-        byte b = memory.readRom(pc.getAddrInc());
+        byte b = fetch();
         xorValue(b);
         return 8;
     }
@@ -989,7 +1058,7 @@ public class CPU {
     //      c: set false
     // Bytes consumed: 1
     public int or() {
-        byte n = memory.readRom(pc.getAddrInc());
+        byte n = fetch();
         orValue(n);
         return 8;
     }
@@ -1032,7 +1101,7 @@ public class CPU {
     //      c: set false
     // Bytes consumed: 1
     public int and() {
-        byte n = memory.readRom(pc.getAddrInc());
+        byte n = fetch();
         andValue(n);
         return 8;
     }
@@ -1068,13 +1137,13 @@ public class CPU {
     // Write a byte to the memory location located in the address stored in the
     // HL register
     private void writeByteToHL(byte b) {
-        memory.writeByte(Util.unsignedShortToInt(
+        bus.writeByte(Util.unsignedShortToInt(
                 cpuRegister.get16BitRegisterValue(CPURegister.Register.HL)), b);
     }
 
     // Read the byte from memory located at the address stored in the HL register
     private byte getByteFromHL() {
-        return memory.readByte(Util.unsignedShortToInt(
+        return bus.readByte(Util.unsignedShortToInt(
                 cpuRegister.get16BitRegisterValue(CPURegister.Register.HL)));
     }
 
@@ -1090,7 +1159,7 @@ public class CPU {
     // Bytes consumed: 1
     public int cp() {
         int cycles = 4;
-        byte b = memory.readRom(pc.getAddrInc());
+        byte b = fetch();
 
         // This will subtract the numbers and set the flags correctly, but it
         // will change values in any 8-bit registers
@@ -1198,7 +1267,7 @@ public class CPU {
     //      c: set true if no borrow
     // Bytes consumed: 1
     public int sub(boolean borrow) {
-        byte b = memory.readRom(pc.getAddrInc());
+        byte b = fetch();
         byte diff = subValues(cpuRegister.A, b, Util.booleanToInt(borrow));
         cpuRegister.setRegister(CPURegister.Register.A, diff);
         return 8;
@@ -1215,7 +1284,7 @@ public class CPU {
     //      c: set if carry from bit 7
     // Bytes consumed: 1
     public int add(boolean addCarry) {
-        byte b = memory.readRom(pc.getAddrInc());
+        byte b = fetch();
         byte sum = addValues(
                 Util.unsignedByteToInt(cpuRegister.A),
                 Util.unsignedByteToInt(b),
@@ -1316,8 +1385,8 @@ public class CPU {
         //  3. read A
         //  4. inc SP
         byte[] values = new byte[]{
-                memory.readByte(spAddress + 1), // Read A
-                memory.readByte(spAddress)};    // Read F
+                bus.readByte(spAddress + 1), // Read A
+                bus.readByte(spAddress)};    // Read F
 
         // Increment SP
         cpuRegister.set16BitRegister(CPURegister.Register.SP, (short) (spAddress + 2));
@@ -1351,8 +1420,8 @@ public class CPU {
         //  2. write A to SP
         //  3. dec SP
         //  4. write F to SP
-        memory.writeByte(spAddress - 1, values[0]);
-        memory.writeByte(spAddress - 2, values[1]);
+        bus.writeByte(spAddress - 1, values[0]);
+        bus.writeByte(spAddress - 2, values[1]);
 
         // Decrement the SP address by two
         cpuRegister.set16BitRegister(CPURegister.Register.SP, (short) (spAddress - 2));
@@ -1363,7 +1432,7 @@ public class CPU {
     // Cycles: 12
     // Bytes consumed: 1
     public int writeSP8BitToHL() {
-        byte n = memory.readRom(pc.getAddrInc());
+        byte n = fetch();
         cpuRegister.set16BitRegister(CPURegister.Register.HL, (short) (cpuRegister.SP + n));
         return 12;
     }
@@ -1373,7 +1442,7 @@ public class CPU {
     // Cycles: 8
     // Bytes consumed: 1
     public int write8BitValueToRegister(CPURegister.Register R) {
-        byte value = memory.readRom(pc.getAddrInc());
+        byte value = fetch();
         cpuRegister.setRegister(R, value);
         return 8;
     }
@@ -1384,8 +1453,8 @@ public class CPU {
     // Bytes consumed: 2
     public int write16BitValueToRegister(CPURegister.Register RR) {
         // Grab in reverse order b/c DMG is little-endian
-        byte value2 = memory.readRom(pc.getAddrInc());
-        byte value1 = memory.readRom(pc.getAddrInc());
+        byte value2 = fetch();
+        byte value1 = fetch();
 
         cpuRegister.setRegister(RR, value1, value2);
 
@@ -1398,10 +1467,10 @@ public class CPU {
     // Cycles: 12
     // Bytes consumed: 1
     public int writeMemoryByteToRegister(CPURegister.Register R) {
-        byte b = memory.readRom(pc.getAddrInc());
+        byte b = fetch();
 
         // Write from address (0xFF00 + n) to register R
-        cpuRegister.setRegister(R, memory.readByte(0xFF00 + b));
+        cpuRegister.setRegister(R, bus.readByte(0xFF00 + b));
 
         return 12;
     }
@@ -1410,9 +1479,9 @@ public class CPU {
     // Cycles: 12
     // Bytes consumed: 1
     public int writeRegisterToMemoryByte(CPURegister.Register R) {
-        byte b = memory.readRom(pc.getAddrInc());
+        byte b = fetch();
         int address = 0xFF00 + b;
-        memory.writeByte(address, cpuRegister.get8BitRegisterValue(R));
+        bus.writeByte(address, cpuRegister.get8BitRegisterValue(R));
         return 12;
     }
 
@@ -1428,7 +1497,7 @@ public class CPU {
                 cpuRegister.get16BitRegisterValue(CPURegister.Register.HL));
 
         // Write from register R to the address extracted from HL
-        memory.writeByte(address, cpuRegister.get8BitRegisterValue(R));
+        bus.writeByte(address, cpuRegister.get8BitRegisterValue(R));
 
         // Add the integer value to the HL register
         cpuRegister.set16BitRegister(CPURegister.Register.HL, (short) (
@@ -1447,7 +1516,7 @@ public class CPU {
         int address = Util.unsignedShortToInt(cpuRegister.get16BitRegisterValue(CPURegister.Register.HL));
 
         // Get value from that address, put into R register
-        cpuRegister.setRegister(R, memory.readByte(address));
+        cpuRegister.setRegister(R, bus.readByte(address));
 
         // (In/De)crement the RR register
         cpuRegister.set16BitRegister(CPURegister.Register.HL, (short) (cpuRegister.get16BitRegisterValue(CPURegister.Register.HL) + value));
@@ -1461,15 +1530,11 @@ public class CPU {
     public int writeAToC() {
         int cycles = 8;
 
-        // We don't actually need the next bytes- it's easier to not read them
-        // and just do 0xFF00 + C here. Increment to pretend like we read it
-        pc.increment();
-
         // Form the address
         int address = 0xFF00 + cpuRegister.get8BitRegisterValue(CPURegister.Register.C);
 
         // Write the value at that address into register A
-        memory.writeByte(address, cpuRegister.get8BitRegisterValue(CPURegister.Register.A));
+        bus.writeByte(address, cpuRegister.get8BitRegisterValue(CPURegister.Register.A));
 
         return cycles;
     }
@@ -1480,15 +1545,11 @@ public class CPU {
     public int writeCToA() {
         int cycles = 8;
 
-        // We don't actually need the next bytes- it's easier to not read them
-        // and just do 0xFF00 + C here. Increment to pretend like we read it
-        pc.increment();
-
         // Form the address
         int address = 0xFF00 + cpuRegister.C;
 
         // Write the value at that address into register A
-        cpuRegister.setRegister(CPURegister.Register.A, memory.readByte(address));
+        cpuRegister.setRegister(CPURegister.Register.A, bus.readByte(address));
 
         return cycles;
     }
@@ -1510,7 +1571,7 @@ public class CPU {
         }
 
         int address = Util.unsignedShortToInt(cpuRegister.get16BitRegisterValue(RR));
-        byte value = memory.readByte(address);
+        byte value = bus.readByte(address);
         cpuRegister.setRegister(R, value);
 
         return cycles;
@@ -1546,7 +1607,7 @@ public class CPU {
         int cycles = 8 + addValueIfHL(R, 4);
 
         // Get n from ROM
-        byte b = memory.readRom(pc.getAddrInc());
+        byte b = fetch();
         write8BitRegisterValue(R, b);
 
         return cycles;
@@ -1564,8 +1625,8 @@ public class CPU {
         }
 
         // Grab in reverse order b/c DMG is little-endian
-        byte addr2 = memory.readRom(pc.getAddrInc());
-        byte addr1 = memory.readRom(pc.getAddrInc());
+        byte addr2 = fetch();
+        byte addr1 = fetch();
 
         byte value;
         if (register.equals(CPURegister.Register.A)) {
@@ -1573,12 +1634,12 @@ public class CPU {
         } else if (register.equals(CPURegister.Register.SP)) {
             // Get the value from the address stored in SP
             short address = cpuRegister.get16BitRegisterValue(CPURegister.Register.SP);
-            value = memory.readByte(Util.unsignedShortToInt(address));
+            value = bus.readByte(Util.unsignedShortToInt(address));
         } else {
             throw new IllegalArgumentException("Cannot write from any register but SP or A directly to memory!");
         }
 
-        memory.writeByte(Util.unsignedShortToInt(Util.concatBytes(addr1, addr2)), value);
+        bus.writeByte(Util.unsignedShortToInt(Util.concatBytes(addr1, addr2)), value);
 
         return cycles;
     }
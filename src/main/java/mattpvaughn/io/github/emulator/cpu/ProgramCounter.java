@@ -22,7 +22,7 @@ public class ProgramCounter {
 
     // Increments current byte to be read
     public void increment() {
-        this.addr = this.addr++;
+        this.addr = (this.addr + 1) & MAX_MEMORY_SIZE;
     }
 
     // Changes the current instruction to be executed at a certain line
@@ -44,6 +44,8 @@ public class ProgramCounter {
 
     // Gets the current address then increments the current address number
     public int getAddrInc() {
-        return this.addr++;
+        int addr = this.addr;
+        this.addr = (addr + 1) & MAX_MEMORY_SIZE;
+        return addr;
     }
 }
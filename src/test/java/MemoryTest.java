@@ -3,8 +3,12 @@ import mattpvaughn.io.github.emulator.cpu.Util;
 import org.junit.Test;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 public class MemoryTest {
@@ -22,7 +26,7 @@ public class MemoryTest {
     }
 
     // Example GameBoy game ROM
-    public static final String exampleGameRom = "/home/matt/Development/ostrich-emulator/src/main/java/mattpvaughn/io/github/emulator/rom/tetris.gb";
+    public static final String exampleGameRom = "src/main/java/mattpvaughn/io/github/emulator/rom/tetris.gb";
 
     // Test loading in an example game to ROM
     @Test
@@ -33,10 +37,30 @@ public class MemoryTest {
         File exampleGameRomFile = new File(exampleGameRom);
         memory.attachGameFile(exampleGameRomFile);
 
-        // Check that bytes are loaded into expected location
-        assertEquals(memory.readRom(0xFF), (byte) 0xC3);
-        assertEquals(memory.readRom(0x100), (byte) 0x0C);
-        assertEquals(memory.readRom(0x101), (byte) 0x02);
+        // Check that bytes are loaded into expected location: the game's
+        // entry point at 0x0100 (NOP; JP 0x0150)
+        assertEquals(memory.readRom(0x100), (byte) 0x00);
+        assertEquals(memory.readRom(0x101), (byte) 0xC3);
+        assertEquals(memory.readRom(0x102), (byte) 0x50);
+
+        // The boot rom covers the start of the game until it is unmapped
+        assertEquals(memory.readRom(0), (byte) 0x31);
+        memory.writeByte(Memory.BOOT_ROM_DISABLE, (byte) 1);
+        assertEquals(memory.readRom(0), (byte) 0xC3);
+    }
+
+    // Test that skipping the boot rom leaves memory as the boot rom would
+    @Test
+    public void testSkipBootRom() {
+        Memory memory = new Memory();
+        memory.skipBootRom();
+
+        assertFalse(memory.isBootRomMapped());
+        assertEquals((byte) 0x91, memory.readByte(0xFF40));
+        assertEquals((byte) 0xFC, memory.readByte(0xFF47));
+        assertEquals((byte) 0x00, memory.readByte(0xFFFF));
+        // Installing the registers doesn't start a DMA transfer
+        assertFalse(memory.isDMAActive());
     }
 
     @Test
@@ -70,4 +94,264 @@ public class MemoryTest {
         }
     }
 
+    // Test that restoring a snapshot undoes writes made after it was taken
+    @Test
+    public void testSnapshotRestore() {
+        Memory memory = new Memory();
+        memory.writeByte(0xC000, (byte) 1);
+        memory.writeByte(0xFF80, (byte) 2);
+
+        Memory.Snapshot snapshot = memory.snapshot();
+        memory.writeByte(0xC000, (byte) 3);
+        memory.writeByte(0xC001, (byte) 4);
+        assertEquals((byte) 3, memory.readByte(0xC000));
+
+        memory.restore(snapshot);
+        assertEquals((byte) 1, memory.readByte(0xC000));
+        assertEquals((byte) 0, memory.readByte(0xC001));
+        assertEquals((byte) 2, memory.readByte(0xFF80));
+    }
+
+    // Test that a snapshot can be restored more than once, and into a
+    // different Memory, without writes leaking between them
+    @Test
+    public void testSnapshotRestoreIsRepeatable() {
+        Memory memory = new Memory();
+        memory.writeByte(0xC000, (byte) 1);
+        Memory.Snapshot snapshot = memory.snapshot();
+
+        Memory fork = new Memory();
+        fork.restore(snapshot);
+        fork.writeByte(0xC000, (byte) 5);
+        memory.writeByte(0xC000, (byte) 6);
+
+        assertEquals((byte) 6, memory.readByte(0xC000));
+        assertEquals((byte) 5, fork.readByte(0xC000));
+
+        memory.restore(snapshot);
+        fork.restore(snapshot);
+        assertEquals((byte) 1, memory.readByte(0xC000));
+        assertEquals((byte) 1, fork.readByte(0xC000));
+    }
+
+    // Test that only accesses to watched addresses are reported, and only
+    // for the kind of access being watched
+    @Test
+    public void testWatchpoints() {
+        Memory memory = new Memory();
+        final List<String> hits = new ArrayList<>();
+        memory.setWatchpointListener((address, value, isWrite, pc, cycle) ->
+                hits.add(String.format("%04X %02X %b", address, value, isWrite)));
+
+        memory.addWatchpoint(0xC0A0, false, true);
+        memory.addWatchpoint(0xC0A1, true, false);
+
+        memory.writeByte(0xC0A0, (byte) 7);
+        memory.readByte(0xC0A0);
+        memory.writeByte(0xC0A1, (byte) 8);
+        memory.readByte(0xC0A1);
+        memory.writeByte(0xC0A2, (byte) 9);
+        memory.readByte(0xC0A2);
+
+        assertEquals(2, hits.size());
+        assertEquals("C0A0 07 true", hits.get(0));
+        assertEquals("C0A1 08 false", hits.get(1));
+
+        // Removing the watchpoints stops the reports but keeps the values
+        memory.removeWatchpoint(0xC0A0);
+        memory.removeWatchpoint(0xC0A1);
+        memory.writeByte(0xC0A0, (byte) 10);
+        assertEquals((byte) 8, memory.readByte(0xC0A1));
+        assertEquals(2, hits.size());
+    }
+
+    // Test that a watchpoint on work RAM sees accesses through echo RAM, and
+    // the other way round
+    @Test
+    public void testEchoWatchpoints() {
+        Memory memory = new Memory();
+        final List<String> hits = new ArrayList<>();
+        memory.setWatchpointListener((address, value, isWrite, pc, cycle) ->
+                hits.add(String.format("%04X %02X %b", address, value, isWrite)));
+
+        memory.addWatchpoint(0xC123, true, true);
+        memory.addWatchpoint(0xE200, false, true);
+        memory.writeByte(0xE123, (byte) 5);
+        memory.readByte(0xE123);
+        memory.writeByte(0xE124, (byte) 6);
+        memory.writeByte(0xC200, (byte) 7);
+
+        assertEquals(3, hits.size());
+        assertEquals("C123 05 true", hits.get(0));
+        assertEquals("C123 05 false", hits.get(1));
+        assertEquals("E200 07 true", hits.get(2));
+        assertEquals((byte) 5, memory.readByte(0xC123));
+    }
+
+    // Test that writes to VRAM and OAM mark the matching tile, tile map entry
+    // or sprite as dirty
+    @Test
+    public void testVideoMemoryDirtyTracking() {
+        Memory memory = new Memory();
+        memory.getDirtyTiles().clear();
+        memory.getDirtyTileMaps().clear();
+        memory.getDirtyOAM().clear();
+
+        memory.writeByte(0x8010, (byte) 1);
+        memory.writeByte(0x97FF, (byte) 1);
+        memory.writeByte(0x9C05, (byte) 1);
+        memory.writeByte(0xFE09, (byte) 1);
+        // Writing a value which is already there changes nothing
+        memory.writeByte(0x8020, (byte) 0);
+        // Neither does writing outside of video memory
+        memory.writeByte(0xC000, (byte) 1);
+
+        assertEquals("{1, 383}", memory.getDirtyTiles().toString());
+        assertEquals("{1029}", memory.getDirtyTileMaps().toString());
+        assertEquals("{2}", memory.getDirtyOAM().toString());
+    }
+
+    // Test that writing to the DMA register copies XX00-XX9F into OAM once
+    // 640 cycles have passed, and that only HRAM is usable until then
+    @Test
+    public void testDMATransfer() {
+        Memory memory = new Memory();
+        for (int i = 0; i < 160; i++) {
+            memory.writeByte(0xC100 + i, (byte) i);
+        }
+
+        memory.writeByte(Memory.DMA, (byte) 0xC1);
+        assertTrue(memory.isDMAActive());
+
+        // Only 0xFF00-0xFFFF can be used during the transfer
+        assertEquals((byte) 0xFF, memory.readByte(0xC100));
+        memory.writeByte(0xC100, (byte) 0x55);
+        memory.writeByte(0xFF80, (byte) 0x66);
+        assertEquals((byte) 0x66, memory.readByte(0xFF80));
+
+        memory.update(639);
+        assertTrue(memory.isDMAActive());
+        memory.update(640);
+        assertFalse(memory.isDMAActive());
+
+        for (int i = 0; i < 160; i++) {
+            assertEquals((byte) i, memory.readByte(0xFE00 + i));
+        }
+        // The write made during the transfer was ignored
+        assertEquals((byte) 0, memory.readByte(0xC100));
+    }
+
+    // Test that registered IO handlers replace the plain byte store and load
+    // for their register only
+    @Test
+    public void testIOHandlers() {
+        Memory memory = new Memory();
+        final int[] writes = new int[1];
+        memory.registerIOHandler(0xFF44,
+                address -> (byte) 0x90,
+                (address, value) -> writes[0]++);
+
+        memory.writeByte(0xFF44, (byte) 0x12);
+        assertEquals(1, writes[0]);
+        assertEquals((byte) 0x90, memory.readByte(0xFF44));
+        // The handler didn't store anything
+        assertEquals((byte) 0, memory.getIORegister(0xFF44));
+
+        // Registers without handlers, and HRAM, still behave like memory
+        memory.writeByte(0xFF43, (byte) 0x34);
+        memory.writeByte(0xFF90, (byte) 0x56);
+        assertEquals((byte) 0x34, memory.readByte(0xFF43));
+        assertEquals((byte) 0x56, memory.readByte(0xFF90));
+    }
+
+    // Test that restoring a snapshot taken during a DMA transfer brings the
+    // transfer and the boot rom mapping back with it
+    @Test
+    public void testSnapshotRestoreDuringDMA() {
+        Memory memory = new Memory();
+        for (int i = 0; i < 0xA0; i++) {
+            memory.writeByte(0xC100 + i, (byte) (i + 1));
+        }
+        memory.writeByte(Memory.DMA, (byte) 0xC1);
+        Memory.Snapshot snapshot = memory.snapshot();
+
+        memory.update(640);
+        memory.writeByte(Memory.BOOT_ROM_DISABLE, (byte) 1);
+        assertFalse(memory.isDMAActive());
+        assertFalse(memory.isBootRomMapped());
+
+        memory.restore(snapshot);
+        assertTrue(memory.isDMAActive());
+        assertTrue(memory.isBootRomMapped());
+        assertEquals((byte) 0x31, memory.readRom(0));
+        // The bus is still blocked outside 0xFF00-0xFFFF until the transfer
+        // finishes
+        assertEquals((byte) 0xFF, memory.readByte(0xC100));
+        memory.update(639);
+        assertTrue(memory.isDMAActive());
+        memory.update(640);
+        assertFalse(memory.isDMAActive());
+        assertEquals((byte) 1, memory.readByte(0xFE00));
+        assertEquals((byte) 0xA0, memory.readByte(0xFE9F));
+    }
+
+    // Test that HRAM stays on the fast path even though the IO registers on
+    // its page have handlers
+    @Test
+    public void testHramFastPath() {
+        Memory memory = new Memory();
+        memory.registerIOHandler(0xFF04, address -> (byte) 0x12, (address, value) -> {
+        });
+        // The first write copies the page away from ZERO_PAGE
+        memory.writeByte(0xFF80, (byte) 1);
+        long slow = memory.getSlowAccessCount();
+        for (int address = 0xFF80; address <= 0xFFFF; address++) {
+            memory.writeByte(address, (byte) address);
+            assertEquals((byte) address, memory.readByte(address));
+        }
+        assertEquals(slow, memory.getSlowAccessCount());
+
+        // The registers below it still go through their handlers
+        assertEquals((byte) 0x12, memory.readByte(0xFF04));
+        assertEquals(slow + 1, memory.getSlowAccessCount());
+
+        // A watchpoint in HRAM takes it off the fast path
+        memory.addWatchpoint(0xFFA0, true, false);
+        memory.setWatchpointListener((address, value, isWrite, pc, cycle) -> {
+        });
+        memory.readByte(0xFF90);
+        assertEquals(slow + 2, memory.getSlowAccessCount());
+    }
+
+    // Test that echo RAM mirrors work RAM in both directions, including
+    // across a snapshot, and that the unusable region ignores writes
+    @Test
+    public void testEchoRam() {
+        Memory memory = new Memory();
+        memory.writeByte(0xC123, (byte) 0x11);
+        assertEquals((byte) 0x11, memory.readByte(0xE123));
+        memory.writeByte(0xFDFF, (byte) 0x22);
+        assertEquals((byte) 0x22, memory.readByte(0xDDFF));
+
+        // 0xDE00-0xDFFF has no mirror, 0xFE00 is OAM
+        memory.writeByte(0xDE00, (byte) 0x33);
+        assertEquals((byte) 0x00, memory.readByte(0xFE00));
+
+        Memory.Snapshot snapshot = memory.snapshot();
+        memory.writeByte(0xE123, (byte) 0x44);
+        assertEquals((byte) 0x44, memory.readByte(0xC123));
+        memory.restore(snapshot);
+        assertEquals((byte) 0x11, memory.readByte(0xC123));
+        assertEquals((byte) 0x11, memory.readByte(0xE123));
+        memory.writeByte(0xC123, (byte) 0x55);
+        assertEquals((byte) 0x55, memory.readByte(0xE123));
+
+        memory.writeByte(0xFEA0, (byte) 0x66);
+        memory.writeByte(0xFEFF, (byte) 0x66);
+        assertEquals((byte) 0x00, memory.readByte(0xFEA0));
+        assertEquals((byte) 0x00, memory.readByte(0xFEFF));
+        memory.writeByte(0xFE9F, (byte) 0x66);
+        assertEquals((byte) 0x66, memory.readByte(0xFE9F));
+    }
+
 }
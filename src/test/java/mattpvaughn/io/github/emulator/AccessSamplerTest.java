@@ -0,0 +1,69 @@
+package mattpvaughn.io.github.emulator;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class AccessSamplerTest {
+
+    // Test that every access is counted against its region at a rate of 1
+    @Test
+    public void testCountsEveryAccess() throws IOException {
+        Memory memory = new Memory();
+        AccessSampler sampler = new AccessSampler(1, 1, Files.createTempDirectory("samples"));
+        memory.attachAccessSampler(sampler);
+
+        memory.writeByte(0xC000, (byte) 1);
+        memory.writeByte(0xC00F, (byte) 1);
+        memory.readByte(0xC010);
+        memory.readByte(0xFF80);
+
+        assertEquals(2, sampler.getWrites(0xC00));
+        assertEquals(0, sampler.getReads(0xC00));
+        assertEquals(1, sampler.getReads(0xC01));
+        assertEquals(1, sampler.getReads(0xFF8));
+
+        StringWriter csv = new StringWriter();
+        sampler.writeCsv(csv);
+        String[] lines = csv.toString().split("\\R");
+        assertEquals("address,reads,writes", lines[0]);
+        assertEquals("C000,0,2", lines[1]);
+        assertEquals("C010,1,0", lines[2]);
+        assertEquals("FF80,1,0", lines[3]);
+    }
+
+    // Test that only about one in sampleRate accesses is counted
+    @Test
+    public void testSampleRate() throws IOException {
+        Memory memory = new Memory();
+        AccessSampler sampler = new AccessSampler(1024, 1, Files.createTempDirectory("samples"));
+        memory.attachAccessSampler(sampler);
+        for (int i = 0; i < 1024 * 1000; i++) {
+            memory.readByte(0xC000);
+        }
+        int reads = sampler.getReads(0xC00);
+        assertTrue("Sampled " + reads, reads > 900 && reads < 1100);
+    }
+
+    // Test that each window is written out and the counts start again
+    @Test
+    public void testWindowOutput() throws IOException {
+        Path directory = Files.createTempDirectory("samples");
+        Memory memory = new Memory();
+        AccessSampler sampler = new AccessSampler(1, 1, directory);
+        memory.attachAccessSampler(sampler);
+        memory.readByte(0xC000);
+
+        memory.update(Memory.FRAME_CYCLES);
+
+        assertTrue(Files.exists(directory.resolve("access-00000.csv")));
+        assertTrue(Files.exists(directory.resolve("access-00000.png")));
+        assertEquals(0, sampler.getReads(0xC00));
+    }
+}
@@ -0,0 +1,289 @@
+package mattpvaughn.io.github.emulator;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class DisplayTest {
+
+    private static final int LCDC = 0xFF40;
+    private static final int STAT = 0xFF41;
+    private static final int LY = 0xFF44;
+    private static final int BGP = 0xFF47;
+    private static final int OBP0 = 0xFF48;
+    private static final int IF = 0xFF0F;
+
+    // Test the mode and line timing, and the V-blank interrupt
+    @Test
+    public void testTiming() {
+        Memory memory = new Memory();
+        Display display = new Display(memory);
+        memory.writeByte(LCDC, (byte) 0x91);
+        display.update(0);
+        assertEquals(2, memory.readByte(STAT) & 0b11);
+
+        display.update(80);
+        assertEquals(3, memory.readByte(STAT) & 0b11);
+        display.update(80 + 172);
+        assertEquals(0, memory.readByte(STAT) & 0b11);
+        display.update(456);
+        assertEquals(1, memory.readByte(LY));
+        assertEquals(2, memory.readByte(STAT) & 0b11);
+
+        display.update(456 * 144);
+        assertEquals(144, memory.readByte(LY) & 0xFF);
+        assertEquals(1, memory.readByte(STAT) & 0b11);
+        assertEquals(1, memory.readByte(IF) & 0x01);
+        assertEquals(1, display.getFrameCount());
+
+        display.update(456 * 154);
+        assertEquals(0, memory.readByte(LY));
+        assertEquals(2, memory.readByte(STAT) & 0b11);
+    }
+
+    // Test that a background tile and a sprite end up in the frame buffer
+    @Test
+    public void testRenderLine() {
+        Memory memory = new Memory();
+        Display display = new Display(memory);
+        memory.writeByte(BGP, (byte) 0b11100100);
+        memory.writeByte(OBP0, (byte) 0b11100100);
+
+        // Tile 1: top row is color 3 on the left half, color 0 on the right
+        memory.writeByte(0x8010, (byte) 0xF0);
+        memory.writeByte(0x8011, (byte) 0xF0);
+        // Tile 2: top row all color 1
+        memory.writeByte(0x8020, (byte) 0xFF);
+        // The first tile of the background map is tile 1
+        memory.writeByte(0x9800, (byte) 1);
+        // Sprite 0 at the top left of the screen, 16 pixels in, using tile 2
+        memory.writeByte(0xFE00, (byte) 16);
+        memory.writeByte(0xFE01, (byte) (8 + 16));
+        memory.writeByte(0xFE02, (byte) 2);
+
+        memory.writeByte(LCDC, (byte) 0x93);
+        display.update(0);
+        display.update(80 + 172);
+
+        int[] frame = display.getFrameBuffer();
+        int lightest = frame[4];
+        int darkest = frame[0];
+        assertEquals(lightest, frame[8]);
+        assertEquals(darkest, frame[3]);
+        // The sprite is drawn in color 1, which isn't either of those
+        int sprite = frame[16];
+        assertEquals(sprite, frame[23]);
+        assertEquals(lightest, frame[24]);
+        assertEquals(false, sprite == lightest || sprite == darkest);
+    }
+
+    // Test that skipped frames keep exactly the same timing and interrupts,
+    // but only every third frame is drawn and passed on
+    @Test
+    public void testFrameSkip() {
+        Memory skipMemory = new Memory();
+        Display skipping = new Display(skipMemory);
+        skipping.setFrameSkip(3);
+        Memory memory = new Memory();
+        Display drawing = new Display(memory);
+        List<Long> frames = new ArrayList<>();
+        skipping.setFrameListener((frameBuffer, frameNumber) -> frames.add(frameNumber));
+
+        for (Memory m : new Memory[]{skipMemory, memory}) {
+            m.writeByte(0x9800, (byte) 1);
+            m.writeByte(0x8010, (byte) 0xFF);
+            m.writeByte(LCDC, (byte) 0x91);
+            m.writeByte(0xFF45, (byte) 100);
+            m.writeByte(STAT, (byte) 0x78);
+        }
+        skipping.update(0);
+        drawing.update(0);
+        for (long cycle = 4; cycle < 70224 * 6 + 1000; cycle += 4) {
+            skipping.update(cycle);
+            drawing.update(cycle);
+            assertEquals(memory.readByte(LY), skipMemory.readByte(LY));
+            assertEquals(memory.readByte(STAT), skipMemory.readByte(STAT));
+            assertEquals(memory.readByte(IF), skipMemory.readByte(IF));
+        }
+        assertEquals(6, skipping.getFrameCount());
+        assertEquals(Arrays.asList(1L, 4L), frames);
+        assertEquals(drawing.getFrameBuffer()[0], skipping.getFrameBuffer()[0]);
+    }
+
+    // Test that a skipped frame leaves the last drawn frame in the buffer
+    @Test
+    public void testSkippedFrameNotDrawn() {
+        Memory memory = new Memory();
+        Display display = new Display(memory);
+        display.setFrameSkip(2);
+        memory.writeByte(BGP, (byte) 0b11100100);
+        memory.writeByte(LCDC, (byte) 0x91);
+        display.update(0);
+        display.update(70224);
+        int drawn = display.getFrameBuffer()[0];
+
+        // Change the background during the second frame, which is skipped
+        memory.writeByte(BGP, (byte) 0b00011011);
+        display.update(70224 * 2 - 1);
+        assertEquals(drawn, display.getFrameBuffer()[0]);
+        display.update(70224 * 3);
+        assertEquals(false, drawn == display.getFrameBuffer()[0]);
+    }
+
+    // Fill memory with a background, a window and overlapping sprites
+    private static void drawScene(Memory memory) {
+        memory.writeByte(BGP, (byte) 0b11100100);
+        memory.writeByte(OBP0, (byte) 0b11100100);
+        memory.writeByte(0xFF49, (byte) 0b00011011);
+        for (int tile = 0; tile < 8; tile++) {
+            for (int row = 0; row < 16; row++) {
+                memory.writeByte(0x8000 + tile * 16 + row, (byte) (tile * 37 + row * 11));
+            }
+        }
+        for (int i = 0; i < 0x800; i++) {
+            memory.writeByte(0x9800 + i, (byte) (i % 7));
+        }
+        memory.writeByte(0xFF42, (byte) 5);
+        memory.writeByte(0xFF43, (byte) 3);
+        memory.writeByte(0xFF4A, (byte) 20);
+        memory.writeByte(0xFF4B, (byte) 57);
+        int[][] sprites = {
+                {30, 20, 1, 0x00}, {30, 24, 2, 0x20}, {34, 3, 3, 0x10},
+                {40, 60, 4, 0x80}, {16, 100, 5, 0x40}, {50, 167, 6, 0x30},
+        };
+        for (int i = 0; i < sprites.length; i++) {
+            for (int b = 0; b < 4; b++) {
+                memory.writeByte(0xFE00 + i * 4 + b, (byte) sprites[i][b]);
+            }
+        }
+        memory.writeByte(LCDC, (byte) 0xF3);
+    }
+
+    // Test that for a frame with no mid-line changes the pixel FIFO draws
+    // exactly what the scanline renderer does
+    @Test
+    public void testPixelFifoMatchesScanline() {
+        Memory scanlineMemory = new Memory();
+        Display scanline = new Display(scanlineMemory);
+        drawScene(scanlineMemory);
+        Memory fifoMemory = new Memory();
+        Display fifo = new Display(fifoMemory);
+        fifo.setRenderer(Display.Renderer.PIXEL_FIFO);
+        drawScene(fifoMemory);
+
+        scanline.update(0);
+        scanline.update(70224);
+        fifo.update(0);
+        fifo.update(70224);
+        assertEquals(1, fifo.getFrameCount());
+        assertArrayEquals(scanline.getFrameBuffer(), fifo.getFrameBuffer());
+    }
+
+    // Test that mode 3 gets longer with fine scrolling and sprites, each
+    // sprite costing 6 dots plus the wait for the background fetcher to
+    // finish the tile its left edge is in
+    @Test
+    public void testPixelFifoTransferLength() {
+        assertEquals(172, transferLength(0));
+        assertEquals(175, transferLength(3));
+        assertEquals(172 + 11, transferLength(0, 40));
+        assertEquals(172 + 7, transferLength(0, 44));
+        assertEquals(175 + 8, transferLength(3, 40));
+        assertEquals(175 + 11, transferLength(3, 0));
+        // Only the first sprite in a tile waits for the fetcher
+        assertEquals(172 + 11 + 6, transferLength(0, 40, 42));
+    }
+
+    // The length of mode 3 on the first line, in cycles, with sprites on it
+    // at the given OAM X positions
+    private static int transferLength(int scx, int... spriteX) {
+        Memory memory = new Memory();
+        Display display = new Display(memory);
+        display.setRenderer(Display.Renderer.PIXEL_FIFO);
+        memory.writeByte(0xFF43, (byte) scx);
+        for (int i = 0; i < spriteX.length; i++) {
+            memory.writeByte(0xFE00 + i * 4, (byte) 16);
+            memory.writeByte(0xFE01 + i * 4, (byte) spriteX[i]);
+        }
+        memory.writeByte(LCDC, (byte) 0x93);
+        display.update(0);
+        for (int cycle = 80; cycle < 456; cycle++) {
+            display.update(cycle);
+            if ((memory.readByte(STAT) & 0b11) == 0) {
+                return cycle - 80;
+            }
+        }
+        throw new IllegalStateException("Mode 3 didn't end");
+    }
+
+    // Test that a palette change part way along a line only changes the
+    // pixels after it
+    @Test
+    public void testPixelFifoMidLineWrite() {
+        Memory memory = new Memory();
+        Display display = new Display(memory);
+        display.setRenderer(Display.Renderer.PIXEL_FIFO);
+        memory.writeByte(BGP, (byte) 0b11100100);
+        memory.writeByte(LCDC, (byte) 0x91);
+        display.update(0);
+        // Pixel x is drawn on dot 12 + x of mode 3
+        display.update(80 + 12 + 80);
+        memory.writeByte(BGP, (byte) 0b00011011);
+        display.update(456);
+
+        int[] frame = display.getFrameBuffer();
+        assertEquals(frame[0], frame[79]);
+        assertEquals(frame[80], frame[159]);
+        assertEquals(false, frame[79] == frame[80]);
+    }
+
+    // Run a frame which changes BGP part way along lines 10-19
+    private static void runRasterFrame(Memory memory, Display display, long start) {
+        for (int line = 0; line < 154; line++) {
+            long lineStart = start + line * 456L;
+            display.update(lineStart + 80 + 12 + 40);
+            if (line >= 10 && line < 20) {
+                memory.writeByte(BGP, (byte) (line % 2 == 0 ? 0b00011011 : 0b11100100));
+            }
+            display.update(lineStart + 456);
+        }
+    }
+
+    // Test that AUTO draws a raster effect as the pixel FIFO does, and
+    // goes back to the scanline renderer once the writes stop
+    @Test
+    public void testAutoRenderer() {
+        Memory autoMemory = new Memory();
+        Display auto = new Display(autoMemory);
+        auto.setRenderer(Display.Renderer.AUTO);
+        Memory fifoMemory = new Memory();
+        Display fifo = new Display(fifoMemory);
+        fifo.setRenderer(Display.Renderer.PIXEL_FIFO);
+        for (Memory m : new Memory[]{autoMemory, fifoMemory}) {
+            drawScene(m);
+        }
+        auto.update(0);
+        fifo.update(0);
+        runRasterFrame(autoMemory, auto, 0);
+        runRasterFrame(fifoMemory, fifo, 0);
+        assertArrayEquals(fifo.getFrameBuffer(), auto.getFrameBuffer());
+        // Line 10 onwards, to the end of this frame
+        assertEquals(134, auto.getAccurateLineCount());
+
+        // The next frame still draws accurately, then writes in H-blank don't
+        // count as mid-line
+        auto.update(70224 * 2);
+        assertEquals(134 + 144, auto.getAccurateLineCount());
+        for (int line = 0; line < 154; line++) {
+            auto.update(70224 * 2 + line * 456L + 300);
+            autoMemory.writeByte(BGP, (byte) 0b11100100);
+        }
+        auto.update(70224 * 4);
+        assertEquals(134 + 144, auto.getAccurateLineCount());
+    }
+}
@@ -0,0 +1,198 @@
+package mattpvaughn.io.github.emulator;
+
+import mattpvaughn.io.github.emulator.cartridge.CartridgeHeaderTest;
+import mattpvaughn.io.github.emulator.cpu.CPU;
+import org.junit.Test;
+
+import java.io.File;
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Supplier;
+
+import static org.junit.Assert.assertTrue;
+
+// Keeps an eye on how much heap each emulator instance needs, since lots of
+// them are run side by side headless.
+//
+// Sizes are worked out from the object graph rather than from the heap, so
+// they don't depend on when the GC runs: every object an instance reaches is
+// counted at the size a 64 bit JVM with compressed references gives it
+// (12 byte object headers, 16 byte array headers, 4 byte references, all
+// rounded up to 8 bytes). Classes from the JDK aren't looked inside, except
+// for the collections and BitSets the emulator holds.
+public class FootprintTest {
+
+    private static final int OBJECT_HEADER = 12;
+    private static final int ARRAY_HEADER = 16;
+    private static final int REFERENCE_SIZE = 4;
+
+    // Everything a running game owns: a Memory with the game attached, its
+    // CPU, and the RAM a game typically writes to (all of VRAM, WRAM, OAM,
+    // IO and HRAM). Memory keeps hold of the CPU, see Bus.attachCPU().
+    private static Memory createInstance() {
+        Memory memory = new Memory();
+        memory.attachGameFile(new File(CartridgeHeaderTest.exampleGameRom));
+        CPU cpu = new CPU.Builder().memory(memory).build();
+        memory.skipBootRom();
+        cpu.skipBootRom();
+        for (int address = 0x8000; address < 0xA000; address += Memory.PAGE_SIZE) {
+            memory.writeByte(address, (byte) 1);
+        }
+        for (int address = 0xC000; address < 0xE000; address += Memory.PAGE_SIZE) {
+            memory.writeByte(address, (byte) 1);
+        }
+        memory.writeByte(0xFE00, (byte) 1);
+        memory.writeByte(0xFF80, (byte) 1);
+        return memory;
+    }
+
+    // An instance as run headless: the same, plus its display, having
+    // drawn a frame
+    private static Object createInstanceWithDisplay() {
+        Memory memory = createInstance();
+        Display display = new Display(memory);
+        display.update(Memory.FRAME_CYCLES + 456);
+        return display;
+    }
+
+    // Test that an instance retains no more than 32 KB beyond the ROM, which
+    // is shared between instances
+    @Test
+    public void testPerInstanceBudget() {
+        long perInstance = measure(FootprintTest::createInstance);
+        assertTrue("Each instance retains " + perInstance + " bytes", perInstance < 32 * 1024);
+    }
+
+    // Test that a headless display adds no more than 160 KB: one frame
+    // buffer (90 KB) and the decoded tiles (48 KB). The triple buffer is
+    // only made for a window.
+    @Test
+    public void testDisplayBudget() {
+        long perInstance = measure(FootprintTest::createInstanceWithDisplay)
+                - measure(FootprintTest::createInstance);
+        assertTrue("Each display retains " + perInstance + " bytes", perInstance < 160 * 1024);
+    }
+
+    // The bytes an instance made by a factory retains of its own: everything
+    // it reaches which another instance from the same factory doesn't (the
+    // ROM, the boot rom, ZERO_PAGE and so on are shared)
+    private static long measure(Supplier<Object> factory) {
+        Set<Object> shared = Collections.newSetFromMap(new IdentityHashMap<>());
+        retainedSize(factory.get(), shared, Collections.emptySet());
+        return retainedSize(factory.get(), Collections.newSetFromMap(new IdentityHashMap<>()), shared);
+    }
+
+    // Add up the objects reachable from root, leaving out (and not looking
+    // inside) those in exclude. Every object counted is added to visited.
+    private static long retainedSize(Object root, Set<Object> visited, Set<Object> exclude) {
+        long total = 0;
+        Deque<Object> pending = new ArrayDeque<>();
+        pending.push(root);
+        while (!pending.isEmpty()) {
+            Object object = pending.pop();
+            if (exclude.contains(object) || !visited.add(object)) {
+                continue;
+            }
+            total += sizeOf(object);
+            for (Object child : children(object)) {
+                if (child != null) {
+                    pending.push(child);
+                }
+            }
+        }
+        return total;
+    }
+
+    private static long sizeOf(Object object) {
+        Class<?> type = object.getClass();
+        if (type.isArray()) {
+            Class<?> component = type.getComponentType();
+            long elementSize = component.isPrimitive() ? primitiveSize(component) : REFERENCE_SIZE;
+            return align(ARRAY_HEADER + Array.getLength(object) * elementSize);
+        }
+        long size = OBJECT_HEADER;
+        for (Class<?> c = type; c != null; c = c.getSuperclass()) {
+            for (Field field : c.getDeclaredFields()) {
+                if (!Modifier.isStatic(field.getModifiers())) {
+                    size += field.getType().isPrimitive() ? primitiveSize(field.getType()) : REFERENCE_SIZE;
+                }
+            }
+        }
+        size = align(size);
+        // The arrays inside the JDK classes the emulator uses
+        if (object instanceof BitSet) {
+            size += align(ARRAY_HEADER + ((BitSet) object).size() / Byte.SIZE);
+        } else if (object instanceof Collection) {
+            size += align(ARRAY_HEADER + (long) ((Collection<?>) object).size() * REFERENCE_SIZE);
+        } else if (object instanceof Map) {
+            size += align(ARRAY_HEADER + (long) ((Map<?, ?>) object).size() * REFERENCE_SIZE * 2);
+        }
+        return size;
+    }
+
+    // The objects an object refers to
+    private static List<Object> children(Object object) {
+        List<Object> children = new ArrayList<>();
+        Class<?> type = object.getClass();
+        if (type.isArray()) {
+            if (!type.getComponentType().isPrimitive()) {
+                Collections.addAll(children, (Object[]) object);
+            }
+            return children;
+        }
+        if (object instanceof Collection) {
+            children.addAll((Collection<?>) object);
+            return children;
+        }
+        if (object instanceof Map) {
+            children.addAll(((Map<?, ?>) object).keySet());
+            children.addAll(((Map<?, ?>) object).values());
+            return children;
+        }
+        if (object instanceof Class || type.getName().startsWith("java.")) {
+            return children;
+        }
+        for (Class<?> c = type; c != null; c = c.getSuperclass()) {
+            for (Field field : c.getDeclaredFields()) {
+                if (Modifier.isStatic(field.getModifiers()) || field.getType().isPrimitive()) {
+                    continue;
+                }
+                try {
+                    field.setAccessible(true);
+                    children.add(field.get(object));
+                } catch (IllegalAccessException | RuntimeException e) {
+                    // Not ours to look inside
+                }
+            }
+        }
+        return children;
+    }
+
+    private static long primitiveSize(Class<?> type) {
+        if (type == long.class || type == double.class) {
+            return 8;
+        }
+        if (type == int.class || type == float.class) {
+            return 4;
+        }
+        if (type == short.class || type == char.class) {
+            return 2;
+        }
+        return 1;
+    }
+
+    private static long align(long size) {
+        return (size + 7) & ~7L;
+    }
+}
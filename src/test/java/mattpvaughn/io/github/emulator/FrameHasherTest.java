@@ -0,0 +1,44 @@
+package mattpvaughn.io.github.emulator;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+public class FrameHasherTest {
+
+    // Test that equal frames hash the same and a one pixel change doesn't
+    @Test
+    public void testHash() {
+        int[] frame = new int[Display.SCREEN_WIDTH * Display.SCREEN_HEIGHT];
+        long blank = FrameHasher.hash(frame);
+        assertEquals(blank, FrameHasher.hash(frame.clone()));
+        frame[frame.length - 1] = 1;
+        assertNotEquals(blank, FrameHasher.hash(frame));
+        frame[frame.length - 1] = 0;
+        frame[0] = 0xFF000000;
+        assertNotEquals(blank, FrameHasher.hash(frame));
+    }
+
+    // Test that the display hands every frame to the hasher, one line each
+    @Test
+    public void testHashesEveryFrame() {
+        Memory memory = new Memory();
+        Display display = new Display(memory);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        FrameHasher hasher = new FrameHasher(new PrintStream(out));
+        display.setFrameListener(hasher);
+        memory.writeByte(0xFF40, (byte) 0x91);
+
+        display.update(0);
+        display.update(70224 * 3);
+
+        assertEquals(3, hasher.getFrameCount());
+        String[] lines = out.toString().trim().split("\\R");
+        assertEquals(3, lines.length);
+        assertEquals(String.format("3 %016x", hasher.getLastHash()), lines[2]);
+    }
+}
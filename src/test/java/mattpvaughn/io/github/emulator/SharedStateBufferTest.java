@@ -0,0 +1,43 @@
+package mattpvaughn.io.github.emulator;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+
+public class SharedStateBufferTest {
+
+    // Test that publishing copies RAM to the documented offsets and leaves
+    // the header consistent
+    @Test
+    public void testPublishLayout() {
+        Memory memory = new Memory();
+        SharedStateBuffer sharedState = SharedStateBuffer.allocateDirect();
+        memory.attachSharedState(sharedState);
+
+        memory.writeByte(0x8001, (byte) 1);
+        memory.writeByte(0xC123, (byte) 2);
+        memory.writeByte(0xFE9F, (byte) 3);
+        memory.writeByte(0xFFFE, (byte) 4);
+        memory.update(100);
+
+        ByteBuffer buffer = sharedState.getBuffer();
+        assertEquals(SharedStateBuffer.MAGIC, buffer.getInt(0));
+        assertEquals(SharedStateBuffer.VERSION, buffer.getInt(4));
+        assertEquals(2, buffer.getLong(SharedStateBuffer.SEQUENCE_OFFSET));
+        assertEquals(1, buffer.getLong(SharedStateBuffer.FRAME_OFFSET));
+        assertEquals(100, buffer.getLong(SharedStateBuffer.CYCLES_OFFSET));
+        assertEquals(1, buffer.get(SharedStateBuffer.VRAM_OFFSET + 0x0001));
+        assertEquals(2, buffer.get(SharedStateBuffer.WRAM_OFFSET + 0x0123));
+        assertEquals(3, buffer.get(SharedStateBuffer.OAM_OFFSET + 0x9F));
+        assertEquals(4, buffer.get(SharedStateBuffer.HRAM_OFFSET + 0xFE));
+
+        // Nothing more is published until a frame has gone by
+        memory.writeByte(0xC123, (byte) 5);
+        memory.update(200);
+        assertEquals(2, buffer.get(SharedStateBuffer.WRAM_OFFSET + 0x0123));
+        memory.update(100 + 70224);
+        assertEquals(5, buffer.get(SharedStateBuffer.WRAM_OFFSET + 0x0123));
+    }
+}
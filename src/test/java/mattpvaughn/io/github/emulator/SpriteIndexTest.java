@@ -0,0 +1,88 @@
+package mattpvaughn.io.github.emulator;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SpriteIndexTest {
+
+    private static void setSprite(Memory memory, int sprite, int y, int x) {
+        memory.writeByte(0xFE00 + sprite * 4, (byte) y);
+        memory.writeByte(0xFE00 + sprite * 4 + 1, (byte) x);
+    }
+
+    private static int[] getSprites(SpriteIndex index, int line, int height) {
+        int[] sprites = new int[SpriteIndex.SPRITES_PER_LINE];
+        int count = index.getSprites(line, height, sprites);
+        int[] result = new int[count];
+        System.arraycopy(sprites, 0, result, 0, count);
+        return result;
+    }
+
+    // Test that sprites are found on the lines they cover, in priority order
+    @Test
+    public void testPriorityOrder() {
+        Memory memory = new Memory();
+        SpriteIndex index = new SpriteIndex(memory);
+        setSprite(memory, 0, 16 + 10, 50);
+        setSprite(memory, 1, 16 + 12, 20);
+        setSprite(memory, 2, 16 + 14, 50);
+
+        assertEquals(0, getSprites(index, 9, 8).length);
+        assertEquals("[0]", Arrays.toString(getSprites(index, 10, 8)));
+        assertEquals("[1, 0, 2]", Arrays.toString(getSprites(index, 14, 8)));
+        assertEquals("[1, 2]", Arrays.toString(getSprites(index, 18, 8)));
+        assertTrue(memory.getDirtyOAM().isEmpty());
+    }
+
+    // Test that only the first ten sprites in the table covering a line count,
+    // whatever their x
+    @Test
+    public void testTenPerLine() {
+        Memory memory = new Memory();
+        SpriteIndex index = new SpriteIndex(memory);
+        for (int sprite = 0; sprite < 12; sprite++) {
+            setSprite(memory, sprite, 16 + 40, 100 - sprite);
+        }
+        int[] sprites = getSprites(index, 40, 8);
+        assertEquals(10, sprites.length);
+        assertEquals(9, sprites[0]);
+        assertEquals(0, sprites[9]);
+    }
+
+    // Test that moved sprites, DMA and a change of height are picked up
+    @Test
+    public void testUpdates() {
+        Memory memory = new Memory();
+        SpriteIndex index = new SpriteIndex(memory);
+        setSprite(memory, 3, 16 + 20, 8);
+        assertEquals(1, getSprites(index, 20, 8).length);
+
+        setSprite(memory, 3, 16 + 30, 8);
+        assertEquals(0, getSprites(index, 20, 8).length);
+        assertEquals(1, getSprites(index, 30, 8).length);
+        assertEquals(0, getSprites(index, 40, 8).length);
+        assertEquals(1, getSprites(index, 40, 16).length);
+
+        // Copy a table from 0xC000 with sprite 5 on line 60
+        memory.writeByte(0xC000 + 5 * 4, (byte) (16 + 60));
+        memory.startDMA(0xC000);
+        memory.update(1000);
+        assertEquals("[5]", Arrays.toString(getSprites(index, 60, 16)));
+        assertEquals(0, getSprites(index, 30, 16).length);
+    }
+
+    // Test that LCDC bit 2 picks 8x16 sprites
+    @Test
+    public void testSpriteHeight() {
+        Memory memory = new Memory();
+        Display display = new Display(memory);
+        memory.writeByte(0xFF40, (byte) 0x04);
+        assertEquals(16, display.spriteHeight());
+        memory.writeByte(0xFF40, (byte) 0x08);
+        assertEquals(8, display.spriteHeight());
+    }
+}
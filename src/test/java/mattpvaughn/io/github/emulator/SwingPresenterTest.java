@@ -0,0 +1,26 @@
+package mattpvaughn.io.github.emulator;
+
+import org.junit.Test;
+
+import java.awt.image.BufferedImage;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SwingPresenterTest {
+
+    // Test that each frame buffer gets one image, which shows its pixels
+    // without copying them. (No window is opened.)
+    @Test
+    public void testImagesSharePixels() {
+        TripleBuffer frames = new TripleBuffer(Display.SCREEN_WIDTH * Display.SCREEN_HEIGHT);
+        SwingPresenter presenter = new SwingPresenter(frames, 2, "test");
+        int[] pixels = frames.getBackBuffer();
+        BufferedImage image = presenter.getImage(pixels);
+        assertTrue(image == presenter.getImage(pixels));
+
+        pixels[Display.SCREEN_WIDTH + 3] = 0xFF123456;
+        assertEquals(0xFF123456, image.getRGB(3, 1));
+        assertEquals(Display.SCREEN_WIDTH, image.getWidth());
+    }
+}
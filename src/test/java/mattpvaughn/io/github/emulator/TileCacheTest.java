@@ -0,0 +1,52 @@
+package mattpvaughn.io.github.emulator;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TileCacheTest {
+
+    // Test that a tile is decoded into color numbers, flipped and unflipped
+    @Test
+    public void testDecode() {
+        Memory memory = new Memory();
+        TileCache cache = new TileCache(memory);
+        // Row 1 of tile 2: colors 3, 2, 1, 0, 0, 0, 0, 0
+        memory.writeByte(0x8022, (byte) 0b10100000);
+        memory.writeByte(0x8023, (byte) 0b11000000);
+        cache.update();
+
+        int row = 2 * TileCache.TILE_PIXELS + 8;
+        assertEquals(3, cache.getPixels()[row]);
+        assertEquals(2, cache.getPixels()[row + 1]);
+        assertEquals(1, cache.getPixels()[row + 2]);
+        assertEquals(0, cache.getPixels()[row + 3]);
+        assertEquals(3, cache.getFlippedPixels()[row + 7]);
+        assertEquals(1, cache.getFlippedPixels()[row + 5]);
+        assertTrue(memory.getDirtyTiles().isEmpty());
+    }
+
+    // Test that only tiles which were written to are decoded again
+    @Test
+    public void testOnlyDirtyTilesDecoded() {
+        Memory memory = new Memory();
+        TileCache cache = new TileCache(memory);
+        cache.update();
+        memory.writeByte(0x8000, (byte) 0x80);
+        assertEquals(1, memory.getDirtyTiles().cardinality());
+        cache.update();
+        assertEquals(1, cache.getPixels()[0]);
+    }
+
+    // Test both tile data addressing modes
+    @Test
+    public void testTileIndex() {
+        assertEquals(0, TileCache.getTileIndex(0, true));
+        assertEquals(255, TileCache.getTileIndex(0xFF, true));
+        // 0x8800 mode: 0 is the tile at 0x9000, 0x80 the tile at 0x8800
+        assertEquals(256, TileCache.getTileIndex(0, false));
+        assertEquals(128, TileCache.getTileIndex(0x80, false));
+        assertEquals(383, TileCache.getTileIndex(0x7F, false));
+    }
+}
@@ -0,0 +1,132 @@
+package mattpvaughn.io.github.emulator;
+
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TripleBufferTest {
+
+    // Test that the presenter gets the newest frame, and that the three
+    // buffers never swap into the wrong roles
+    @Test
+    public void testSwaps() {
+        TripleBuffer buffers = new TripleBuffer(4);
+        assertEquals(false, buffers.hasNewFrame());
+        assertEquals(0, buffers.acquire()[0]);
+
+        buffers.getBackBuffer()[0] = 1;
+        buffers.publish(1);
+        buffers.getBackBuffer()[0] = 2;
+        buffers.publish(2);
+        assertTrue(buffers.hasNewFrame());
+        // Frame 1 was replaced before it was picked up
+        int[] newest = buffers.acquire();
+        assertEquals(2, newest[0]);
+        assertEquals(2, buffers.getFrontFrameNumber());
+        assertEquals(false, buffers.hasNewFrame());
+        assertTrue(newest == buffers.acquire());
+
+        // The back buffer is never the one being shown
+        assertTrue(buffers.getBackBuffer() != newest);
+        buffers.getBackBuffer()[0] = 3;
+        buffers.publish(3);
+        assertTrue(buffers.getBackBuffer() != newest);
+        assertEquals(3, buffers.acquire()[0]);
+    }
+
+    // Test that a presenter on another thread only ever sees whole frames,
+    // in order
+    @Test
+    public void testNoTearing() throws InterruptedException {
+        TripleBuffer buffers = new TripleBuffer(160 * 144);
+        int frames = 2000;
+        AtomicReference<String> error = new AtomicReference<>();
+        Thread presenter = new Thread(() -> {
+            long last = 0;
+            while (last < frames) {
+                int[] frame = buffers.acquire();
+                long number = buffers.getFrontFrameNumber();
+                for (int pixel : frame) {
+                    if (pixel != (int) number) {
+                        error.set("Frame " + number + " has a pixel from frame " + pixel);
+                        return;
+                    }
+                }
+                if (number < last) {
+                    error.set("Frame " + number + " after frame " + last);
+                    return;
+                }
+                last = number;
+            }
+        });
+        presenter.start();
+        for (int frame = 1; frame <= frames; frame++) {
+            int[] back = buffers.getBackBuffer();
+            for (int i = 0; i < back.length; i++) {
+                back[i] = frame;
+            }
+            buffers.publish(frame);
+        }
+        presenter.join(10000);
+        assertEquals(null, error.get());
+        assertEquals(false, presenter.isAlive());
+    }
+
+    // Test that Display publishes each drawn frame as V-blank starts
+    @Test
+    public void testDisplayPublishes() {
+        Memory memory = new Memory();
+        Display display = new Display(memory);
+        TripleBuffer buffers = display.getTripleBuffer();
+        memory.writeByte(0xFF47, (byte) 0b11100100);
+        memory.writeByte(0xFF40, (byte) 0x91);
+        display.update(0);
+        display.update(456 * 144);
+        assertTrue(buffers.hasNewFrame());
+        int[] frame = buffers.acquire();
+        assertTrue(frame == display.getFrameBuffer());
+        assertEquals(1, buffers.getFrontFrameNumber());
+
+        // The next frame is drawn into a different buffer
+        display.update(70224 + 456);
+        assertTrue(frame != display.getFrameBuffer());
+    }
+
+    // Test that restoring a snapshot right after a frame is published
+    // doesn't draw over the published frame
+    @Test
+    public void testRestoreTakesFreshBuffer() {
+        Memory memory = new Memory();
+        Display display = new Display(memory);
+        TripleBuffer buffers = display.getTripleBuffer();
+        memory.writeByte(0xFF40, (byte) 0x91);
+        display.update(0);
+        Memory.Snapshot snapshot = memory.snapshot();
+        display.update(456 * 144);
+        int[] published = display.getFrameBuffer();
+
+        memory.restore(snapshot);
+        assertTrue(display.getFrameBuffer() != published);
+        assertTrue(buffers.acquire() == published);
+    }
+
+    // Test that no triple buffer is made unless something asks for one
+    @Test
+    public void testTripleBufferIsLazy() {
+        Memory memory = new Memory();
+        Display display = new Display(memory);
+        memory.writeByte(0xFF40, (byte) 0x91);
+        display.update(0);
+        display.update(70224 + 456);
+        int[] single = display.getFrameBuffer();
+        display.update(2 * 70224 + 456);
+        assertTrue(display.getFrameBuffer() == single);
+
+        TripleBuffer buffers = display.getTripleBuffer();
+        display.update(3 * 70224 + 456);
+        assertTrue(display.getFrameBuffer() == buffers.getBackBuffer());
+    }
+}
@@ -0,0 +1,143 @@
+package mattpvaughn.io.github.emulator.capture;
+
+import mattpvaughn.io.github.emulator.Display;
+import org.junit.Test;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class FrameCaptureTest {
+
+    private static final int FRAME_SIZE = Display.SCREEN_WIDTH * Display.SCREEN_HEIGHT;
+
+    private static int[] frame(int color) {
+        int[] pixels = new int[FRAME_SIZE];
+        Arrays.fill(pixels, color);
+        return pixels;
+    }
+
+    // Test that frames are dropped and counted, not waited for, when the
+    // writer falls behind
+    @Test
+    public void testDropsWhenBehind() throws IOException, InterruptedException {
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        FrameWriter slowWriter = new FrameWriter() {
+            @Override
+            public void write(int[] pixels, long frameNumber) {
+                started.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+        FrameCapture capture = new FrameCapture(slowWriter, 2);
+        capture.onFrame(frame(1), 1);
+        started.await();
+        // One frame is being written and one can wait, the rest are dropped
+        for (int i = 2; i <= 5; i++) {
+            capture.onFrame(frame(i), i);
+        }
+        assertEquals(3, capture.getDroppedFrames());
+        release.countDown();
+        capture.close();
+        assertEquals(2, capture.getWrittenFrames());
+    }
+
+    // Test that frames are copied, so the display can draw over its buffer
+    // straight away
+    @Test
+    public void testFramesAreCopied() throws IOException {
+        Path file = Files.createTempFile("capture", ".rgb");
+        FrameCapture capture = new FrameCapture(new RawVideoWriter(file), 4);
+        int[] pixels = frame(0xFF102030);
+        capture.onFrame(pixels, 1);
+        Arrays.fill(pixels, 0xFFFFFFFF);
+        capture.close();
+
+        byte[] bytes = Files.readAllBytes(file);
+        assertEquals(RawVideoWriter.FRAME_BYTES, bytes.length);
+        assertEquals(0x10, bytes[0]);
+        assertEquals(0x20, bytes[1]);
+        assertEquals(0x30, bytes[2]);
+    }
+
+    // Test that a screenshot of the next frame is written as a PNG
+    @Test
+    public void testScreenshot() throws IOException {
+        Path file = Files.createTempDirectory("capture").resolve("shot.png");
+        FrameCapture capture = new FrameCapture(null, 1);
+        capture.requestScreenshot(file);
+        int[] pixels = frame(0xFF000000);
+        pixels[Display.SCREEN_WIDTH * 2 + 5] = 0xFF336699;
+        capture.onFrame(pixels, 1);
+        capture.close();
+
+        BufferedImage image = ImageIO.read(file.toFile());
+        assertEquals(Display.SCREEN_WIDTH, image.getWidth());
+        assertEquals(0xFF336699, image.getRGB(5, 2));
+        assertEquals(0xFF000000, image.getRGB(0, 0));
+    }
+
+    // Test the AVI file's sizes, frame count, index and pixel order
+    @Test
+    public void testAvi() throws IOException {
+        Path file = Files.createTempFile("capture", ".avi");
+        AviWriter writer = new AviWriter(file);
+        int[] pixels = frame(0xFF000000);
+        // Top left pixel, which is stored in the last row
+        pixels[0] = 0xFF112233;
+        for (int i = 1; i <= 3; i++) {
+            writer.write(pixels, i);
+        }
+        writer.close();
+
+        ByteBuffer avi = ByteBuffer.wrap(Files.readAllBytes(file)).order(ByteOrder.LITTLE_ENDIAN);
+        assertEquals("RIFF", fourCC(avi, 0));
+        assertEquals(avi.capacity() - 8, avi.getInt(4));
+        assertEquals("AVI ", fourCC(avi, 8));
+        assertEquals("avih", fourCC(avi, 24));
+        assertEquals(3, avi.getInt(48));
+        assertEquals("strh", fourCC(avi, 100));
+        assertEquals(3, avi.getInt(140));
+        assertEquals("movi", fourCC(avi, 220));
+        int chunk = 8 + AviWriter.FRAME_BYTES;
+        assertEquals(4 + 3 * chunk, avi.getInt(216));
+
+        assertEquals("00db", fourCC(avi, 224));
+        int lastRow = 224 + 8 + (Display.SCREEN_HEIGHT - 1) * Display.SCREEN_WIDTH * 3;
+        assertEquals(0x33, avi.get(lastRow));
+        assertEquals(0x22, avi.get(lastRow + 1));
+        assertEquals(0x11, avi.get(lastRow + 2));
+
+        int index = 224 + 3 * chunk;
+        assertEquals("idx1", fourCC(avi, index));
+        assertEquals(3 * 16, avi.getInt(index + 4));
+        assertEquals(4 + chunk, avi.getInt(index + 8 + 16 + 8));
+        assertTrue(avi.capacity() == index + 8 + 3 * 16);
+    }
+
+    private static String fourCC(ByteBuffer buffer, int position) {
+        StringBuilder code = new StringBuilder();
+        for (int i = 0; i < 4; i++) {
+            code.append((char) buffer.get(position + i));
+        }
+        return code.toString();
+    }
+}
@@ -0,0 +1,66 @@
+package mattpvaughn.io.github.emulator.cartridge;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class CartridgeHeaderTest {
+
+    // Example GameBoy game ROM
+    public static final String exampleGameRom = "src/main/java/mattpvaughn/io/github/emulator/rom/tetris.gb";
+
+    // Test reading the header of an example game
+    @Test
+    public void testReadHeader() throws IOException {
+        CartridgeHeader header;
+        try (FileChannel channel = FileChannel.open(Paths.get(exampleGameRom), StandardOpenOption.READ)) {
+            header = CartridgeHeader.read(channel);
+        }
+
+        assertEquals("TETRIS", header.getTitle());
+        assertEquals(0x00, header.getCartridgeType());
+        assertEquals(0x8000, header.getRomSize());
+        assertEquals(0, header.getRamSize());
+        assertFalse(header.isCgb());
+        assertEquals(0x0A, header.getHeaderChecksum());
+        assertEquals(0x16BF, header.getGlobalChecksum());
+        assertTrue(header.isHeaderChecksumValid());
+    }
+
+    // Test that a CGB game's title stops short of the CGB flag
+    @Test
+    public void testCgbTitle() {
+        byte[] rom = new byte[CartridgeHeader.HEADER_END];
+        for (int i = 0x134; i < 0x143; i++) {
+            rom[i] = 'A';
+        }
+        rom[0x143] = (byte) 0xC0;
+
+        CartridgeHeader header = CartridgeHeader.parse(rom);
+        assertEquals("AAAAAAAAAAAAAAA", header.getTitle());
+        assertTrue(header.isCgb());
+        assertFalse(header.isHeaderChecksumValid());
+    }
+
+    // Test that ROM size codes past 8 MB are treated as invalid rather than
+    // shifted into huge or negative sizes
+    @Test
+    public void testInvalidRomSize() {
+        byte[] rom = new byte[CartridgeHeader.HEADER_END];
+        rom[0x148] = 8;
+        assertEquals(0x800000, CartridgeHeader.parse(rom).getRomSize());
+        for (int code : new int[]{9, 12, 16, 31, 33, 0xFF}) {
+            rom[0x148] = (byte) code;
+            CartridgeHeader header = CartridgeHeader.parse(rom);
+            assertFalse(header.isRomSizeValid());
+            assertEquals(0, header.getRomSize());
+        }
+    }
+}
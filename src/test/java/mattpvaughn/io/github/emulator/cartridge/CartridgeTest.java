@@ -0,0 +1,250 @@
+package mattpvaughn.io.github.emulator.cartridge;
+
+import mattpvaughn.io.github.emulator.Memory;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class CartridgeTest {
+
+    // Write a ROM of the given type where every byte of bank n is n
+    private static File createRom(int cartridgeType, int romSizeCode, int ramSizeCode) throws IOException {
+        byte[] image = new byte[0x8000 << romSizeCode];
+        for (int i = 0; i < image.length; i++) {
+            image[i] = (byte) (i / 0x4000);
+        }
+        image[0x147] = (byte) cartridgeType;
+        image[0x148] = (byte) romSizeCode;
+        image[0x149] = (byte) ramSizeCode;
+        Path file = Files.createTempFile("cartridge", ".gb");
+        Files.write(file, image);
+        return file.toFile();
+    }
+
+    private static Memory attach(File rom) {
+        Memory memory = new Memory();
+        memory.attachGameFile(rom);
+        memory.skipBootRom();
+        return memory;
+    }
+
+    // Test MBC1 ROM bank switching and RAM enabling through memory
+    @Test
+    public void testMbc1() throws IOException {
+        Memory memory = attach(createRom(0x03, 2, 2));
+        assertTrue(memory.getCartridge() instanceof Mbc1Cartridge);
+
+        assertEquals(0, memory.readByte(0x0000));
+        assertEquals(1, memory.readByte(0x4000));
+        memory.writeByte(0x2000, (byte) 3);
+        assertEquals(3, memory.readByte(0x7FFF));
+        assertEquals(3, memory.getCodePage(0x40)[0]);
+        assertEquals(3, memory.readRom(0x4000));
+
+        // Bank 0 can't be selected at 0x4000
+        memory.writeByte(0x2000, (byte) 0);
+        assertEquals(1, memory.readByte(0x4000));
+
+        // Writes to the ROM area don't change the ROM
+        assertEquals(0, memory.readByte(0x2000));
+
+        // RAM reads 0xFF until it is enabled
+        assertEquals((byte) 0xFF, memory.readByte(0xA000));
+        memory.writeByte(0xA000, (byte) 0x42);
+        memory.writeByte(0x0000, (byte) 0x0A);
+        assertEquals(0, memory.readByte(0xA000));
+        memory.writeByte(0xA000, (byte) 0x42);
+        assertEquals(0x42, memory.readByte(0xA000));
+        memory.writeByte(0x0000, (byte) 0x00);
+        assertEquals((byte) 0xFF, memory.readByte(0xA000));
+    }
+
+    // Test that a bank switch only tells the CPU about remapped code once,
+    // and not at all when the banks don't change
+    @Test
+    public void testBankSwitchRemapsOnce() throws IOException {
+        Memory memory = attach(createRom(0x03, 2, 2));
+        byte[] bankZero = memory.getCodePage(0x00);
+        int version = memory.getCodeMapVersion();
+        memory.writeByte(0x2000, (byte) 3);
+        assertEquals(version + 1, memory.getCodeMapVersion());
+        memory.writeByte(0x2000, (byte) 3);
+        assertEquals(version + 1, memory.getCodeMapVersion());
+        memory.writeByte(0x0000, (byte) 0x0A);
+        assertEquals(version + 2, memory.getCodeMapVersion());
+        assertTrue(bankZero == memory.getCodePage(0x00));
+        assertEquals(3, memory.readByte(0x4000));
+    }
+
+    // Test that MBC1's upper bits and banking mode select the right banks
+    @Test
+    public void testMbc1UpperBits() {
+        Mbc1Cartridge cartridge = new Mbc1Cartridge(128, 0x8000);
+        cartridge.writeControl(0x2000, (byte) 0x02, 0);
+        cartridge.writeControl(0x4000, (byte) 0x01, 0);
+        assertEquals(0x22 * Cartridge.ROM_BANK_PAGES, cartridge.getRomPage(0x40));
+        assertEquals(0, cartridge.getRomPage(0x00));
+        cartridge.writeControl(0x6000, (byte) 0x01, 0);
+        assertEquals(0x20 * Cartridge.ROM_BANK_PAGES, cartridge.getRomPage(0x00));
+    }
+
+    // Test that a ROM is kept at its real size, so banks past its end mirror
+    // the banks it has rather than reading zeroes
+    @Test
+    public void testBanksMirror() throws IOException {
+        Memory memory = attach(createRom(0x01, 0, 0));
+        memory.writeByte(0x2000, (byte) 3);
+        assertEquals(1, memory.readByte(0x4000));
+        memory.writeByte(0x2000, (byte) 2);
+        assertEquals(0, memory.readByte(0x4000));
+
+        Mbc5Cartridge cartridge = new Mbc5Cartridge(3, 0);
+        cartridge.writeControl(0x2000, (byte) 0x06, 0);
+        assertEquals(2 * Cartridge.ROM_BANK_PAGES, cartridge.getRomPage(0x40));
+        cartridge.writeControl(0x2000, (byte) 0x03, 0);
+        assertEquals(0, cartridge.getRomPage(0x40));
+    }
+
+    // Test MBC3 bank switching and reading the clock through memory
+    @Test
+    public void testMbc3Clock() throws IOException {
+        Memory memory = attach(createRom(0x10, 2, 3));
+        memory.writeByte(0x2000, (byte) 5);
+        assertEquals(5, memory.readByte(0x4000));
+
+        memory.writeByte(0x0000, (byte) 0x0A);
+        memory.writeByte(0x4000, (byte) 0x02);
+        memory.writeByte(0xA000, (byte) 0x24);
+        assertEquals(0x24, memory.readByte(0xA000));
+
+        // Select the hours register and set it
+        memory.writeByte(0x4000, (byte) RealTimeClock.HOURS);
+        memory.writeByte(0xA000, (byte) 7);
+        memory.writeByte(0x6000, (byte) 0x00);
+        memory.writeByte(0x6000, (byte) 0x01);
+        assertEquals(7, memory.readByte(0xA000));
+
+        // Back to RAM bank 2
+        memory.writeByte(0x4000, (byte) 0x02);
+        assertEquals(0x24, memory.readByte(0xA000));
+    }
+
+    // Test that OAM DMA copies from the mapped ROM bank and cartridge RAM
+    @Test
+    public void testDmaFromCartridge() throws IOException {
+        Memory memory = attach(createRom(0x03, 2, 2));
+        memory.writeByte(0x2000, (byte) 3);
+        memory.startDMA(0x4000);
+        memory.update(640);
+        assertEquals(3, memory.readByte(0xFE00));
+        assertEquals(3, memory.readByte(0xFE9F));
+
+        // Disabled RAM reads 0xFF
+        memory.startDMA(0xA000);
+        memory.update(640);
+        assertEquals((byte) 0xFF, memory.readByte(0xFE00));
+
+        memory.writeByte(0x0000, (byte) 0x0A);
+        memory.writeByte(0xA000, (byte) 0x42);
+        memory.writeByte(0xA09F, (byte) 0x24);
+        memory.startDMA(0xA000);
+        memory.update(640);
+        assertEquals(0x42, memory.readByte(0xFE00));
+        assertEquals(0x24, memory.readByte(0xFE9F));
+    }
+
+    // Test that restoring a snapshot brings back the banks, RAM and clock
+    // which were selected when it was taken
+    @Test
+    public void testSnapshotRestoresBanks() throws IOException {
+        Memory memory = attach(createRom(0x10, 2, 3));
+        memory.writeByte(0x2000, (byte) 2);
+        memory.writeByte(0x0000, (byte) 0x0A);
+        memory.writeByte(0x4000, (byte) 1);
+        memory.writeByte(0xA000, (byte) 0x11);
+        memory.writeByte(0x4000, (byte) RealTimeClock.MINUTES);
+        memory.writeByte(0xA000, (byte) 9);
+        memory.writeByte(0x4000, (byte) 1);
+        Memory.Snapshot snapshot = memory.snapshot();
+
+        memory.writeByte(0x2000, (byte) 6);
+        memory.writeByte(0xA000, (byte) 0x22);
+        memory.writeByte(0x4000, (byte) 3);
+        memory.writeByte(0xA000, (byte) 0x33);
+        memory.writeByte(0x4000, (byte) RealTimeClock.MINUTES);
+        memory.writeByte(0xA000, (byte) 40);
+        memory.writeByte(0x0000, (byte) 0x00);
+        assertEquals(6, memory.readByte(0x4000));
+
+        memory.restore(snapshot);
+        assertEquals(2, memory.readByte(0x4000));
+        assertEquals(2, memory.getCodePage(0x40)[0]);
+        assertEquals(0x11, memory.readByte(0xA000));
+        memory.writeByte(0x4000, (byte) 3);
+        assertEquals(0, memory.readByte(0xA000));
+        memory.writeByte(0x4000, (byte) RealTimeClock.MINUTES);
+        memory.writeByte(0x6000, (byte) 0x00);
+        memory.writeByte(0x6000, (byte) 0x01);
+        assertEquals(9, memory.readByte(0xA000));
+
+        // The snapshot's RAM wasn't changed by writes after restoring it
+        memory.writeByte(0x4000, (byte) 1);
+        memory.writeByte(0xA000, (byte) 0x44);
+        memory.restore(snapshot);
+        assertEquals(0x11, memory.readByte(0xA000));
+    }
+
+    // Test that battery backed RAM and the clock are saved and loaded again,
+    // and that the clock keeps the time source it was asked for
+    @Test
+    public void testBatterySave() throws IOException {
+        Memory memory = attach(createRom(0x10, 2, 3));
+        assertTrue(memory.getCartridge().hasBattery());
+        memory.writeByte(0x0000, (byte) 0x0A);
+        memory.writeByte(0x4000, (byte) 2);
+        memory.writeByte(0xA001, (byte) 0x5A);
+        memory.writeByte(0x4000, (byte) RealTimeClock.HOURS);
+        memory.writeByte(0xA000, (byte) 13);
+        ByteArrayOutputStream save = new ByteArrayOutputStream();
+        memory.saveCartridgeRam(save);
+        assertEquals(0x8000 + RealTimeClock.SAVE_SIZE, save.size());
+
+        Memory loaded = new Memory();
+        loaded.attachGameFile(createRom(0x10, 2, 3), RealTimeClock.TimeSource.REAL_TIME);
+        loaded.skipBootRom();
+        assertEquals(RealTimeClock.TimeSource.REAL_TIME, loaded.getCartridge().getClock().getTimeSource());
+        loaded.loadCartridgeRam(new ByteArrayInputStream(save.toByteArray()));
+        loaded.writeByte(0x0000, (byte) 0x0A);
+        loaded.writeByte(0x4000, (byte) 2);
+        assertEquals(0x5A, loaded.readByte(0xA001));
+        loaded.writeByte(0x4000, (byte) RealTimeClock.HOURS);
+        loaded.writeByte(0x6000, (byte) 0x00);
+        loaded.writeByte(0x6000, (byte) 0x01);
+        assertEquals(13, loaded.readByte(0xA000));
+
+        // Without a battery there is nothing to save
+        assertFalse(attach(createRom(0x01, 2, 0)).getCartridge().hasBattery());
+    }
+
+    // Test that MBC5 can select bank 0 and banks past 255
+    @Test
+    public void testMbc5() {
+        Mbc5Cartridge cartridge = new Mbc5Cartridge(512, 0);
+        cartridge.writeControl(0x2000, (byte) 0x00, 0);
+        assertEquals(0, cartridge.getRomPage(0x40));
+        cartridge.writeControl(0x2000, (byte) 0x05, 0);
+        cartridge.writeControl(0x3000, (byte) 0x01, 0);
+        assertEquals(0x105 * Cartridge.ROM_BANK_PAGES + 1, cartridge.getRomPage(0x41));
+        assertNull(cartridge.getRamPage(0xA0));
+    }
+}
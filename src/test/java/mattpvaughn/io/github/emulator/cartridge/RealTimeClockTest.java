@@ -0,0 +1,74 @@
+package mattpvaughn.io.github.emulator.cartridge;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+
+public class RealTimeClockTest {
+
+    private static final long CYCLES_PER_SECOND = 4194304;
+
+    // Test that latching works out the time from the cycles elapsed
+    @Test
+    public void testLatchFromCycles() {
+        RealTimeClock clock = new RealTimeClock(RealTimeClock.TimeSource.EMULATED);
+
+        // Nothing changes until the clock is latched
+        assertEquals(0, clock.readRegister(RealTimeClock.SECONDS));
+        clock.latch(CYCLES_PER_SECOND * (2 * 86400 + 3661) + 5);
+
+        assertEquals(1, clock.readRegister(RealTimeClock.SECONDS));
+        assertEquals(1, clock.readRegister(RealTimeClock.MINUTES));
+        assertEquals(1, clock.readRegister(RealTimeClock.HOURS));
+        assertEquals(2, clock.readRegister(RealTimeClock.DAY_LOW));
+        assertEquals(0, clock.readRegister(RealTimeClock.DAY_HIGH));
+    }
+
+    // Test that halting the clock stops time and setting registers moves it
+    @Test
+    public void testHaltAndSet() {
+        RealTimeClock clock = new RealTimeClock(RealTimeClock.TimeSource.EMULATED);
+        clock.writeRegister(RealTimeClock.DAY_HIGH, (byte) 0x40, 0);
+        clock.writeRegister(RealTimeClock.HOURS, (byte) 5, 0);
+        clock.latch(CYCLES_PER_SECOND * 100);
+        assertEquals(5, clock.readRegister(RealTimeClock.HOURS));
+        assertEquals(0, clock.readRegister(RealTimeClock.SECONDS));
+        assertEquals(0x40, clock.readRegister(RealTimeClock.DAY_HIGH));
+
+        // Time passes again from the moment the halt is cleared
+        clock.writeRegister(RealTimeClock.DAY_HIGH, (byte) 0x00, CYCLES_PER_SECOND * 100);
+        clock.latch(CYCLES_PER_SECOND * 130);
+        assertEquals(30, clock.readRegister(RealTimeClock.SECONDS));
+    }
+
+    // Test that the day counter sets the carry flag when it overflows
+    @Test
+    public void testDayCarry() {
+        RealTimeClock clock = new RealTimeClock(RealTimeClock.TimeSource.EMULATED);
+        clock.latch(CYCLES_PER_SECOND * 86400 * 513);
+        assertEquals(1, clock.readRegister(RealTimeClock.DAY_LOW));
+        assertEquals((byte) 0x80, clock.readRegister(RealTimeClock.DAY_HIGH));
+    }
+
+    // Test that the clock can be saved and loaded again
+    @Test
+    public void testSaveLoad() throws IOException {
+        RealTimeClock clock = new RealTimeClock(RealTimeClock.TimeSource.EMULATED);
+        clock.latch(CYCLES_PER_SECOND * 42);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        clock.save(out, CYCLES_PER_SECOND * 50);
+        assertEquals(RealTimeClock.SAVE_SIZE, out.size());
+
+        RealTimeClock loaded = new RealTimeClock(RealTimeClock.TimeSource.EMULATED);
+        loaded.load(new ByteArrayInputStream(out.toByteArray()), 0);
+        assertEquals(42, loaded.readRegister(RealTimeClock.SECONDS));
+        loaded.latch(CYCLES_PER_SECOND * 10);
+        // Saved at 50 seconds, so 10 seconds later it reads one minute
+        assertEquals(1, loaded.readRegister(RealTimeClock.MINUTES));
+        assertEquals(0, loaded.readRegister(RealTimeClock.SECONDS));
+    }
+}
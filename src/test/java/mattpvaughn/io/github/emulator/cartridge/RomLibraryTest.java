@@ -0,0 +1,71 @@
+package mattpvaughn.io.github.emulator.cartridge;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class RomLibraryTest {
+
+    private static final Path exampleGameRom = Paths.get(CartridgeHeaderTest.exampleGameRom);
+
+    // Test that a saved index is reused, and only new or changed files have
+    // their headers read again
+    @Test
+    public void testIncrementalRescan() throws IOException {
+        Path directory = Files.createTempDirectory("roms");
+        Path index = directory.resolve("library.idx");
+        Path first = Files.copy(exampleGameRom, directory.resolve("first.gb"));
+        Files.copy(exampleGameRom, directory.resolve("second.gb"));
+        Files.write(directory.resolve("notes.txt"), new byte[]{1, 2, 3});
+
+        RomLibrary library = new RomLibrary(index);
+        List<RomLibrary.Entry> entries = library.scan(directory);
+        assertEquals(2, entries.size());
+        assertEquals(2, library.getHeadersRead());
+        assertEquals("TETRIS", entries.get(0).getHeader().getTitle());
+        library.save();
+
+        // Nothing has changed, so nothing is read
+        RomLibrary reopened = new RomLibrary(index);
+        assertEquals(2, reopened.getEntries().size());
+        reopened.scan(directory);
+        assertEquals(0, reopened.getHeadersRead());
+
+        // Only the touched file is read again
+        Files.setLastModifiedTime(first, FileTime.fromMillis(Files.getLastModifiedTime(first).toMillis() + 5000));
+        Files.copy(exampleGameRom, directory.resolve("third.gb"));
+        entries = reopened.scan(directory);
+        assertEquals(3, entries.size());
+        assertEquals(2, reopened.getHeadersRead());
+    }
+
+    // Test that scanning one directory keeps what was found in another, and
+    // only drops missing files from the directory scanned
+    @Test
+    public void testScanTwoDirectories() throws IOException {
+        Path first = Files.createTempDirectory("roms");
+        Path second = Files.createTempDirectory("roms");
+        Files.copy(exampleGameRom, first.resolve("a.gb"));
+        Path removed = Files.copy(exampleGameRom, first.resolve("b.gb"));
+        Files.copy(exampleGameRom, second.resolve("c.gb"));
+
+        RomLibrary library = new RomLibrary(first.resolve("library.idx"));
+        library.scan(first);
+        assertEquals(1, library.scan(second).size());
+        assertEquals(3, library.getEntries().size());
+
+        Files.delete(removed);
+        assertEquals(1, library.scan(first).size());
+        assertEquals(2, library.getEntries().size());
+        String kept = second.resolve("c.gb").toAbsolutePath().toString();
+        assertTrue(library.getEntries().stream().anyMatch(entry -> entry.getPath().equals(kept)));
+    }
+}
@@ -0,0 +1,124 @@
+package mattpvaughn.io.github.emulator.cartridge;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class RomLoaderTest {
+
+    private static final Path exampleGameRom = Paths.get(CartridgeHeaderTest.exampleGameRom);
+
+    // Test that plain, gzipped and zipped copies of a ROM all load the same
+    @Test
+    public void testLoadCompressed() throws IOException {
+        byte[] expected = Files.readAllBytes(exampleGameRom);
+        Path directory = Files.createTempDirectory("roms");
+
+        Path gz = directory.resolve("tetris.gb.gz");
+        try (OutputStream out = new GZIPOutputStream(Files.newOutputStream(gz))) {
+            out.write(expected);
+        }
+
+        Path zip = directory.resolve("tetris.zip");
+        try (ZipOutputStream out = new ZipOutputStream(Files.newOutputStream(zip))) {
+            out.putNextEntry(new ZipEntry("readme.txt"));
+            out.write(new byte[]{1, 2, 3});
+            out.putNextEntry(new ZipEntry("tetris.gb"));
+            out.write(expected);
+        }
+
+        for (Path file : new Path[]{exampleGameRom, gz, zip}) {
+            byte[] image = RomLoader.load(file, 0);
+            assertTrue(Arrays.equals(expected, image));
+            assertEquals("TETRIS", RomLoader.readHeader(file).getTitle());
+        }
+    }
+
+    // Test that images are sized from the data rather than from a header
+    // which claims a much larger (or invalid) ROM
+    @Test
+    public void testSizeFromData() throws IOException {
+        byte[] rom = Files.readAllBytes(exampleGameRom);
+        Path directory = Files.createTempDirectory("roms");
+        for (int code : new int[]{CartridgeHeader.MAX_ROM_SIZE_CODE, 15, 0xFF}) {
+            rom[0x148] = (byte) code;
+
+            Path plain = directory.resolve("bad.gb");
+            Files.write(plain, rom);
+            Path gz = directory.resolve("bad.gb.gz");
+            try (OutputStream out = new GZIPOutputStream(Files.newOutputStream(gz))) {
+                out.write(rom);
+            }
+            Path zip = directory.resolve("bad.zip");
+            try (ZipOutputStream out = new ZipOutputStream(Files.newOutputStream(zip))) {
+                out.putNextEntry(new ZipEntry("bad.gb"));
+                out.write(rom);
+            }
+
+            for (Path file : new Path[]{plain, gz, zip}) {
+                assertTrue(Arrays.equals(rom, RomLoader.load(file, 0)));
+            }
+        }
+    }
+
+    // Test that a stream longer than its header says is still read in full
+    @Test
+    public void testStreamLongerThanHeader() throws IOException {
+        byte[] rom = new byte[0x20000];
+        rom[0x1FFFF] = 0x42;
+        Path gz = Files.createTempDirectory("roms").resolve("long.gb.gz");
+        try (OutputStream out = new GZIPOutputStream(Files.newOutputStream(gz))) {
+            out.write(rom);
+        }
+        byte[] image = RomLoader.load(gz, 0);
+        assertEquals(0x20000, image.length);
+        assertEquals(0x42, image[0x1FFFF]);
+    }
+
+    // Test that the image is padded out to the minimum size asked for
+    @Test
+    public void testMinimumSize() throws IOException {
+        byte[] image = RomLoader.load(exampleGameRom, 0x10000);
+        assertEquals(0x10000, image.length);
+        assertEquals((byte) 0xC3, image[0x101]);
+        assertEquals((byte) 0, image[0x8000]);
+    }
+
+    // Test that shared images are read straight into pages, padded with
+    // zero pages to the minimum size
+    @Test
+    public void testLoadSharedPages() throws IOException {
+        byte[] rom = new byte[0x8000 + 0x80];
+        for (int i = 0; i < rom.length; i++) {
+            rom[i] = (byte) (i * 7);
+        }
+        Path directory = Files.createTempDirectory("roms");
+        Path plain = directory.resolve("pages.gb");
+        Files.write(plain, rom);
+        Path gz = directory.resolve("pages.gb.gz");
+        try (OutputStream out = new GZIPOutputStream(Files.newOutputStream(gz))) {
+            out.write(rom);
+        }
+
+        for (Path file : new Path[]{plain, gz}) {
+            byte[][] pages = RomLoader.loadShared(file, 0, 0x100);
+            assertEquals(0x81, pages.length);
+            for (int i = 0; i < 0x8100; i++) {
+                byte expected = i < rom.length ? rom[i] : 0;
+                assertEquals(expected, pages[i >>> 8][i & 0xFF]);
+            }
+            assertEquals(0x100, RomLoader.loadShared(file, 0x10000, 0x100).length);
+        }
+    }
+}
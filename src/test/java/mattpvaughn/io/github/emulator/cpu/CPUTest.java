@@ -2173,4 +2173,64 @@ public class CPUTest {
         assertEquals(INTERRUPTABLE, cpu.getInterruptState());
     }
 
-}
\ No newline at end of file
+    // Test that skipping the boot rom sets up registers as the boot rom would
+    // and starts at the game's entry point
+    @Test
+    public void testSkipBootRom() {
+        CPURegister cpuRegister = new CPURegister();
+        ProgramCounter pc = new ProgramCounter();
+        FlagRegister flagRegister = new FlagRegister();
+        Memory memory = new Memory();
+        CPU cpu = new CPU.Builder().cpuRegister(cpuRegister).programCounter(pc)
+                .flagRegister(flagRegister).memory(memory).build();
+
+        cpu.skipBootRom();
+
+        assertEquals(0x0100, pc.getAddr());
+        assertEquals((short) 0x01B0, cpuRegister.get16BitRegisterValue(CPURegister.Register.AF));
+        assertEquals((short) 0x0013, cpuRegister.get16BitRegisterValue(CPURegister.Register.BC));
+        assertEquals((short) 0x00D8, cpuRegister.get16BitRegisterValue(CPURegister.Register.DE));
+        assertEquals((short) 0x014D, cpuRegister.get16BitRegisterValue(CPURegister.Register.HL));
+        assertEquals((short) 0xFFFE, cpuRegister.SP);
+        assertTrue(flagRegister.z);
+        assertFalse(flagRegister.n);
+        assertTrue(flagRegister.h);
+        assertTrue(flagRegister.c);
+        assertEquals((byte) 0xAB, memory.readByte(0xFF04));
+    }
+
+
+    // Test that instructions are fetched from ROM, from RAM, and across page
+    // boundaries, and that the fetch unit notices the boot rom going away
+    @Test
+    public void testFetch() {
+        ProgramCounter pc = new ProgramCounter();
+        Memory memory = new Memory();
+        CPU cpu = new CPU.Builder().programCounter(pc).memory(memory).build();
+
+        // Boot rom first, then the cartridge ROM underneath it
+        memory.loadBytesToRom(new byte[]{arbitraryByte}, 0);
+        assertEquals(arbitraryByte, cpu.fetch());
+        memory.writeByte(Memory.BOOT_ROM_DISABLE, (byte) 0x01);
+        memory.loadBytesToRom(new byte[]{arbitraryByte2}, 0);
+        pc.reset();
+        assertEquals(arbitraryByte2, cpu.fetch());
+
+        // Code in RAM, straddling a page boundary
+        memory.writeByte(0xC0FF, arbitraryByte);
+        memory.writeByte(0xC100, arbitraryByte2);
+        pc.setAddr(0xC0FF);
+        assertEquals(arbitraryByte, cpu.fetch());
+        assertEquals(arbitraryByte2, cpu.fetch());
+        assertEquals(0xC101, pc.getAddr());
+
+        // Code written after it has been fetched from is seen
+        memory.writeByte(0xC101, arbitraryByte);
+        assertEquals(arbitraryByte, cpu.fetch());
+
+        // The PC wraps around at the top of memory
+        pc.setAddr(0xFFFF);
+        cpu.fetch();
+        assertEquals(0, pc.getAddr());
+    }
+}